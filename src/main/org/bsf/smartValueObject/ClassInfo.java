@@ -0,0 +1,210 @@
+package org.bsf.smartValueObject;
+
+import org.bsf.smartValueObject.tools.Instrumentor;
+import org.bsf.smartValueObject.container.SmartContainer;
+
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.Collections;
+import java.util.StringTokenizer;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * Per class information about versionable classes, looked up once
+ * with reflection and cached afterwards.
+ *
+ * @see org.bsf.smartValueObject.SmartAccess
+ */
+class ClassInfo {
+    /**
+     * Cache for class informations. The informations hold fields, which
+     * reference their class; they are thus softly referenced, otherwise
+     * the weak keys would never be collected and the classes and their
+     * class loaders would leak.
+     */
+    private static final Map cache = Collections.synchronizedMap(new WeakHashMap());
+    /** Names of the instance fields, in index order. */
+    private final String[] fieldNames;
+    /** The instance fields, in index order. */
+    private final Field[] fields;
+    /** Public fields which may reference versionable objects. */
+    private final Field[] childFields;
+    /** The field holding the version object, null if there's none. */
+    private final Field versionField;
+
+    private ClassInfo(Class clazz) {
+        this.fieldNames = readFieldNames(clazz);
+        this.fields = findFields(clazz, fieldNames);
+        this.childFields = findChildFields(clazz);
+        this.versionField = findField(clazz, Instrumentor.VERSIONFIELD);
+    }
+
+    /**
+     * Gets the information for the given class.
+     * @param clazz a versionable class.
+     * @return the (cached) information.
+     */
+    static ClassInfo forClass(Class clazz) {
+        SoftReference ref = (SoftReference) cache.get(clazz);
+        ClassInfo info = ref == null ? null : (ClassInfo) ref.get();
+        if (info == null) {
+            info = new ClassInfo(clazz);
+            cache.put(clazz, new SoftReference(info));
+        }
+        return info;
+    }
+
+    /**
+     * Gets the names of the instance fields, the position in the array
+     * being the index used by <tt>Versionable.touch(int)</tt>.
+     * @return field names, an empty array if the class doesn't provide them.
+     */
+    String[] getFieldNames() {
+        return fieldNames;
+    }
+
+    /**
+     * Gets an instance field by its index. The field is accessible even if
+     * not public.
+     * @param index index of the field.
+     * @return the field.
+     * @throws IllegalArgumentException if there's no such field.
+     */
+    Field getField(int index) {
+        if (index < 0 || index >= fields.length || fields[index] == null)
+            throw new IllegalArgumentException("no field with index " + index);
+
+        return fields[index];
+    }
+
+    /**
+     * Gets the version object of an instance.
+     * @param o instance of the class.
+     * @return the version object, null if the class keeps its version
+     * state inline.
+     */
+    Object getVersion(Object o) {
+        if (versionField == null)
+            return null;
+
+        try {
+            return versionField.get(o);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(e.toString());
+        }
+    }
+
+    /**
+     * Gets the public fields which are able to hold versionable objects or
+     * smart containers. Primitives, static fields, arrays and final or
+     * <tt>java.*</tt> classes unrelated to versioning are left out.
+     * Only the lookup is cached, the fields are still read with
+     * reflection (made accessible once).
+     * @return the fields, not to be modified by the caller.
+     */
+    Field[] getChildFields() {
+        return childFields;
+    }
+
+    /**
+     * Gets the index of a field.
+     * @param name name of the field.
+     * @return the index, -1 if unknown.
+     */
+    int indexOf(String name) {
+        for (int i = 0; i < fieldNames.length; i++) {
+            if (fieldNames[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+    private static Field[] findFields(Class clazz, String[] names) {
+        Field[] result = new Field[names.length];
+        for (int i = 0; i < names.length; i++) {
+            result[i] = findField(clazz, names[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Finds a declared field in the class or its superclasses.
+     * @return the field, null if not found or not accessible.
+     */
+    private static Field findField(Class clazz, String name) {
+        for (Class c = clazz; c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                // try superclass
+            } catch (SecurityException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static Field[] findChildFields(Class clazz) {
+        Field[] fields = clazz.getFields();
+        List children = new ArrayList(fields.length);
+        for (int i = 0; i < fields.length; i++) {
+            Field field = fields[i];
+            if (Modifier.isStatic(field.getModifiers()) ||
+                field.getName().equals(Instrumentor.VERSIONFIELD) ||
+                !canHoldVersionable(field.getType()))
+                continue;
+
+            try {
+                // skips access checks on every read
+                field.setAccessible(true);
+            } catch (SecurityException e) {
+                // fall back to checked access
+            }
+            children.add(field);
+        }
+        return (Field[]) children.toArray(new Field[children.size()]);
+    }
+
+    private static boolean canHoldVersionable(Class type) {
+        if (type.isPrimitive() || type.isArray())
+            return false;
+        if (type.isInterface() || type == Object.class ||
+            Versionable.class.isAssignableFrom(type) ||
+            SmartContainer.class.isAssignableFrom(type))
+            return true;
+
+        return !Modifier.isFinal(type.getModifiers()) &&
+               !type.getName().startsWith("java.");
+    }
+
+    /**
+     * Reads the field names from the constant added by the instrumentor.
+     * @see Instrumentor#FIELDNAMES
+     */
+    private static String[] readFieldNames(Class clazz) {
+        String names;
+        try {
+            Field field = clazz.getField(Instrumentor.FIELDNAMES);
+            names = (String) field.get(null);
+        } catch (Exception e) {
+            return new String[0];
+        }
+
+        if (names == null) {
+            return new String[0];
+        }
+
+        StringTokenizer st = new StringTokenizer(names, ",");
+        String[] result = new String[st.countTokens()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = st.nextToken();
+        }
+        return result;
+    }
+}
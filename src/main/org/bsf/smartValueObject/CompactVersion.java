@@ -0,0 +1,297 @@
+package org.bsf.smartValueObject;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectInputValidation;
+import java.io.ObjectOutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Compact implementation of <tt>Versionable</tt>, behaving like
+ * <tt>Version</tt> but keeping the created, deleted, dirty and graph
+ * dirty flags in a single byte. The modified fields beyond the first 64,
+ * which few classes have, are kept in a table on the side, so an
+ * instance needs one field less than a <tt>Version</tt> (about 40 bytes
+ * instead of 48 on a 64 bit VM with compressed references).
+ * <p>The static methods hold the logic on the packed state. They are
+ * also used by classes which keep their version state in fields of
+ * their own instead of a separate version object (see the
+ * <tt>inline</tt> option of <tt>SmartTask</tt>), and are not meant to
+ * be called by applications.
+ *
+ * @see org.bsf.smartValueObject.Version
+ * @see org.bsf.smartValueObject.tools.SmartTask#setInline
+ */
+public class CompactVersion implements Versionable {
+    public static final int CREATED    = 1;
+    public static final int DELETED    = 2;
+    public static final int DIRTY      = 4;
+    public static final int GRAPHDIRTY = 8;
+    /** State of a new object: created and modified. */
+    public static final int NEW = CREATED | DIRTY | GRAPHDIRTY;
+    /** Set when modified fields are kept in the side table. */
+    private static final int MOREFIELDS = 16;
+
+    /** Modified fields from index 64 onwards, by version. */
+    private static final Map moreDirtyFields =
+            Collections.synchronizedMap(new WeakHashMap());
+
+    private long versionId;
+    /** Modified fields with an index below 64. */
+    private long dirtyFields;
+    /** Combination of the flags above. */
+    private byte state;
+    /** The versionable object this version belongs to. */
+    private Versionable owner = this;
+    /** Objects referencing the owner, null if none. */
+    private transient Versionable[] parents;
+
+    /**
+     * Creates a new version, considered as created.
+     */
+    public CompactVersion() {
+        versionId = Version.getIdGenerator().nextId();
+        state = NEW;
+    }
+
+    /**
+     * Creates a version for the given object.
+     * @param o the versionable object owning this version.
+     */
+    public CompactVersion(Object o) {
+        this();
+        if (o instanceof Versionable) {
+            owner = (Versionable) o;
+        }
+    }
+
+    public void touch() {
+        state = changed(state, parents, owner);
+    }
+
+    public void touch(String field) {
+        state = changed(state, parents, owner);
+    }
+
+    public void touch(int field) {
+        if (field < 64) {
+            dirtyFields |= 1L << field;
+        } else {
+            moreDirtyFields.put(this, touchMore(getMoreDirtyFields(), field));
+            state |= MOREFIELDS;
+        }
+        state = changed(state, parents, owner);
+        VersionEvents.fieldWritten(owner, field);
+    }
+
+    public void delete() {
+        state = changed(delete(state), parents, owner);
+    }
+
+    public void create() {
+        state = changed(create(state), parents, owner);
+    }
+
+    public boolean isCreated() {
+        return (state & CREATED) != 0;
+    }
+
+    public boolean isDeleted() {
+        return (state & DELETED) != 0;
+    }
+
+    public boolean isDirty() {
+        return (state & DIRTY) != 0;
+    }
+
+    public boolean isDirty(int field) {
+        return isDirty(dirtyFields, getMoreDirtyFields(), field);
+    }
+
+    /** @return the modified fields from index 64 onwards, null if none. */
+    private long[] getMoreDirtyFields() {
+        if ((state & MOREFIELDS) == 0)
+            return null;
+
+        return (long[]) moreDirtyFields.get(this);
+    }
+
+    public void markClean() {
+        if ((state & MOREFIELDS) != 0) {
+            moreDirtyFields.remove(this);
+        }
+        state = 0;
+        dirtyFields = 0;
+        versionId = Version.getIdGenerator().nextId();
+    }
+
+    public void addParent(Versionable parent) {
+        parents = addParent(parents, parent, state, owner);
+    }
+
+    public void removeParent(Versionable parent) {
+        parents = VersionHelper.removeParent(parents, parent);
+    }
+
+    /** @return the objects referencing the owner, null if none. */
+    Versionable[] getParents() {
+        return parents;
+    }
+
+    public void touchGraph(Versionable child) {
+        state = touchGraph(state, parents, owner);
+    }
+
+    public boolean isGraphDirty() {
+        return (state & GRAPHDIRTY) != 0;
+    }
+
+    public long getVersionId() {
+        return versionId;
+    }
+
+    public void setVersionId(long id) {
+        this.versionId = id;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(getMoreDirtyFields());
+    }
+
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        long[] more = (long[]) in.readObject();
+        if (more != null) {
+            moreDirtyFields.put(this, more);
+        }
+        if (owner != this) {
+            relinkAfterRead(owner, in);
+        }
+    }
+
+    public String toString() {
+        return "CompactVersion [id: " + versionId +
+                " dirty:"   + (isDirty()   ? "yes" : "no") +
+                " created:" + (isCreated() ? "yes" : "no") +
+                " deleted:" + (isDeleted() ? "yes" : "no") +
+                "]";
+    }
+
+    // --------------------------------------------------------------------------
+
+    /**
+     * Marks the state as dirty, telling the parents about it the first
+     * time the object or its graph becomes dirty.
+     * @return the new state.
+     */
+    public static byte changed(byte state, Versionable[] parents, Versionable owner) {
+        if ((state & (DIRTY | GRAPHDIRTY)) != (DIRTY | GRAPHDIRTY)) {
+            notifyParents(parents, owner);
+        }
+        return (byte) (state | DIRTY | GRAPHDIRTY);
+    }
+
+    /** @return the state with the deleted flag set and the created flag cleared. */
+    public static byte delete(byte state) {
+        return (byte) ((state & ~CREATED) | DELETED);
+    }
+
+    /** @return the state with the created flag set and the deleted flag cleared. */
+    public static byte create(byte state) {
+        return (byte) ((state & ~DELETED) | CREATED);
+    }
+
+    /**
+     * Marks the graph as dirty, telling the parents about it once.
+     * @return the new state.
+     */
+    public static byte touchGraph(byte state, Versionable[] parents, Versionable owner) {
+        if ((state & GRAPHDIRTY) == 0) {
+            state |= GRAPHDIRTY;
+            notifyParents(parents, owner);
+        }
+        return state;
+    }
+
+    private static void notifyParents(Versionable[] parents, Versionable owner) {
+        if (parents == null)
+            return;
+
+        for (int i = 0; i < parents.length; i++) {
+            parents[i].touchGraph(owner);
+        }
+    }
+
+    /**
+     * Adds a parent, informing it if the graph of the owner is dirty.
+     * @return the new parents.
+     */
+    public static Versionable[] addParent(Versionable[] parents, Versionable parent,
+                                          byte state, Versionable owner) {
+        if (parent == null || parent == owner)
+            return parents;
+
+        parents = VersionHelper.addParent(parents, parent);
+        if ((state & GRAPHDIRTY) != 0) {
+            parent.touchGraph(owner);
+        }
+        return parents;
+    }
+
+    /**
+     * Records a modified field which doesn't fit in the first bitmask.
+     * @param more the additional bitmasks, may be null.
+     * @param field index of the field, at least 64.
+     * @return the additional bitmasks.
+     */
+    public static long[] touchMore(long[] more, int field) {
+        int slot = (field >> 6) - 1;
+        if (more == null) {
+            more = new long[slot + 1];
+        } else if (more.length <= slot) {
+            long[] a = new long[slot + 1];
+            System.arraycopy(more, 0, a, 0, more.length);
+            more = a;
+        }
+        more[slot] |= 1L << (field & 63);
+        return more;
+    }
+
+    /**
+     * Was the field with the given index modified ?
+     * @param dirtyFields bitmask of the fields below 64.
+     * @param more additional bitmasks, may be null.
+     * @param field index of the field.
+     */
+    public static boolean isDirty(long dirtyFields, long[] more, int field) {
+        if (field < 64) {
+            return (dirtyFields & (1L << field)) != 0;
+        }
+        int slot = (field >> 6) - 1;
+        return more != null &&
+               slot < more.length &&
+               (more[slot] & (1L << (field & 63))) != 0;
+    }
+
+    /**
+     * Restores the parent links below an object being deserialized,
+     * once the whole graph has been read.
+     * @param owner the object being read.
+     * @param in the stream it is read from.
+     */
+    public static void relinkAfterRead(final Versionable owner, ObjectInputStream in)
+            throws IOException {
+        if (!VersionHelper.isDirtyPropagation())
+            return;
+
+        in.registerValidation(new ObjectInputValidation() {
+            public void validateObject() {
+                VersionHelper.relinkChildren(owner);
+            }
+        }, 0);
+    }
+}
@@ -0,0 +1,236 @@
+package org.bsf.smartValueObject;
+
+import java.io.ObjectStreamException;
+
+/**
+ * Immutable version state shared by all objects which have not been
+ * modified yet. Classes instrumented with the <tt>lazy</tt> option of
+ * <tt>SmartTask</tt> start with <tt>NEW</tt> instead of a version of
+ * their own, <tt>markClean()</tt> replaces it by <tt>CLEAN</tt>. A real
+ * version is allocated with <tt>allocate()</tt> on the first write or
+ * the first call which changes the state or asks for the version number.
+ * <p>Objects with parents (e.g. elements of smart containers) get a
+ * small instance of their own holding the parent links, see
+ * <tt>addParent()</tt>; the links are handed to the version when it is
+ * allocated.
+ * <p>Unless dirty propagation is enabled, marking an object clean also
+ * drops a version allocated before, keeping its parent links. Graphs
+ * which are loaded, marked clean and then only read thus hold no version
+ * objects. Note that the version number of such an object is only drawn
+ * when it is asked for.
+ *
+ * @see org.bsf.smartValueObject.tools.SmartTask#setLazy
+ */
+public final class SharedVersion implements Versionable {
+    /** State of a newly created object. */
+    public static final SharedVersion NEW = new SharedVersion(true);
+    /** State of an object which has been marked clean. */
+    public static final SharedVersion CLEAN = new SharedVersion(false);
+
+    private final boolean created;
+    /** Objects referencing the owner, null for the shared instances. */
+    private final transient Versionable[] parents;
+
+    private SharedVersion(boolean created) {
+        this(created, null);
+    }
+
+    private SharedVersion(boolean created, Versionable[] parents) {
+        this.created = created;
+        this.parents = parents;
+    }
+
+    /**
+     * Gets the state for the given flag and parents.
+     */
+    private static SharedVersion valueOf(boolean created, Versionable[] parents) {
+        if (parents == null) {
+            return created ? NEW : CLEAN;
+        }
+        return new SharedVersion(created, parents);
+    }
+
+    /**
+     * Initializes the version replacing this one, linking it to the
+     * parents.
+     * @param version freshly created version for the owning object.
+     * @return the initialized version.
+     */
+    public Versionable allocate(Versionable version) {
+        if (!created) {
+            version.markClean();
+        }
+        if (parents != null) {
+            for (int i = 0; i < parents.length; i++) {
+                version.addParent(parents[i]);
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Marks a version clean, going back to a shared version. Versions
+     * keep their parent links, which are only known for <tt>Version</tt>
+     * and <tt>CompactVersion</tt>; other versions are kept, as are all
+     * versions when dirty propagation is enabled.
+     * @param version the current version of an object.
+     * @return the version to keep.
+     * @see org.bsf.smartValueObject.VersionHelper#isDirtyPropagation
+     */
+    public static Versionable markClean(Versionable version) {
+        if (version instanceof SharedVersion) {
+            return valueOf(false, ((SharedVersion) version).parents);
+        }
+        if (!VersionHelper.isDirtyPropagation()) {
+            if (version instanceof Version) {
+                return valueOf(false, ((Version) version).getParents());
+            }
+            if (version instanceof CompactVersion) {
+                return valueOf(false, ((CompactVersion) version).getParents());
+            }
+        }
+        version.markClean();
+        return version;
+    }
+
+    /**
+     * Links an object to a parent without allocating its version.
+     * @param version the current version of the object.
+     * @param owner the object.
+     * @param parent the parent to add.
+     * @return the version to keep.
+     */
+    public static Versionable addParent(Versionable version, Versionable owner,
+                                        Versionable parent) {
+        if (!(version instanceof SharedVersion)) {
+            version.addParent(parent);
+            return version;
+        }
+        if (parent == null || parent == owner)
+            return version;
+
+        SharedVersion shared = (SharedVersion) version;
+        if (shared.created) {
+            parent.touchGraph(owner);
+        }
+        return valueOf(shared.created, VersionHelper.addParent(shared.parents, parent));
+    }
+
+    /**
+     * Unlinks an object from a parent without allocating its version.
+     * @param version the current version of the object.
+     * @param owner the object.
+     * @param parent the parent to remove.
+     * @return the version to keep.
+     */
+    public static Versionable removeParent(Versionable version, Versionable owner,
+                                           Versionable parent) {
+        if (!(version instanceof SharedVersion)) {
+            version.removeParent(parent);
+            return version;
+        }
+
+        SharedVersion shared = (SharedVersion) version;
+        return valueOf(shared.created, VersionHelper.removeParent(shared.parents, parent));
+    }
+
+    /**
+     * Can a shared version answer this method of <tt>Versionable</tt> ?
+     * Other methods have to be called on an allocated version, except
+     * for those handled by the static methods of this class.
+     * @param method name of the method.
+     * @see #isLinkMethod
+     */
+    public static boolean isShareable(String method) {
+        return method.startsWith("is");
+    }
+
+    /**
+     * Is this method of <tt>Versionable</tt> handled by the static method
+     * of the same name, taking the version and the owner first ?
+     * @param method name of the method.
+     */
+    public static boolean isLinkMethod(String method) {
+        return method.equals("addParent") || method.equals("removeParent");
+    }
+
+    public boolean isCreated() {
+        return created;
+    }
+
+    public boolean isDeleted() {
+        return false;
+    }
+
+    public boolean isDirty() {
+        return created;
+    }
+
+    public boolean isDirty(int field) {
+        return false;
+    }
+
+    public boolean isGraphDirty() {
+        return created;
+    }
+
+    public void removeParent(Versionable parent) {
+        throw immutable();
+    }
+
+    public void touch() {
+        throw immutable();
+    }
+
+    public void touch(String field) {
+        throw immutable();
+    }
+
+    public void touch(int field) {
+        throw immutable();
+    }
+
+    public void delete() {
+        throw immutable();
+    }
+
+    public void create() {
+        throw immutable();
+    }
+
+    public void markClean() {
+        throw immutable();
+    }
+
+    public void addParent(Versionable parent) {
+        throw immutable();
+    }
+
+    public void touchGraph(Versionable child) {
+        throw immutable();
+    }
+
+    public long getVersionId() {
+        throw immutable();
+    }
+
+    public void setVersionId(long id) {
+        throw immutable();
+    }
+
+    private static UnsupportedOperationException immutable() {
+        return new UnsupportedOperationException("shared version, allocate a version first");
+    }
+
+    /**
+     * Keeps the instances unique when deserialized, the parent links are
+     * restored once the whole graph has been read.
+     */
+    private Object readResolve() throws ObjectStreamException {
+        return created ? NEW : CLEAN;
+    }
+
+    public String toString() {
+        return "SharedVersion [" + (created ? "new" : "clean") + "]";
+    }
+}
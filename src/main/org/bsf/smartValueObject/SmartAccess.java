@@ -2,7 +2,6 @@ package org.bsf.smartValueObject;
 
 import org.bsf.smartValueObject.container.SmartContainer;
 import org.bsf.smartValueObject.container.SmartIterator;
-import org.bsf.smartValueObject.tools.Instrumentor;
 
 import java.util.*;
 import java.lang.reflect.Field;
@@ -27,7 +26,7 @@ public class SmartAccess {
     public static Iterator createdIterator(Object o) {
         checkSmartContainer(o);
         SmartContainer sc = (SmartContainer) o;
-        return new SmartIterator(sc.getIterator(), VersionableFilters.CREATED);
+        return sc.getCreatedIterator();
     }
 
     /**
@@ -40,7 +39,7 @@ public class SmartAccess {
     public static Iterator modifiedIterator(Object o) {
         checkSmartContainer(o);
         SmartContainer sc = (SmartContainer) o;
-        return new SmartIterator(sc.getIterator(), VersionableFilters.DIRTY);
+        return sc.getModifiedIterator();
     }
 
     /**
@@ -53,7 +52,7 @@ public class SmartAccess {
     public static Iterator deletedIterator(Object o) {
         checkSmartContainer(o);
         SmartContainer sc = (SmartContainer) o;
-        return new SmartIterator(sc.getIterator(), VersionableFilters.DELETED);
+        return sc.getDeletedIterator();
     }
 
     /**
@@ -92,30 +91,29 @@ public class SmartAccess {
 
     /**
      * Gets all versionable objects contained in o (itself a versionable).
+     * <p>The fields able to hold them are looked up once per class, the
+     * iterator reads them (with reflection) as it goes.
      *
      * @param o
      * @return
      */
     public static Iterator getVersionables(Object o) {
         checkVersionable(o);
-        Collection c = new ArrayList();
-        Field[] fields = o.getClass().getFields();
-        for (int i = 0; i < fields.length; i++) {
-            Field field = fields[i];
-            if (field.getName().equals(Instrumentor.VERSIONFIELD) ||
-                field.getType().isPrimitive())
-                continue;
-            Object fieldObject;
-            try {
-                fieldObject = field.get(o);
-            } catch (Exception e) {
-                continue;
-            }
-            if (isVersionable(fieldObject)) {
-                c.add(fieldObject);
-            }
+        return new ChildIterator(o, ClassInfo.forClass(o.getClass()).getChildFields());
+    }
+
+    /**
+     * Reads a child field.
+     * @return the value of the field if it's versionable, null otherwise.
+     */
+    private static Object getChild(Object o, Field field) {
+        Object fieldObject;
+        try {
+            fieldObject = field.get(o);
+        } catch (Exception e) {
+            return null;
         }
-        return c.iterator();
+        return isVersionable(fieldObject) ? fieldObject : null;
     }
 
     /**
@@ -145,13 +143,127 @@ public class SmartAccess {
         return ((Versionable) o).isDirty();
     }
 
+    /**
+     * Gets the names of the fields which have been written to since
+     * the object was last marked clean.
+     *
+     * @param o versionable object.
+     * @return names of the modified fields, in declaration order.
+     * @throws java.lang.IllegalArgumentException if object is not versionable.
+     * @see org.bsf.smartValueObject.tools.Instrumentor#FIELDNAMES
+     */
+    public static String[] dirtyFields(Object o) {
+        checkVersionable(o);
+        Versionable v = (Versionable) o;
+        String[] names = ClassInfo.forClass(o.getClass()).getFieldNames();
+        if (!v.isDirty()) {
+            return new String[0];
+        }
+
+        List dirty = new ArrayList();
+        for (int i = 0; i < names.length; i++) {
+            if (v.isDirty(i)) {
+                dirty.add(names[i]);
+            }
+        }
+        return (String[]) dirty.toArray(new String[dirty.size()]);
+    }
+
+    /**
+     * Gets the names of the instance fields of a versionable object, the
+     * position in the array being the index of the field.
+     *
+     * @param o versionable object.
+     * @return field names, empty if the class wasn't instrumented.
+     * @see org.bsf.smartValueObject.tools.Instrumentor#FIELDNAMES
+     */
+    public static String[] fieldNames(Object o) {
+        checkVersionable(o);
+        return (String[]) ClassInfo.forClass(o.getClass()).getFieldNames().clone();
+    }
+
+    /**
+     * Reads a field by its index.
+     *
+     * @param o versionable object.
+     * @param index index of the field.
+     * @return value of the field, primitives being wrapped.
+     * @throws java.lang.IllegalArgumentException if object is not
+     * versionable or the field doesn't exist.
+     */
+    public static Object getField(Object o, int index) {
+        checkVersionable(o);
+        Field field = ClassInfo.forClass(o.getClass()).getField(index);
+        try {
+            return field.get(o);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(e.toString());
+        }
+    }
+
+    /**
+     * Writes a field by its index and touches it. The write doesn't go
+     * through the field interceptors, no equality check is done.
+     *
+     * @param o versionable object.
+     * @param index index of the field.
+     * @param value the new value, primitives being wrapped.
+     * @throws java.lang.IllegalArgumentException if object is not
+     * versionable, the field doesn't exist or the value doesn't fit.
+     */
+    public static void setField(Object o, int index, Object value) {
+        checkVersionable(o);
+        Field field = ClassInfo.forClass(o.getClass()).getField(index);
+        // touched first, like the field interceptors do
+        ((Versionable) o).touch(index);
+        try {
+            Object old = field.get(o);
+            field.set(o, value);
+            VersionHelper.reparent(o, old, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(e.toString());
+        }
+    }
+
+    /**
+     * Enables or disables dirty propagation. When enabled, smart containers
+     * and field assignments link children to their parents, and every
+     * modification is propagated upwards. <tt>isGraphDirty</tt> then
+     * answers from the root object without traversing the graph.
+     * <p>Should be enabled before the graphs are built, objects linked
+     * while disabled won't notify their parents. Graphs are expected to
+     * be cleaned with <tt>resetGraph</tt>.
+     *
+     * @param enabled true to enable propagation.
+     * @see #isGraphDirty
+     */
+    public static void setDirtyPropagation(boolean enabled) {
+        VersionHelper.setDirtyPropagation(enabled);
+    }
+
+    /**
+     * Is dirty propagation enabled ?
+     * @see #setDirtyPropagation
+     */
+    public static boolean isDirtyPropagation() {
+        return VersionHelper.isDirtyPropagation();
+    }
+
     /**
      * Checks if objects in graph o have been modified.
+     * <p>With dirty propagation enabled, this is answered by the root
+     * object itself.
      *
      * @param o versionable object with versionable child objects.
      * @return
+     * @see #setDirtyPropagation
      */
     public static boolean isGraphDirty(Object o) {
+        if (VersionHelper.isDirtyPropagation()) {
+            checkVersionable(o);
+            return ((Versionable) o).isGraphDirty();
+        }
+
         DirtyVisitor dv = new DirtyVisitor();
         traverseGraph(o, dv);
 
@@ -159,43 +271,60 @@ public class SmartAccess {
     }
 
     /**
-     * Traverses the graph using a visitor.
+     * Traverses the graph using a visitor. The traversal is iterative,
+     * deep graphs don't exhaust the call stack. Each object is visited
+     * once, identity being checked with <tt>==</tt> rather than
+     * <tt>equals</tt>.
      * @param o
      * @param visitor
      */
      private static void traverseGraph(Object o, SmartVisitor visitor) {
-        if (SmartAccess.isSmartContainer(o)) {
-            traverseSmartContainer(o, visitor);
-        } else if (SmartAccess.isVersionable(o)) {
-            traverseVersionable(o, visitor);
-        } else {
+        if (!SmartAccess.isSmartContainer(o) && !SmartAccess.isVersionable(o)) {
             throw new IllegalArgumentException();
         }
+
+        Map visited = new IdentityHashMap();
+        ArrayList stack = new ArrayList();
+        stack.add(o);
+
+        while (!stack.isEmpty() && !visitor.isFinished()) {
+            Object current = stack.remove(stack.size() - 1);
+            if (visited.put(current, current) != null)
+                continue;
+
+            if (SmartAccess.isSmartContainer(current)) {
+                if (visitor.visitSmartContainer(current)) {
+                    pushSmartContainer(current, stack);
+                }
+            } else if (visitor.visitVersionable(current)) {
+                pushVersionable(current, stack);
+            }
+        }
      }
 
      /**
-      * Traverses the given smart container.
+      * Pushes the elements of the given smart container on the stack.
       * @param o
-      * @param visitor
+      * @param stack
       */
-     private static void traverseSmartContainer(Object o, SmartVisitor visitor) {
-         checkSmartContainer(o);
-         if (!visitor.visitSmartContainer(o)) return;
+     private static void pushSmartContainer(Object o, List stack) {
          for (Iterator it = iterator(o); it.hasNext();) {
-             traverseGraph(it.next(), visitor);
+             stack.add(it.next());
          }
      }
 
      /**
-      * Traverses the given versionable object.
+      * Pushes the versionable children of the given object on the stack.
       * @param o
-      * @param visitor
+      * @param stack
       */
-     private static void traverseVersionable(Object o, SmartVisitor visitor) {
-        checkVersionable(o);
-        if (!visitor.visitVersionable(o)) return;
-        for (Iterator it = getVersionables(o); it.hasNext(); ) {
-            traverseGraph(it.next(), visitor);
+     private static void pushVersionable(Object o, List stack) {
+        Field[] fields = ClassInfo.forClass(o.getClass()).getChildFields();
+        for (int i = 0; i < fields.length; i++) {
+            Object child = getChild(o, fields[i]);
+            if (child != null) {
+                stack.add(child);
+            }
         }
     }
 
@@ -231,6 +360,35 @@ public class SmartAccess {
         ((Versionable) o).markClean();
     }
 
+    /**
+     * Restores the values the fields had when the object was last reset.
+     * Needs <tt>SnapshotVersion</tt> as version class.
+     * @param o versionable object.
+     * @throws java.lang.IllegalArgumentException if object is not
+     * versionable or doesn't keep a snapshot.
+     * @throws java.lang.IllegalStateException if the object was created
+     * since it was last reset.
+     * @see org.bsf.smartValueObject.SnapshotVersion
+     */
+    public static void rollback(Object o) {
+        checkVersionable(o);
+        if (isSmartContainer(o))
+            throw new IllegalArgumentException("can't roll back a container");
+
+        Object version = ClassInfo.forClass(o.getClass()).getVersion(o);
+        if (version instanceof SnapshotVersion) {
+            ((SnapshotVersion) version).rollback();
+        } else if (version instanceof SharedVersion) {
+            // an unmodified lazy object has nothing to roll back, whether
+            // it shares the state or has its own to keep its parents
+            if (((SharedVersion) version).isCreated()) {
+                throw new IllegalStateException("created object, nothing to roll back to");
+            }
+        } else {
+            throw new IllegalArgumentException("object doesn't keep a snapshot: " + version);
+        }
+    }
+
     /**
      * Resets all objects on the graph,including the root object.
      * @param o
@@ -281,10 +439,12 @@ public class SmartAccess {
      * @see #traverseGraph
      */
     private static interface SmartVisitor {
-        /** Visits a versionable object */
+        /** Visits a versionable object, returns true to visit its children. */
         boolean visitVersionable(Object o);
-         /** Visits a smart container */
+         /** Visits a smart container, returns true to visit its elements. */
         boolean visitSmartContainer(Object o);
+        /** Should the traversal stop ? */
+        boolean isFinished();
         /** To obtain a return value after traversal. */
         Object visitorResponse();
     }
@@ -292,29 +452,59 @@ public class SmartAccess {
     /**
      * A visitor which searches the graph for dirty objects.
      */
+    /**
+     * Iterates over the versionable values of the child fields of an object.
+     */
+    private static class ChildIterator implements Iterator {
+        private final Object o;
+        private final Field[] fields;
+        private int index = 0;
+        private Object next;
+
+        ChildIterator(Object o, Field[] fields) {
+            this.o = o;
+            this.fields = fields;
+        }
+
+        public boolean hasNext() {
+            while (next == null && index < fields.length) {
+                next = getChild(o, fields[index++]);
+            }
+            return next != null;
+        }
+
+        public Object next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            Object child = next;
+            next = null;
+            return child;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     private static class DirtyVisitor implements SmartVisitor {
-        private Map map = new HashMap();
         private boolean dirty = false;
 
         public boolean visitVersionable(Object o) {
-            if (!continueVisiting(o))
-                return false;
-
             //log("visitVersionable" + o);
-            markVisited(o);
             dirty = SmartAccess.isDirty(o);
             return dirty == false;
         }
 
         public boolean visitSmartContainer(Object o) {
-            if (!continueVisiting(o))
-                return false;
-
             //log("visitSmartContainer " + o);
-            markVisited(o);
             return dirty == false;
         }
 
+        public boolean isFinished() {
+            return dirty;
+        }
+
         public Object visitorResponse() {
             return new Boolean(dirty);
         }
@@ -322,53 +512,28 @@ public class SmartAccess {
         public boolean isDirty() {
             return dirty;
         }
-
-        private boolean continueVisiting(Object o) {
-            if (dirty)
-                return false;
-            else
-                return !map.containsKey(o);
-        }
-
-        private void markVisited(Object o) {
-            map.put(o, o);
-        }
     }
 
     /**
      * A visitor which resets all versionable objects.
      */
     private static class ResetVisitor implements SmartVisitor {
-        private Map map = new HashMap();
-
         public boolean visitVersionable(Object o) {
-            if (!continueVisiting(o))
-                return false;
-
-            markVisited(o);
             reset(o);
             return true;
         }
 
         public boolean visitSmartContainer(Object o) {
-            if (!continueVisiting(o))
-                return false;
-
-            markVisited(o);
             reset(o);
             return true;
         }
 
-        public Object visitorResponse() {
-            return null;
-        }
-
-        private boolean continueVisiting(Object o) {
-            return !map.containsKey(o);
+        public boolean isFinished() {
+            return false;
         }
 
-        private void markVisited(Object o) {
-            map.put(o, o);
+        public Object visitorResponse() {
+            return null;
         }
     }
 
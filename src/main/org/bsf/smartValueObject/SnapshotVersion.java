@@ -0,0 +1,175 @@
+package org.bsf.smartValueObject;
+
+import java.lang.reflect.Field;
+
+/**
+ * Version keeping the original values of the modified fields, to be
+ * used as version class with <tt>SmartTask</tt>:
+ * <p><blockquote><pre>
+ * &lt;smartify versionclass="org.bsf.smartValueObject.SnapshotVersion"&gt;
+ * </pre></blockquote>
+ * <p>The first write to a field after <tt>markClean()</tt> records its
+ * original value. A field is only dirty as long as its value differs
+ * from the original, so an object edited and then changed back is clean
+ * again. Values of the types compared by the field traps are compared
+ * with <tt>equals()</tt>, others by identity.
+ * <p><tt>rollback()</tt> (or <tt>SmartAccess.rollback()</tt>) restores
+ * the original values.
+ * <p>Objects created since the last <tt>markClean()</tt>, deleted objects
+ * and modifications without a field index (e.g. inherited fields) are
+ * always dirty.
+ *
+ * @see org.bsf.smartValueObject.SmartAccess#rollback
+ */
+public class SnapshotVersion extends Version {
+    /** Marks the slots of fields which were not written to. */
+    private static final Object UNSET = new Object();
+
+    /** The object whose fields are recorded. */
+    private Object owner;
+    /**
+     * Original values by field index, null if nothing was written. Not
+     * serialized, modified fields of a deserialized object stay dirty.
+     */
+    private transient Object[] originals;
+    /** Modified without a known field, or deleted. */
+    private boolean forced;
+
+    /**
+     * Creates a version without an owner, behaving like <tt>Version</tt>.
+     */
+    public SnapshotVersion() {
+        super();
+    }
+
+    /**
+     * Creates a version recording the fields of the given object.
+     * @param o the versionable object owning this version.
+     */
+    public SnapshotVersion(Object o) {
+        super(o);
+        if (o instanceof Versionable) {
+            owner = o;
+        }
+    }
+
+    /**
+     * Records the current value of the field, called before it is
+     * overwritten.
+     */
+    public void touch(int field) {
+        if (owner != null && !isCreated()) {
+            record(field);
+        } else {
+            forced = true;
+        }
+        super.touch(field);
+    }
+
+    public void touch(String field) {
+        forced = true;
+        super.touch(field);
+    }
+
+    public void delete() {
+        forced = true;
+        super.delete();
+    }
+
+    public void create() {
+        forced = true;
+        super.create();
+    }
+
+    public boolean isDirty() {
+        if (!super.isDirty())
+            return false;
+        if (forced || originals == null)
+            return true;
+
+        for (int i = 0; i < originals.length; i++) {
+            if (originals[i] != UNSET && differs(i))
+                return true;
+        }
+        return false;
+    }
+
+    public boolean isDirty(int field) {
+        if (!super.isDirty(field))
+            return false;
+        if (forced || originals == null || field >= originals.length ||
+            originals[field] == UNSET)
+            return true;
+
+        return differs(field);
+    }
+
+    public void markClean() {
+        super.markClean();
+        originals = null;
+        forced = false;
+    }
+
+    /**
+     * Restores the original values of the modified fields and marks the
+     * version clean, keeping the version number. Fields are written
+     * directly, without touching the version again.
+     * @throws IllegalStateException if the object was created since the
+     * last <tt>markClean()</tt>, there are no original values then.
+     */
+    public void rollback() {
+        if (isCreated())
+            throw new IllegalStateException("created object, nothing to roll back to");
+
+        if (originals != null) {
+            ClassInfo info = ClassInfo.forClass(owner.getClass());
+            for (int i = 0; i < originals.length; i++) {
+                if (originals[i] != UNSET) {
+                    restore(info.getField(i), originals[i]);
+                }
+            }
+        }
+
+        long id = getVersionId();
+        markClean();
+        setVersionId(id);
+    }
+
+    private void record(int field) {
+        if (originals == null) {
+            int size = ClassInfo.forClass(owner.getClass()).getFieldNames().length;
+            originals = new Object[size];
+            for (int i = 0; i < size; i++) {
+                originals[i] = UNSET;
+            }
+        }
+
+        if (field >= originals.length) {
+            forced = true;
+        } else if (originals[field] == UNSET) {
+            originals[field] = SmartAccess.getField(owner, field);
+        }
+    }
+
+    /** Does the current value of the field differ from the original ? */
+    private boolean differs(int index) {
+        Field field = ClassInfo.forClass(owner.getClass()).getField(index);
+        Object original = originals[index];
+        Object current = SmartAccess.getField(owner, index);
+
+        if (VersionHelper.doEquals(field)) {
+            return current == null ? original != null : !current.equals(original);
+        }
+        return current != original;
+    }
+
+    private void restore(Field field, Object value) {
+        try {
+            Object current = field.get(owner);
+            field.set(owner, value);
+            VersionHelper.reparent(owner, current, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+}
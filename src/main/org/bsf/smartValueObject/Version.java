@@ -1,18 +1,62 @@
 package org.bsf.smartValueObject;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectInputValidation;
+
 /**
  * Concrete default implementation of <tt>Versionable</tt>.
- * <p>Versioning is done with timestamping.
+ * <p>Each time the object is marked clean it gets a new version number
+ * from the <tt>VersionIdGenerator</tt> set with <tt>setIdGenerator()</tt>.
+ * Modified fields are recorded in a bitmask, indexed as assigned by the
+ * instrumentor.
  */
 public class Version implements Versionable  {
-    private long timestamp;
+    /** Generator for all version numbers. */
+    private static volatile VersionIdGenerator idGenerator =
+            VersionIdGenerators.COUNTER;
+
+    private long versionId;
     private boolean dirty;
+    /** Modified fields with an index below 64. */
+    private long dirtyFields;
+    /** Modified fields from index 64 onwards, allocated on demand. */
+    private long[] moreDirtyFields;
+    /** Has this object or one of its children been modified ? */
+    private boolean graphDirty;
+    /** The versionable object this version belongs to. */
+    private Versionable owner = this;
+    /**
+     * Objects referencing the owner, null if none. Not serialized, the
+     * links are restored once the whole graph has been read.
+     */
+    private transient Versionable[] parents;
     private boolean created;
     private boolean deleted;
     private final boolean debug = false;
 
     /**
-     * Creates a clean version. Timestamp is set to current time.
+     * Sets the generator used for new version numbers, e.g.
+     * <tt>VersionIdGenerators.CLOCK</tt> or a server assigned sequence.
+     * Applies to all versions from now on.
+     * @param generator the generator to use.
+     * @see org.bsf.smartValueObject.VersionIdGenerators
+     */
+    public static void setIdGenerator(VersionIdGenerator generator) {
+        if (generator == null)
+            throw new IllegalArgumentException("generator must not be null");
+        idGenerator = generator;
+    }
+
+    /**
+     * @return the generator used for new version numbers.
+     */
+    public static VersionIdGenerator getIdGenerator() {
+        return idGenerator;
+    }
+
+    /**
+     * Creates a clean version with a new version number.
      */
     public Version() {
         markClean();
@@ -20,11 +64,15 @@ public class Version implements Versionable  {
     }
 
     /**
-     * No specific purpose constructor, needed to satisfy a javassist requirement.
-     * @param o ignored
+     * Creates a version for the given object. The object is handed
+     * to parents when propagating modifications.
+     * @param o the versionable object owning this version.
      */
     public Version(Object o) {
         this();
+        if (o instanceof Versionable) {
+            owner = (Versionable) o;
+        }
     }
 
     public void touch() {
@@ -34,20 +82,110 @@ public class Version implements Versionable  {
     public void touch(String field) {
         if (debug)
         System.out.println("touched (" + field + ") @ " +
-                this.timestamp);
-        dirty = true;
+                this.versionId);
+        changed();
+    }
+
+    public void touch(int field) {
+        if (field < 64) {
+            dirtyFields |= 1L << field;
+        } else {
+            touchMore(field);
+        }
+        changed();
+        VersionEvents.fieldWritten(owner, field);
+    }
+
+    /**
+     * Records a modified field which doesn't fit in the first bitmask.
+     * @param field index of the field, at least 64.
+     */
+    private void touchMore(int field) {
+        int slot = (field >> 6) - 1;
+        if (moreDirtyFields == null) {
+            moreDirtyFields = new long[slot + 1];
+        } else if (moreDirtyFields.length <= slot) {
+            long[] a = new long[slot + 1];
+            System.arraycopy(moreDirtyFields, 0, a, 0, moreDirtyFields.length);
+            moreDirtyFields = a;
+        }
+        moreDirtyFields[slot] |= 1L << (field & 63);
     }
 
     public void delete() {
         deleted = true;
         created = false;
-        dirty = true;
+        changed();
     }
 
     public void create() {
         deleted = false;
         created = true;
-        dirty = true;
+        changed();
+    }
+
+    /**
+     * Marks the object as dirty and tells the parents about it. Parents
+     * are only notified the first time the object becomes dirty, or its
+     * graph becomes dirty.
+     */
+    private void changed() {
+        boolean notify = !dirty || !graphDirty;
+        dirty = graphDirty = true;
+        if (notify) {
+            notifyParents();
+        }
+    }
+
+    private void notifyParents() {
+        if (parents == null)
+            return;
+
+        for (int i = 0; i < parents.length; i++) {
+            parents[i].touchGraph(owner);
+        }
+    }
+
+    public void addParent(Versionable parent) {
+        if (parent == null || parent == owner)
+            return;
+
+        parents = VersionHelper.addParent(parents, parent);
+        if (graphDirty) {
+            parent.touchGraph(owner);
+        }
+    }
+
+    public void removeParent(Versionable parent) {
+        parents = VersionHelper.removeParent(parents, parent);
+    }
+
+    /** @return the objects referencing the owner, null if none. */
+    Versionable[] getParents() {
+        return parents;
+    }
+
+    public void touchGraph(Versionable child) {
+        if (!graphDirty) {
+            graphDirty = true;
+            notifyParents();
+        }
+    }
+
+    public boolean isGraphDirty() {
+        return graphDirty;
+    }
+
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (owner != this && VersionHelper.isDirtyPropagation()) {
+            in.registerValidation(new ObjectInputValidation() {
+                public void validateObject() {
+                    VersionHelper.relinkChildren(owner);
+                }
+            }, 0);
+        }
     }
 
     public boolean isCreated() {
@@ -62,27 +200,39 @@ public class Version implements Versionable  {
         return dirty;
     }
 
+    public boolean isDirty(int field) {
+        if (field < 64) {
+            return (dirtyFields & (1L << field)) != 0;
+        }
+        int slot = (field >> 6) - 1;
+        return moreDirtyFields != null &&
+               slot < moreDirtyFields.length &&
+               (moreDirtyFields[slot] & (1L << (field & 63))) != 0;
+    }
+
     public void markClean() {
-        deleted = dirty = created = false;
-        this.timestamp = System.currentTimeMillis();
+        deleted = dirty = created = graphDirty = false;
+        dirtyFields = 0;
+        moreDirtyFields = null;
+        this.versionId = idGenerator.nextId();
     }
 
     /**
      * Gets the version number.
      */
     public long getVersionId() {
-        return timestamp;
+        return versionId;
     }
 
     /**
      * Sets the version number
      */
     public void setVersionId(long id) {
-        this.timestamp = id;
+        this.versionId = id;
     }
 
     public String toString() {
-        return "Version [timestamp: " + this.timestamp +
+        return "Version [id: " + this.versionId +
                 " dirty:"   + (dirty   ? "yes" : "no") +
                 " created:" + (created ? "yes" : "no") +
                 " deleted:" + (deleted ? "yes" : "no") +
@@ -0,0 +1,89 @@
+package org.bsf.smartValueObject;
+
+import java.util.EventObject;
+
+/**
+ * A modification of a versionable object or a smart container. The
+ * source is the modified object or container.
+ *
+ * @see org.bsf.smartValueObject.VersionEvents
+ */
+public class VersionEvent extends EventObject {
+    /** A field of the source has been written to. */
+    public static final int FIELD   = 0;
+    /** An element has been added to the source container. */
+    public static final int ADDED   = 1;
+    /** An element has been removed from the source container. */
+    public static final int REMOVED = 2;
+
+    private final int type;
+    private final int field;
+    private final Object key;
+    private final Object element;
+
+    /**
+     * Creates a new event.
+     * @param source the modified object.
+     * @param type FIELD, ADDED or REMOVED.
+     * @param field index of the field for FIELD events, -1 otherwise.
+     * @param key key of the element in a map, null otherwise.
+     * @param element the element for ADDED and REMOVED events.
+     */
+    public VersionEvent(Object source, int type, int field, Object key, Object element) {
+        super(source);
+        this.type = type;
+        this.field = field;
+        this.key = key;
+        this.element = element;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Gets the index of the field written to.
+     * @return the index, -1 if this isn't a FIELD event.
+     * @see org.bsf.smartValueObject.SmartAccess#fieldNames
+     */
+    public int getField() {
+        return field;
+    }
+
+    /**
+     * Gets the name of the field written to.
+     * @return the name, null if this isn't a FIELD event.
+     */
+    public String getFieldName() {
+        if (field < 0)
+            return null;
+
+        String[] names = ClassInfo.forClass(getSource().getClass()).getFieldNames();
+        return field < names.length ? names[field] : null;
+    }
+
+    /**
+     * Gets the key of the added or removed element.
+     * @return the key, null unless the source is a map.
+     */
+    public Object getKey() {
+        return key;
+    }
+
+    /**
+     * Gets the added or removed element.
+     */
+    public Object getElement() {
+        return element;
+    }
+
+    public String toString() {
+        String what;
+        switch (type) {
+            case FIELD:   what = "field " + getFieldName(); break;
+            case ADDED:   what = "added " + element; break;
+            default:      what = "removed " + element; break;
+        }
+        return "VersionEvent [" + what + " on " + getSource() + "]";
+    }
+}
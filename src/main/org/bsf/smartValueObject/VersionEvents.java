@@ -0,0 +1,209 @@
+package org.bsf.smartValueObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dispatches modifications of versionable objects and smart containers
+ * to the registered <tt>VersionListener</tt>s.
+ * <p>Outside of a batch every event is dispatched as soon as it is
+ * reported, for a field before the new value is stored. Within a
+ * <tt>begin()</tt>/<tt>end()</tt> pair (e.g. around a UI action) the
+ * events are queued per thread and dispatched when the outermost pair
+ * ends, <tt>flush()</tt> is called or the queue reaches the batch size.
+ * Listeners then see the new values of the fields written to.
+ * <p>As long as no listener is registered, reporting a modification
+ * costs a single check and allocates nothing.
+ * <p><blockquote><pre>
+ * VersionEvents.begin();
+ * try {
+ *     company.setName("foo");
+ *     company.addSubsidiary(subsidiary);
+ * } finally {
+ *     VersionEvents.end(); // listeners get both events
+ * }
+ * </pre></blockquote>
+ *
+ * @see org.bsf.smartValueObject.VersionListener
+ */
+public class VersionEvents {
+    /** Registered listeners, replaced on every change. */
+    private static volatile VersionListener[] listeners = new VersionListener[0];
+    /** Is at least one listener registered ? */
+    private static volatile boolean active = false;
+    /** Number of queued events forcing a dispatch. */
+    private static volatile int batchSize = 1000;
+    /** The <tt>Batch</tt> of the current thread. */
+    private static final ThreadLocal batch = new ThreadLocal() {
+        protected Object initialValue() {
+            return new Batch();
+        }
+    };
+
+    private VersionEvents() {
+    }
+
+    /**
+     * Registers a listener for the modifications of all objects.
+     * @param listener the listener to add.
+     */
+    public static synchronized void addListener(VersionListener listener) {
+        if (listener == null)
+            throw new IllegalArgumentException("listener must not be null");
+
+        VersionListener[] a = new VersionListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, a, 0, listeners.length);
+        a[listeners.length] = listener;
+        listeners = a;
+        active = true;
+    }
+
+    /**
+     * Unregisters a listener. Events queued before are no longer
+     * dispatched to it.
+     * @param listener the listener to remove.
+     */
+    public static synchronized void removeListener(VersionListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                VersionListener[] a = new VersionListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, a, 0, i);
+                System.arraycopy(listeners, i + 1, a, i, a.length - i);
+                listeners = a;
+                active = a.length > 0;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Are modifications reported at the moment ?
+     * @return true if a listener is registered.
+     */
+    public static boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Sets the number of queued events after which they are dispatched
+     * without waiting for <tt>flush()</tt> or <tt>end()</tt>.
+     * @param size at least 1.
+     */
+    public static void setBatchSize(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("batch size must be at least 1");
+        batchSize = size;
+    }
+
+    public static int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Starts a batch on the current thread, the events are dispatched
+     * when the outermost batch ends. Batches may be nested.
+     */
+    public static void begin() {
+        ((Batch) batch.get()).depth++;
+    }
+
+    /**
+     * Ends a batch started with <tt>begin()</tt>, dispatching the queued
+     * events if it is the outermost one.
+     * @throws IllegalStateException if no batch was started.
+     */
+    public static void end() {
+        Batch b = (Batch) batch.get();
+        if (b.depth == 0)
+            throw new IllegalStateException("no batch started");
+
+        if (--b.depth == 0) {
+            dispatch(b);
+        }
+    }
+
+    /**
+     * Dispatches the events queued by the current thread, even within a
+     * batch.
+     */
+    public static void flush() {
+        dispatch((Batch) batch.get());
+    }
+
+    /**
+     * Reports a write to a field of a versionable object. Called by the
+     * versions, before the value is stored.
+     * @param source the versionable object.
+     * @param field index of the field.
+     */
+    public static void fieldWritten(Object source, int field) {
+        if (!active)
+            return;
+
+        post(new VersionEvent(source, VersionEvent.FIELD, field, null, null));
+    }
+
+    /**
+     * Reports an element added to a smart container.
+     * @param container the smart container.
+     * @param key the key of the element in a map, null otherwise.
+     * @param element the element.
+     */
+    public static void added(Object container, Object key, Object element) {
+        if (!active)
+            return;
+
+        post(new VersionEvent(container, VersionEvent.ADDED, -1, key, element));
+    }
+
+    /**
+     * Reports an element removed from a smart container.
+     * @param container the smart container.
+     * @param key the key of the element in a map, null otherwise.
+     * @param element the element.
+     */
+    public static void removed(Object container, Object key, Object element) {
+        if (!active)
+            return;
+
+        post(new VersionEvent(container, VersionEvent.REMOVED, -1, key, element));
+    }
+
+    private static void post(VersionEvent event) {
+        Batch b = (Batch) batch.get();
+        if (b.depth == 0) {
+            dispatch(new VersionEvent[] { event });
+            return;
+        }
+
+        // dispatched before queueing the new event, whose value
+        // may not be stored yet
+        if (b.events.size() >= batchSize) {
+            dispatch(b);
+        }
+        b.events.add(event);
+    }
+
+    private static void dispatch(Batch b) {
+        if (b.events.isEmpty())
+            return;
+
+        VersionEvent[] events = (VersionEvent[])
+                b.events.toArray(new VersionEvent[b.events.size()]);
+        b.events.clear();
+        dispatch(events);
+    }
+
+    private static void dispatch(VersionEvent[] events) {
+        VersionListener[] l = listeners;
+        for (int i = 0; i < l.length; i++) {
+            l[i].versionChanged(events);
+        }
+    }
+
+    /** Queued events and batch nesting of a thread. */
+    private static class Batch {
+        private final List events = new ArrayList();
+        private int depth = 0;
+    }
+}
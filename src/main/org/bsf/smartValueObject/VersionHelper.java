@@ -1,6 +1,7 @@
 package org.bsf.smartValueObject;
 
 import java.lang.reflect.Field;
+import java.util.Iterator;
 
 /**
  * Helper class to be used by versionable objects. Used
@@ -8,6 +9,8 @@ import java.lang.reflect.Field;
  * class to allow for easy customization.
  */
 public class VersionHelper {
+    /** Are parents notified about modifications of their children ? */
+    private static volatile boolean dirtyPropagation = false;
 
     /**
      * Checks if the equals method should be performed before writing
@@ -28,4 +31,101 @@ public class VersionHelper {
                 type.equals("java.math.BigInteger") ||
                 field.getType().isPrimitive());
     }
+
+    /**
+     * Enables or disables the propagation of modifications to parent
+     * objects. Only affects links made after the call.
+     * @param enabled true to link children to their parents.
+     * @see org.bsf.smartValueObject.SmartAccess#setDirtyPropagation
+     */
+    public static void setDirtyPropagation(boolean enabled) {
+        dirtyPropagation = enabled;
+    }
+
+    /**
+     * Is dirty propagation enabled ?
+     */
+    public static boolean isDirtyPropagation() {
+        return dirtyPropagation;
+    }
+
+    /**
+     * Updates the parent links when a reference field of a versionable
+     * object is assigned. Called by the field traps.
+     *
+     * @param parent the object declaring the field.
+     * @param oldChild the previous value of the field.
+     * @param newChild the new value of the field.
+     */
+    public static void reparent(Object parent, Object oldChild, Object newChild) {
+        if (!dirtyPropagation || oldChild == newChild ||
+            !(parent instanceof Versionable))
+            return;
+
+        Versionable p = (Versionable) parent;
+        if (oldChild instanceof Versionable) {
+            ((Versionable) oldChild).removeParent(p);
+        }
+        if (newChild instanceof Versionable) {
+            ((Versionable) newChild).addParent(p);
+        }
+    }
+
+    /**
+     * Links the versionable children of an object to it again, after
+     * the object has been deserialized.
+     * @param parent the versionable object.
+     */
+    static void relinkChildren(Object parent) {
+        Versionable p = (Versionable) parent;
+        for (Iterator it = SmartAccess.getVersionables(parent); it.hasNext(); ) {
+            ((Versionable) it.next()).addParent(p);
+        }
+    }
+
+    /**
+     * Adds a parent to an array of parents, unless already present.
+     * @param parents the current parents, may be null.
+     * @param parent the parent to add.
+     * @return the new array of parents.
+     */
+    public static Versionable[] addParent(Versionable[] parents, Versionable parent) {
+        if (parents == null) {
+            return new Versionable[] { parent };
+        }
+
+        for (int i = 0; i < parents.length; i++) {
+            if (parents[i] == parent)
+                return parents;
+        }
+
+        Versionable[] a = new Versionable[parents.length + 1];
+        System.arraycopy(parents, 0, a, 0, parents.length);
+        a[parents.length] = parent;
+        return a;
+    }
+
+    /**
+     * Removes a parent from an array of parents.
+     * @param parents the current parents, may be null.
+     * @param parent the parent to remove.
+     * @return the new array of parents, null if empty.
+     */
+    public static Versionable[] removeParent(Versionable[] parents, Versionable parent) {
+        if (parents == null)
+            return null;
+
+        for (int i = 0; i < parents.length; i++) {
+            if (parents[i] == parent) {
+                if (parents.length == 1)
+                    return null;
+
+                Versionable[] a = new Versionable[parents.length - 1];
+                System.arraycopy(parents, 0, a, 0, i);
+                System.arraycopy(parents, i + 1, a, i, a.length - i);
+                return a;
+            }
+        }
+        return parents;
+    }
 }
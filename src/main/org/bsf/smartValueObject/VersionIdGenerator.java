@@ -0,0 +1,17 @@
+package org.bsf.smartValueObject;
+
+/**
+ * Source of version numbers, used by <tt>Version</tt> whenever an
+ * object is marked clean. Implementations must be thread safe and
+ * never return the same id twice.
+ *
+ * @see org.bsf.smartValueObject.VersionIdGenerators
+ * @see org.bsf.smartValueObject.Version#setIdGenerator
+ */
+public interface VersionIdGenerator {
+    /**
+     * Gets a new version number.
+     * @return an id not returned before.
+     */
+    long nextId();
+}
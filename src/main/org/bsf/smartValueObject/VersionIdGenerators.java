@@ -0,0 +1,75 @@
+package org.bsf.smartValueObject;
+
+/**
+ * A helper class providing implementations of
+ * <tt>VersionIdGenerator</tt>.
+ * <p>A server assigned sequence can be used by implementing
+ * <tt>VersionIdGenerator</tt> and registering it with
+ * <tt>Version.setIdGenerator()</tt>.
+ *
+ * @see org.bsf.smartValueObject.VersionIdGenerator
+ * @see org.bsf.smartValueObject.Version
+ */
+public class VersionIdGenerators {
+    /**
+     * Counter handing out blocks of ids to each thread, so that ids are
+     * mostly taken without synchronization. The counter starts at the
+     * time of class loading shifted by 20 bits, so ids of a later run
+     * are greater than those of an earlier one unless more than a
+     * million ids per millisecond were used on average. Ids are unique,
+     * but only increasing within a thread.
+     * <p>This is the default generator.
+     */
+    public static final VersionIdGenerator COUNTER = new BlockCounter(1024);
+
+    /**
+     * Timestamp based ids, the current time in milliseconds unless that
+     * id was already used, in which case the last id plus one is taken.
+     * Ids are increasing and stay close to the clock, as the
+     * timestamps used before.
+     */
+    public static final VersionIdGenerator CLOCK =
+        new VersionIdGenerator() {
+            private long last = 0;
+
+            public synchronized long nextId() {
+                long now = System.currentTimeMillis();
+                last = (now > last) ? now : last + 1;
+                return last;
+            }
+        };
+
+    /**
+     * Hands out ids from a shared counter in blocks, kept per thread.
+     */
+    private static class BlockCounter implements VersionIdGenerator {
+        private final int blockSize;
+        /** Start of the next free block. */
+        private long next = System.currentTimeMillis() << 20;
+        /** The block of the current thread, as {next id, end}. */
+        private final ThreadLocal block = new ThreadLocal() {
+            protected Object initialValue() {
+                return new long[] { 0, 0 };
+            }
+        };
+
+        BlockCounter(int blockSize) {
+            this.blockSize = blockSize;
+        }
+
+        public long nextId() {
+            long[] b = (long[]) block.get();
+            if (b[0] == b[1]) {
+                b[0] = reserve();
+                b[1] = b[0] + blockSize;
+            }
+            return b[0]++;
+        }
+
+        private synchronized long reserve() {
+            long start = next;
+            next += blockSize;
+            return start;
+        }
+    }
+}
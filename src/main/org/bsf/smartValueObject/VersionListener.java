@@ -0,0 +1,18 @@
+package org.bsf.smartValueObject;
+
+import java.util.EventListener;
+
+/**
+ * Receives the modifications of versionable objects and smart
+ * containers, in batches.
+ *
+ * @see org.bsf.smartValueObject.VersionEvents
+ */
+public interface VersionListener extends EventListener {
+    /**
+     * Called when a batch of events is dispatched, on the thread which
+     * made the modifications.
+     * @param events the events in the order they happened, not empty.
+     */
+    void versionChanged(VersionEvent[] events);
+}
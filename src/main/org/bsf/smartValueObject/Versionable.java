@@ -17,6 +17,16 @@ public interface Versionable extends java.io.Serializable {
      */
     void touch(String field);
 
+    /**
+     * Touches the object, detailling the index of the field which has been
+     * accessed. Indices are assigned by the instrumentor, following the
+     * order of <tt>Instrumentor.FIELDNAMES</tt>. Called before the new value
+     * is stored, so the field still holds the previous value.
+     * @param field index of the field which was touched
+     * @see org.bsf.smartValueObject.tools.Instrumentor#FIELDNAMES
+     */
+    void touch(int field);
+
     /**
      * Mark object for deletion.
      */
@@ -42,11 +52,44 @@ public interface Versionable extends java.io.Serializable {
      */
     boolean isDirty();
 
+    /**
+     * Has the field with the given index been written to ?
+     * @param field index of the field
+     */
+    boolean isDirty(int field);
+
     /**
      * Resets flags.
      */
     void markClean();
 
+    /**
+     * Registers an object holding a reference to this one. Parents are
+     * notified through <tt>touchGraph</tt> whenever this object or one
+     * of its own children changes.
+     * @param parent the referencing object
+     * @see org.bsf.smartValueObject.SmartAccess#setDirtyPropagation
+     */
+    void addParent(Versionable parent);
+
+    /**
+     * Unregisters a parent.
+     * @param parent the object which no longer references this one
+     */
+    void removeParent(Versionable parent);
+
+    /**
+     * Signals that an object in the graph below this one has changed.
+     * @param child the child which reports the change
+     */
+    void touchGraph(Versionable child);
+
+    /**
+     * Has this object or an object below it changed ? Only reliable
+     * when dirty propagation has been enabled before the graph was built.
+     */
+    boolean isGraphDirty();
+
     /**
      * Gets the version number.
      */
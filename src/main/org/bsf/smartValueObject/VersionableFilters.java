@@ -57,6 +57,17 @@ public class VersionableFilters {
             }
         };
 
+    /**
+     * Get objects which have been modified, or have modified objects
+     * below them.
+     */
+    public static final VersionableFilter GRAPHDIRTY =
+        new VersionableFilter() {
+            public boolean accept(Versionable v) {
+                return v.isDirty() || v.isGraphDirty();
+            }
+        };
+
     /**
      * Gets smart container objects.
      */
@@ -1,30 +1,99 @@
 package org.bsf.smartValueObject.container;
 
+import org.bsf.smartValueObject.SmartAccess;
+import org.bsf.smartValueObject.VersionEvents;
 import org.bsf.smartValueObject.Versionable;
 import org.bsf.smartValueObject.VersionableFilters;
+import org.bsf.smartValueObject.VersionHelper;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectInputValidation;
+import java.util.Collection;
 import java.util.Iterator;
 
 /**
  * Skeleton implementation of a versionable container. All other
  * container should extend this to avoid code duplication.
+ * <p>Created, deleted and modified elements are recorded in journals,
+ * so they can be found without scanning the whole container.
+ * <p>Removed elements leave the underlying container. Those which have
+ * to be deleted from the backend stay in the journal of deleted elements
+ * (with their key for maps) until the container is marked clean, so the
+ * underlying container only holds the elements seen by the application.
+ * An element added again is taken out of that journal and gets back the
+ * state it had before its removal.
  *
  * @see org.bsf.smartValueObject.container.SmartContainer
  */
 public abstract class AbstractSmartContainer implements SmartContainer, Versionable {
+    /** Flag of a deleted element which was dirty before its removal. */
+    private static final int WASDIRTY = 1;
+    /** Flag of a deleted element whose graph was dirty before its removal. */
+    private static final int WASGRAPHDIRTY = 2;
     /** The version instance for this container. */
     private Versionable version;
-    /** Number of created objects. */
-    private int created = 0;
-    /** Number of deleted objects. */
-    private int deleted = 0;
+    /** Created objects. */
+    private ChangeJournal created = new ChangeJournal();
+    /** Deleted objects, with their keys in maps. */
+    private ChangeJournal deleted = new ChangeJournal();
+    /** Objects which reported a modification. */
+    private ChangeJournal modified = new ChangeJournal();
+    /** Objects referencing this container, null if none. Not serialized. */
+    private transient Versionable[] parents;
+    /** Has this container or one of its elements been modified ? */
+    private boolean graphDirty = false;
+    /** Do elements get this container as parent ? */
+    private final boolean linkElements;
 
     /**
      * Initialize the container with a version.
+     * <p>The container becomes the parent of its elements, to be told
+     * about their modifications, unless it's a view sharing the version
+     * of another container. Views scan their elements instead.
      * @param v the version object to use.
      */
     public AbstractSmartContainer(Versionable v) {
         this.version = v;
+        this.linkElements = !(v instanceof SmartContainer);
+    }
+
+    /**
+     * Links the elements already present in the underlying container
+     * to this container. To be called by subclasses once the underlying
+     * container is set.
+     */
+    protected void adoptElements() {
+        if (!linkElements)
+            return;
+
+        for (Iterator it = containerIterator(); it.hasNext(); ) {
+            adopt(it.next());
+        }
+    }
+
+    /**
+     * Makes this container the parent of the given element.
+     * @param o the element.
+     */
+    private void adopt(Object o) {
+        if (linkElements && o instanceof Versionable) {
+            ((Versionable) o).addParent(this);
+        }
+    }
+
+    /**
+     * Removes all traces of an element which is about to be physically
+     * removed from this container.
+     * @param o the element.
+     */
+    private void forget(Object o) {
+        created.remove(o);
+        deleted.remove(o);
+        modified.remove(o);
+        if (linkElements && o instanceof Versionable) {
+            ((Versionable) o).removeParent(this);
+        }
     }
 
     /**
@@ -104,25 +173,114 @@ public abstract class AbstractSmartContainer implements SmartContainer, Versiona
      */
     protected abstract Object[] toObjectArray();
 
+    /**
+     * Records an element added to the container: it's journaled as
+     * created if it is new, undeleted if it was removed before, linked to
+     * this container and reported to the listeners. The container itself
+     * isn't touched, so bulk operations can do it once.
+     * @param key the key of the element in a map, null otherwise.
+     * @param o the element.
+     * @return true if the element is versionable, the container has to
+     * be touched then.
+     */
+    protected boolean elementAdded(Object key, Object o) {
+        VersionEvents.added(this, key, o);
+        if (!(o instanceof Versionable))
+            return false;
+
+        Versionable v = (Versionable) o;
+        if (v.isCreated()) {
+            created.add(o);
+        } else if (deleted.contains(o)) {
+            int flags = deleted.getFlags(o);
+            deleted.remove(o);
+            undelete(v, flags);
+        }
+        adopt(o);
+        return true;
+    }
+
+    /**
+     * Records an element removed from the underlying container. Created
+     * elements are forgotten, other versionable elements are marked
+     * deleted and kept in the journal of deleted elements. The container
+     * itself isn't touched, so bulk operations can do it once.
+     * @param key the key of the element in a map, null otherwise.
+     * @param o the element.
+     * @return true if the element was marked deleted, the container has
+     * to be touched then.
+     */
+    protected boolean elementRemoved(Object key, Object o) {
+        VersionEvents.removed(this, key, o);
+        if (!(o instanceof Versionable))
+            return false;
+
+        Versionable v = (Versionable) o;
+        if (v.isCreated()) {
+            forget(o);
+            return false;
+        }
+        int flags = (v.isDirty() ? WASDIRTY : 0) |
+                    (v.isGraphDirty() ? WASGRAPHDIRTY : 0);
+        v.delete();
+        modified.remove(o);
+        deleted.add(o, key, flags);
+        return true;
+    }
+
+    /**
+     * Gives a removed element back the state it had before it was marked
+     * deleted: its version id, its dirty fields and its dirty flags.
+     * @param v the element.
+     * @param flags the flags recorded on removal.
+     */
+    private static void undelete(Versionable v, int flags) {
+        if (v instanceof SmartContainer)
+            return; // containers ignore delete()
+
+        long id = v.getVersionId();
+        int n = SmartAccess.fieldNames(v).length;
+        boolean[] dirtyFields = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            dirtyFields[i] = v.isDirty(i);
+        }
+
+        v.markClean();
+        v.setVersionId(id);
+        for (int i = 0; i < n; i++) {
+            if (dirtyFields[i])
+                v.touch(i);
+        }
+        if ((flags & WASDIRTY) != 0 && !v.isDirty()) {
+            v.touch();
+        }
+        if ((flags & WASGRAPHDIRTY) != 0 && !v.isGraphDirty()) {
+            v.touchGraph(v);
+        }
+    }
+
+    /**
+     * Gets the key a deleted element had in this container.
+     * @param o the element.
+     * @return the key, null if the element isn't deleted or had no key.
+     */
+    protected Object getDeletedKey(Object o) {
+        return deleted.getKey(o);
+    }
+
     /**
      * Removes object while respecting versioning.
      * @param o the object to be removed.
      * @return
      */
     protected boolean removeObject(Object o) {
-        if (o instanceof Versionable) {
-            Versionable v = (Versionable) o;
-            if (v.isCreated()) {
-                created--;
-                return removeFromContainer(o);
-            }
-            v.delete();
-            deleted++;
+        if (!removeFromContainer(o))
+            return false;
+
+        if (elementRemoved(null, o)) {
             touch();
-            return true;
-        } else {
-           return removeFromContainer(o);
         }
+        return true;
     }
 
     /**
@@ -131,58 +289,136 @@ public abstract class AbstractSmartContainer implements SmartContainer, Versiona
      * @return
      */
     protected Object removeObjectByKey(Object key) {
-        Object o = getFromContainer(key);
-        if (o == null) {
-            // nop
-        } else if (o instanceof Versionable) {
-            Versionable v = (Versionable) o;
-            if (v.isCreated()) {
-                created--;
-                return removeKeyFromContainer(key);
-            }
-            v.delete();
-            deleted++;
+        if (!containerContainsKey(key))
+            return null;
+
+        Object o = removeKeyFromContainer(key);
+        if (!holdsElsewhere(o) && elementRemoved(key, o)) {
             touch();
-        } else {
-            return removeKeyFromContainer(key);
         }
         return o;
     }
 
+    /**
+     * Is an element which just lost a key still stored under another one ?
+     * Containers able to tell cheaply override this, the element is
+     * removed otherwise.
+     * @param o the element.
+     * @return true if the element is still in the container.
+     */
+    protected boolean holdsElsewhere(Object o) {
+        return false;
+    }
+
     /**
      * Adds object w/ versioning.
      * @param o
      * @return
      */
     protected boolean addObject(Object o) {
-        if (o instanceof Versionable) {
-            Versionable v = (Versionable) o;
-
-            // v.create();
-            if (v.isCreated())
-                created++;
-
+        boolean added = addToContainer(o);
+        if (added && elementAdded(null, o)) {
             touch();
         }
-        return addToContainer(o);
+        return added;
     }
 
     /**
-     * Add object via key, w/ versioning.
+     * Add object via key, w/ versioning. A replaced element is removed
+     * like with <tt>removeObjectByKey()</tt>, putting the same element
+     * again changes nothing.
      * @param key
      * @param o
      * @return
      */
     protected Object addObject(Object key, Object o) {
-        if (o instanceof Versionable) {
-            Versionable v = (Versionable) o;
-            //v.create();
-            if (v.isCreated())
-                created++;
+        Object old = addToContainer(key, o);
+        if (old != null && old == o)
+            return old;
 
+        if (elementReplaced(key, old, o)) {
             touch();
         }
-        return addToContainer(key, o);
+        return old;
+    }
+
+    /**
+     * Records an element replacing another one under the same key.
+     * @param key the key of the elements.
+     * @param old the replaced element, null if none.
+     * @param o the new element.
+     * @return true if the container has to be touched.
+     * @see #elementRemoved
+     * @see #elementAdded
+     */
+    protected boolean elementReplaced(Object key, Object old, Object o) {
+        boolean touch = false;
+        if (old != null && old != o && !holdsElsewhere(old)) {
+            touch = elementRemoved(key, old);
+        }
+        return elementAdded(key, o) | touch;
+    }
+
+    /**
+     * Adds all elements of a collection w/ versioning, touching the
+     * container once.
+     * @param c the elements to add.
+     * @return true if the container changed.
+     */
+    protected boolean addObjects(Collection c) {
+        boolean changed = false;
+        boolean touch = false;
+        for (Iterator it = c.iterator(); it.hasNext(); ) {
+            Object o = it.next();
+            if (addToContainer(o)) {
+                changed = true;
+                touch |= elementAdded(null, o);
+            }
+        }
+        if (touch) {
+            touch();
+        }
+        return changed;
+    }
+
+    /**
+     * Removes the elements which are (or are not) contained in the given
+     * collection w/ versioning, touching the container once.
+     * @param c the elements to check.
+     * @param contained remove the contained elements if true, the others
+     * if false.
+     * @return true if the container changed.
+     */
+    protected boolean removeObjects(Collection c, boolean contained) {
+        boolean changed = false;
+        boolean touch = false;
+        for (Iterator it = containerIterator(); it.hasNext(); ) {
+            Object o = it.next();
+            if (c.contains(o) != contained)
+                continue;
+
+            it.remove();
+            touch |= elementRemoved(null, o);
+            changed = true;
+        }
+        if (touch) {
+            touch();
+        }
+        return changed;
+    }
+
+    /**
+     * Checks if container has all elements of a collection, respects
+     * versioning.
+     * @param c
+     * @return
+     */
+    protected boolean containsObjects(Collection c) {
+        for (Iterator it = c.iterator(); it.hasNext(); ) {
+            if (!containsObject(it.next()))
+                return false;
+        }
+        return true;
     }
 
     /**
@@ -192,15 +428,7 @@ public abstract class AbstractSmartContainer implements SmartContainer, Versiona
      * @return
      */
     protected boolean containsObject(Object o) {
-        if (containerContains(o)) {
-            if (o instanceof Versionable) {
-                return !((Versionable) o).isDeleted();
-            } else {
-                return true;
-            }
-        } else {
-            return false;
-        }
+        return containerContains(o);
     }
 
     /**
@@ -240,16 +468,7 @@ public abstract class AbstractSmartContainer implements SmartContainer, Versiona
      * @see java.util.Map#containsValue
      */
     public boolean containsKey(Object key) {
-        if (!containerContainsKey(key)) {
-            return false;
-        }
-
-        Object o = getFromContainer(key);
-        if (o instanceof Versionable) {
-            return !((Versionable) o).isDeleted();
-        } else {
-            return true;
-        }
+        return containerContainsKey(key);
     }
 
     /**
@@ -269,9 +488,13 @@ public abstract class AbstractSmartContainer implements SmartContainer, Versiona
      * @see java.util.Map#clear
      */
     public void clear() {
-        Iterator it = containerIterator();
-        while (it.hasNext()) {
-            removeObject(it.next());
+        boolean touch = false;
+        for (Iterator it = containerIterator(); it.hasNext(); ) {
+            touch |= elementRemoved(null, it.next());
+        }
+        containerClear();
+        if (touch) {
+            touch();
         }
     }
 
@@ -282,7 +505,7 @@ public abstract class AbstractSmartContainer implements SmartContainer, Versiona
      * @see java.util.Map#isEmpty
      */
     public boolean isEmpty() {
-        return (containerSize()-getDeleted() == 0);
+        return containerSize() == 0;
     }
 
     /**
@@ -303,15 +526,7 @@ public abstract class AbstractSmartContainer implements SmartContainer, Versiona
      * @see java.util.Map#get
      */
     public Object get(Object key) {
-        Object o = getFromContainer(key);
-        if (o == null)
-            return null;
-
-        if (o instanceof Versionable) {
-            return ((Versionable) o).isDeleted() ? null : o;
-        } else {
-            return o;
-        }
+        return getFromContainer(key);
     }
 
     /**
@@ -320,18 +535,7 @@ public abstract class AbstractSmartContainer implements SmartContainer, Versiona
      * @see java.util.Collection#toArray
      */
     public Object[] toArray() {
-        Object[] a = toObjectArray();
-        Object[] b = new Object[size()];
-
-        for (int i = 0,j = 0; i < a.length; i++) {
-            Object o = a[i];
-            if (o instanceof Versionable) {
-                if (((Versionable) o).isDeleted())
-                    continue;
-            }
-            b[j++] = a[i];
-        }
-        return b;
+        return toObjectArray();
     }
 
     /**
@@ -356,11 +560,29 @@ public abstract class AbstractSmartContainer implements SmartContainer, Versiona
 
     //- SmartContainer
     public int getCreated() {
-        return created;
+        return created.size();
     }
 
     public int getDeleted() {
-        return deleted;
+        return deleted.size();
+    }
+
+    public Iterator getCreatedIterator() {
+        if (!linkElements)
+            return new SmartIterator(containerIterator(), VersionableFilters.CREATED);
+
+        return new SmartIterator(created.iterator(), VersionableFilters.CREATED);
+    }
+
+    public Iterator getDeletedIterator() {
+        return new SmartIterator(deleted.iterator(), VersionableFilters.DELETED);
+    }
+
+    public Iterator getModifiedIterator() {
+        if (!linkElements)
+            return new SmartIterator(containerIterator(), VersionableFilters.DIRTY);
+
+        return new SmartIterator(modified.iterator(), VersionableFilters.DIRTY);
     }
 
     public Iterator getIterator() {
@@ -368,7 +590,7 @@ public abstract class AbstractSmartContainer implements SmartContainer, Versiona
     }
 
     public int size() {
-        return containerSize()-getDeleted();
+        return containerSize();
     }
 
     public abstract Object getContainer();
@@ -376,16 +598,27 @@ public abstract class AbstractSmartContainer implements SmartContainer, Versiona
     //- Versionable
     public void touch() {
         version.touch();
+        touchGraph(this);
     }
 
     public void touch(String s) {
         version.touch(s);
+        touchGraph(this);
+    }
+
+    public void touch(int field) {
+        version.touch(field);
+        touchGraph(this);
     }
 
     public boolean isDirty() {
         return version.isDirty();
     }
 
+    public boolean isDirty(int field) {
+        return version.isDirty(field);
+    }
+
     public boolean isCreated() {
         return version.isCreated();
     }
@@ -394,11 +627,96 @@ public abstract class AbstractSmartContainer implements SmartContainer, Versiona
         return version.isDeleted();
     }
 
+    /**
+     * Resets flags and journals, dropping the deleted elements. Elements
+     * which are still dirty are kept in the journal of modified elements,
+     * as they won't report again.
+     */
     public void markClean() {
-        created = deleted = 0;
+        created.clear();
+        if (!deleted.isEmpty()) {
+            if (linkElements) {
+                for (Iterator it = deleted.iterator(); it.hasNext(); ) {
+                    ((Versionable) it.next()).removeParent(this);
+                }
+            }
+            deleted.clear();
+        }
+        if (!modified.isEmpty()) {
+            ChangeJournal stillModified = new ChangeJournal();
+            for (Iterator it = modified.iterator(); it.hasNext(); ) {
+                Object o = it.next();
+                if (((Versionable) o).isDirty())
+                    stillModified.add(o);
+            }
+            modified = stillModified;
+        }
+        graphDirty = false;
         version.markClean();
     }
 
+    public void addParent(Versionable parent) {
+        if (parent == null || parent == this)
+            return;
+
+        parents = VersionHelper.addParent(parents, parent);
+        if (graphDirty) {
+            parent.touchGraph(this);
+        }
+    }
+
+    public void removeParent(Versionable parent) {
+        parents = VersionHelper.removeParent(parents, parent);
+    }
+
+    public void touchGraph(Versionable child) {
+        if (child != this && linkElements) {
+            modified.add(child);
+        }
+        if (graphDirty)
+            return;
+
+        graphDirty = true;
+        if (parents != null) {
+            for (int i = 0; i < parents.length; i++) {
+                parents[i].touchGraph(this);
+            }
+        }
+    }
+
+    public boolean isGraphDirty() {
+        return graphDirty;
+    }
+
+    /**
+     * Gets an iterator for the elements which reported a modification of
+     * themselves or of objects below them. Only elements linked to this
+     * container are found, see <tt>SmartAccess.setDirtyPropagation</tt>
+     * for the links below the elements.
+     * @return iterator over changed elements.
+     */
+    public Iterator getChangedIterator() {
+        if (!linkElements)
+            return new SmartIterator(containerIterator(), VersionableFilters.GRAPHDIRTY);
+
+        return new SmartIterator(modified.iterator(), VersionableFilters.GRAPHDIRTY);
+    }
+
+    /**
+     * Restores the links to the elements once the whole graph has been read.
+     */
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (linkElements) {
+            in.registerValidation(new ObjectInputValidation() {
+                public void validateObject() {
+                    adoptElements();
+                }
+            }, 0);
+        }
+    }
+
     public long getVersionId() {
         return version.getVersionId();
     }
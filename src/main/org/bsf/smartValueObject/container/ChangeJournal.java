@@ -0,0 +1,216 @@
+package org.bsf.smartValueObject.container;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Insertion ordered set of changed elements, used by smart containers
+ * to find their created, deleted or modified elements without scanning
+ * the whole container. Elements are compared by identity, adding an
+ * element twice keeps its first position. An element may carry a key,
+ * e.g. the key it had in a map, and flags left to the container.
+ * <p>Most containers never change, so the index is only allocated
+ * once the first element is added.
+ *
+ * @see org.bsf.smartValueObject.container.AbstractSmartContainer
+ */
+class ChangeJournal implements java.io.Serializable {
+    /** Maps elements to their entries, null until needed. */
+    private transient Map entries;
+    /** Oldest entry. */
+    private transient Entry first;
+    /** Newest entry. */
+    private transient Entry last;
+
+    /**
+     * Adds an element at the end of the journal, unless already present.
+     * @param o the element.
+     * @return true if the element was added.
+     */
+    boolean add(Object o) {
+        return add(o, null);
+    }
+
+    /**
+     * Adds an element with a key at the end of the journal, unless
+     * already present.
+     * @param o the element.
+     * @param key the key of the element, may be null.
+     * @return true if the element was added.
+     */
+    boolean add(Object o, Object key) {
+        return add(o, key, 0);
+    }
+
+    /**
+     * Adds an element with a key and flags at the end of the journal,
+     * unless already present.
+     * @param o the element.
+     * @param key the key of the element, may be null.
+     * @param flags flags kept with the element.
+     * @return true if the element was added.
+     */
+    boolean add(Object o, Object key, int flags) {
+        if (entries == null) {
+            entries = new IdentityHashMap();
+        } else if (entries.containsKey(o)) {
+            return false;
+        }
+
+        Entry e = new Entry(o, key, flags);
+        if (last == null) {
+            first = last = e;
+        } else {
+            e.previous = last;
+            last.next = e;
+            last = e;
+        }
+        entries.put(o, e);
+        return true;
+    }
+
+    /**
+     * Removes an element from the journal.
+     * @param o the element.
+     * @return true if the element was present.
+     */
+    boolean remove(Object o) {
+        if (entries == null)
+            return false;
+
+        Entry e = (Entry) entries.remove(o);
+        if (e == null)
+            return false;
+
+        if (e.previous == null) {
+            first = e.next;
+        } else {
+            e.previous.next = e.next;
+        }
+        if (e.next == null) {
+            last = e.previous;
+        } else {
+            e.next.previous = e.previous;
+        }
+        e.removed = true;
+        return true;
+    }
+
+    /**
+     * Gets the key an element was added with.
+     * @param o the element.
+     * @return the key, null if none or if the element isn't present.
+     */
+    Object getKey(Object o) {
+        if (entries == null)
+            return null;
+
+        Entry e = (Entry) entries.get(o);
+        return e == null ? null : e.key;
+    }
+
+    /**
+     * Gets the flags an element was added with.
+     * @param o the element.
+     * @return the flags, 0 if none or if the element isn't present.
+     */
+    int getFlags(Object o) {
+        if (entries == null)
+            return 0;
+
+        Entry e = (Entry) entries.get(o);
+        return e == null ? 0 : e.flags;
+    }
+
+    boolean contains(Object o) {
+        return entries != null && entries.containsKey(o);
+    }
+
+    int size() {
+        return entries == null ? 0 : entries.size();
+    }
+
+    boolean isEmpty() {
+        return first == null;
+    }
+
+    void clear() {
+        for (Entry e = first; e != null; e = e.next) {
+            e.removed = true;
+        }
+        entries = null;
+        first = last = null;
+    }
+
+    /**
+     * Gets an iterator in insertion order. The journal may be modified
+     * while iterating, removed elements are skipped.
+     * @return the iterator.
+     */
+    Iterator iterator() {
+        return new Iterator() {
+            private Entry next = first;
+
+            public boolean hasNext() {
+                while (next != null && next.removed) {
+                    next = next.next;
+                }
+                return next != null;
+            }
+
+            public Object next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                Object o = next.element;
+                next = next.next;
+                return o;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** Writes the elements in order, avoiding deep recursion on the links. */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size());
+        for (Entry e = first; e != null; e = e.next) {
+            out.writeObject(e.element);
+            out.writeObject(e.key);
+            out.writeInt(e.flags);
+        }
+    }
+
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            add(in.readObject(), in.readObject(), in.readInt());
+        }
+    }
+
+    /** A journal entry, part of a doubly linked list. */
+    private static class Entry {
+        private final Object element;
+        private final Object key;
+        private final int flags;
+        private Entry previous;
+        private Entry next;
+        private boolean removed = false;
+
+        Entry(Object element, Object key, int flags) {
+            this.element = element;
+            this.key = key;
+            this.flags = flags;
+        }
+    }
+}
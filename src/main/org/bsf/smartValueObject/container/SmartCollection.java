@@ -19,6 +19,7 @@ public class SmartCollection extends AbstractSmartContainer
     public SmartCollection(Collection c, Versionable v) {
         super(v);
         coll = c;
+        adoptElements();
     }
 
     protected boolean addToContainer(Object o) {
@@ -74,18 +75,18 @@ public class SmartCollection extends AbstractSmartContainer
     }
 
     public boolean containsAll(Collection c) {
-        return false;
+        return containsObjects(c);
     }
 
     public boolean addAll(Collection c) {
-        return false;
+        return addObjects(c);
     }
 
     public boolean removeAll(Collection c) {
-        return false;
+        return removeObjects(c, true);
     }
 
     public boolean retainAll(Collection c) {
-        return false;
+        return removeObjects(c, false);
     }
 }
@@ -35,4 +35,23 @@ public interface SmartContainer {
      * @return  the underlying iterator.
      */
     Iterator getIterator();
+
+    /**
+     * Gets an iterator for the elements which have been created.
+     * @return iterator over created elements.
+     */
+    Iterator getCreatedIterator();
+
+    /**
+     * Gets an iterator for the elements which have been deleted.
+     * @return iterator over deleted elements.
+     */
+    Iterator getDeletedIterator();
+
+    /**
+     * Gets an iterator for the elements which have been modified,
+     * including created and deleted ones.
+     * @return iterator over dirty elements.
+     */
+    Iterator getModifiedIterator();
 }
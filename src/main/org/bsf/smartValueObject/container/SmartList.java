@@ -3,13 +3,21 @@ package org.bsf.smartValueObject.container;
 import org.bsf.smartValueObject.container.AbstractSmartContainer;
 import org.bsf.smartValueObject.Versionable;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Iterator;
 import java.util.Collection;
 import java.util.ListIterator;
+import java.util.Map;
 
 /**
  *  A smart wrapper class around <tt>java.util.List</tt>.
+ * <p>All modifications, including those through list iterators and
+ * sublists, are versioned. Bulk operations touch the list once.
  *
  * @see org.bsf.smartValueObject.container.SmartContainer
  * @see java.util.List
@@ -17,13 +25,24 @@ import java.util.ListIterator;
 public class SmartList extends AbstractSmartContainer implements List {
 
     private List list;
+    /** The visible elements, see <tt>ListView</tt>. */
+    private transient ListView view = new ListView();
+    /**
+     * Occurrences of the versionable elements, by identity. Built by the
+     * first <tt>set()</tt> replacing an element and kept up to date from
+     * then on, dropped by the bulk removals.
+     */
+    private transient Map counts;
 
     public SmartList(List list, Versionable v) {
         super(v);
         this.list = list;
+        adoptElements();
     }
 
     protected boolean addToContainer(Object o) {
+        view.changed();
+        count(o, 1);
         return list.add(o);
     }
 
@@ -36,6 +55,9 @@ public class SmartList extends AbstractSmartContainer implements List {
     }
 
     protected boolean removeFromContainer(Object o) {
+        view.changed();
+        // an equal element may be removed instead of o
+        counts = null;
         return list.remove(o);
     }
 
@@ -60,6 +82,8 @@ public class SmartList extends AbstractSmartContainer implements List {
     }
 
     protected void containerClear() {
+        view.changed();
+        counts = null;
         list.clear();
     }
 
@@ -71,45 +95,155 @@ public class SmartList extends AbstractSmartContainer implements List {
         return list;
     }
 
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        view = new ListView();
+    }
+
     //- List interface
     public boolean remove(Object o) {
-        return removeObject(o);
+        boolean removed = removeObject(o);
+        view.changed();
+        return removed;
+    }
+
+    public void clear() {
+        super.clear();
+        view.changed();
+    }
+
+    public Iterator iterator() {
+        return view.iterator();
     }
 
     public boolean containsAll(Collection c) {
-        return list.containsAll(c);
+        return containsObjects(c);
     }
 
     public boolean addAll(Collection c) {
-        return list.addAll(c);
+        return addAll(size(), c);
     }
 
+    /**
+     * Inserts the elements with a single call to the underlying list,
+     * touching the list once.
+     */
     public boolean addAll(int index, Collection c) {
-        return list.addAll(index, c);
+        Object[] a = c.toArray();
+        if (a.length == 0)
+            return false;
+
+        list.addAll(index, Arrays.asList(a));
+        boolean touch = false;
+        for (int i = 0; i < a.length; i++) {
+            count(a[i], 1);
+            touch |= elementAdded(null, a[i]);
+        }
+        if (touch) {
+            touch();
+        }
+        view.changed();
+        return true;
     }
 
     public boolean removeAll(Collection c) {
-        return list.removeAll(c);
+        return changed(removeObjects(c, true));
     }
 
     public boolean retainAll(Collection c) {
-        return list.retainAll(c);
+        return changed(removeObjects(c, false));
+    }
+
+    /** Invalidates iterators and sublists if the list changed. */
+    private boolean changed(boolean changed) {
+        if (changed) {
+            view.changed();
+            counts = null;
+        }
+        return changed;
     }
 
     public Object get(int index) {
         return list.get(index);
     }
 
+    /**
+     * Replaces an element. Setting the same element again changes nothing,
+     * the replaced element is only removed if it isn't in the list any
+     * more, so moving elements around (as <tt>Collections.sort()</tt> or
+     * <tt>swap()</tt> do) doesn't delete them.
+     */
     public Object set(int index, Object element) {
-        return list.set(index, element);
+        Object old = list.set(index, element);
+        if (old == element)
+            return old;
+
+        count(old, -1);
+        count(element, 1);
+        boolean touch = !holds(old) && elementRemoved(null, old);
+        touch |= elementAdded(null, element);
+        if (touch) {
+            touch();
+        }
+        return old;
+    }
+
+    /**
+     * Is the versionable element still in the list ? Other elements
+     * aren't versioned and not counted.
+     */
+    private boolean holds(Object o) {
+        if (!(o instanceof Versionable))
+            return false;
+
+        if (counts == null) {
+            counts = new IdentityHashMap();
+            for (Iterator it = list.iterator(); it.hasNext(); ) {
+                Object e = it.next();
+                if (e instanceof Versionable) {
+                    int[] n = (int[]) counts.get(e);
+                    if (n == null) {
+                        counts.put(e, new int[] { 1 });
+                    } else {
+                        n[0]++;
+                    }
+                }
+            }
+        }
+        return counts.containsKey(o);
+    }
+
+    /** Updates the occurrences of a versionable element, if counted. */
+    private void count(Object o, int delta) {
+        if (counts == null || !(o instanceof Versionable))
+            return;
+
+        int[] n = (int[]) counts.get(o);
+        if (n == null) {
+            counts.put(o, new int[] { delta });
+        } else if ((n[0] += delta) == 0) {
+            counts.remove(o);
+        }
     }
 
     public void add(int index, Object element) {
         list.add(index, element);
+        count(element, 1);
+        if (elementAdded(null, element)) {
+            touch();
+        }
+        view.changed();
     }
 
     public Object remove(int index) {
-        return list.remove(index);
+        Object o = list.remove(index);
+        count(o, -1);
+        if (elementRemoved(null, o)) {
+            touch();
+        }
+        view.changed();
+        return o;
     }
 
     public int indexOf(Object o) {
@@ -121,14 +255,49 @@ public class SmartList extends AbstractSmartContainer implements List {
     }
 
     public ListIterator listIterator() {
-        return list.listIterator();
+        return view.listIterator();
     }
 
     public ListIterator listIterator(int index) {
-        return list.listIterator(index);
+        return view.listIterator(index);
     }
 
+    /**
+     * Gets a view of a part of this list. Modifications through the view
+     * are versioned like those made on the list.
+     */
     public List subList(int fromIndex, int toIndex) {
-        return list.subList(fromIndex, toIndex);
+        return view.subList(fromIndex, toIndex);
+    }
+
+    /**
+     * The list on which the list iterators and sublists are based. All
+     * modifications go through the versioned methods of <tt>SmartList</tt>.
+     */
+    private class ListView extends AbstractList {
+        public Object get(int index) {
+            return SmartList.this.get(index);
+        }
+
+        public int size() {
+            return SmartList.this.size();
+        }
+
+        public Object set(int index, Object element) {
+            return SmartList.this.set(index, element);
+        }
+
+        public void add(int index, Object element) {
+            SmartList.this.add(index, element);
+        }
+
+        public Object remove(int index) {
+            return SmartList.this.remove(index);
+        }
+
+        /** Invalidates iterators and sublists after a structural change. */
+        void changed() {
+            modCount++;
+        }
     }
 }
@@ -1,31 +1,134 @@
 package org.bsf.smartValueObject.container;
 
-import org.bsf.smartValueObject.container.SmartCollection;
 import org.bsf.smartValueObject.container.AbstractSmartContainer;
 import org.bsf.smartValueObject.Versionable;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.*;
 
 /**
  * A smart wrapper class around <tt>java.util.Map</tt>.
+ * <p>A map can keep an index from its values to their keys, making
+ * <tt>containsValue()</tt>, <tt>keyOf()</tt> and removal through
+ * <tt>values()</tt> constant time instead of scanning the map. The
+ * index finds values by identity; versionable values are only found
+ * by identity then, other values fall back to a scan with
+ * <tt>equals()</tt> when not found. It is enabled per map or for all
+ * maps created afterwards, including those created by smartified
+ * classes, with <tt>setValueIndex()</tt>.
  *
  * @see org.bsf.smartValueObject.container.SmartContainer
  * @see java.util.Map
  */
 public class SmartMap extends AbstractSmartContainer implements Map {
+    /** Do new maps keep a value index ? */
+    private static boolean valueIndexDefault = false;
+
     private Map map;
+    /**
+     * value -> key, or <tt>KeyList</tt> of the keys if a value is mapped
+     * more than once. Null if there's no index. Rebuilt when deserialized.
+     */
+    private transient Map valueKeys;
+    /** Views, created on first use. */
+    private transient Set keySet;
+    private transient Collection values;
+    private transient Set entrySet;
 
     public SmartMap(Map m, Versionable v) {
+        this(m, v, valueIndexDefault);
+    }
+
+    /**
+     * Creates a map, choosing whether it keeps a value index.
+     * @param m map to be wrapped.
+     * @param v version object.
+     * @param valueIndex true to index the values.
+     */
+    public SmartMap(Map m, Versionable v, boolean valueIndex) {
         super(v);
         this.map = m;
+        if (valueIndex) {
+            buildValueIndex();
+        }
+        adoptElements();
+    }
+
+    /**
+     * Sets whether maps created from now on keep an index of their
+     * values. Disabled by default, as the index costs an entry per value.
+     * @param enabled true to index the values.
+     */
+    public static void setValueIndex(boolean enabled) {
+        valueIndexDefault = enabled;
+    }
+
+    /**
+     * Do maps created from now on keep an index of their values ?
+     * @see #setValueIndex
+     */
+    public static boolean isValueIndex() {
+        return valueIndexDefault;
+    }
+
+    /**
+     * Does this map keep an index of its values ?
+     */
+    public boolean hasValueIndex() {
+        return valueKeys != null;
+    }
+
+    /**
+     * Gets the key an element is stored with. For an element deleted
+     * since the map was last marked clean, the key it had. Constant time
+     * with a value index or for deleted elements, a scan of the map
+     * otherwise.
+     * @param value the element.
+     * @return the key, null if the element isn't in the map. A key if it
+     * is stored more than once.
+     */
+    public Object keyOf(Object value) {
+        if (value instanceof Versionable && ((Versionable) value).isDeleted()) {
+            Object key = getDeletedKey(value);
+            if (key != null)
+                return key;
+        }
+        if (valueKeys != null) {
+            Object key = valueKeys.get(value);
+            if (key instanceof KeyList)
+                return ((KeyList) key).get(0);
+            if (key != null || valueKeys.containsKey(value))
+                return key;
+            if (value instanceof Versionable)
+                return null;
+        }
+
+        for (Iterator it = map.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            Object o = entry.getValue();
+            if (o == null ? value == null : o.equals(value))
+                return entry.getKey();
+        }
+        return null;
     }
 
     protected boolean addToContainer(Object o) {
-        return map.put(o, o) == o;
+        return addToContainer(o, o) == o;
     }
 
     protected Object addToContainer(Object key, Object o) {
-        return map.put(key, o);
+        if (valueKeys == null)
+            return map.put(key, o);
+
+        boolean replaced = map.containsKey(key);
+        Object old = map.put(key, o);
+        if (replaced) {
+            unindex(old, key);
+        }
+        index(o, key);
+        return old;
     }
 
     protected Object getFromContainer(Object key) {
@@ -37,13 +140,31 @@ public class SmartMap extends AbstractSmartContainer implements Map {
     }
 
     protected Object removeKeyFromContainer(Object key) {
-        return map.remove(key);
+        Object o = map.remove(key);
+        if (valueKeys != null) {
+            unindex(o, key);
+        }
+        return o;
     }
 
     protected boolean containerContains(Object o) {
+        if (valueKeys != null) {
+            if (valueKeys.containsKey(o))
+                return true;
+            if (o instanceof Versionable)
+                return false;
+        }
         return map.containsValue(o);
     }
 
+    /**
+     * Only known with a value index, a value mapped under several keys
+     * is removed with its first key otherwise.
+     */
+    protected boolean holdsElsewhere(Object o) {
+        return valueKeys != null && valueKeys.containsKey(o);
+    }
+
     protected boolean containerContainsKey(Object key) {
         return map.containsKey(key);
     }
@@ -58,6 +179,9 @@ public class SmartMap extends AbstractSmartContainer implements Map {
 
     protected void containerClear() {
         map.clear();
+        if (valueKeys != null) {
+            valueKeys.clear();
+        }
     }
 
     protected Object[] toObjectArray() {
@@ -72,36 +196,78 @@ public class SmartMap extends AbstractSmartContainer implements Map {
         return removeObjectByKey(key);
     }
 
+    /**
+     * Behaves like calling <tt>put()</tt> for each mapping, but stores
+     * them with a single call to the underlying map (which can then be
+     * resized once) and touches the map once.
+     */
     public void putAll(Map t) {
-        throw new UnsupportedOperationException();
-    }
+        if (t.isEmpty())
+            return;
 
-    public Set keySet() {
-        // new SmartSet() ??
-        Set set = map.keySet();
-        Set newset = new HashSet();
-        Iterator it = set.iterator();
-        while (it.hasNext()) {
-            Object key = it.next();
-            Object o = map.get(key);
-            if (o instanceof Versionable) {
-                if (((Versionable) o).isDeleted()) {
-                    continue;
+        Map.Entry[] entries = (Map.Entry[])
+                t.entrySet().toArray(new Map.Entry[t.size()]);
+        Object[] replaced = new Object[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            Object key = entries[i].getKey();
+            if (map.containsKey(key)) {
+                replaced[i] = map.get(key);
+                if (valueKeys != null) {
+                    unindex(replaced[i], key);
                 }
             }
-            newset.add(key);
         }
+        map.putAll(t);
+        if (valueKeys != null) {
+            for (int i = 0; i < entries.length; i++) {
+                index(entries[i].getValue(), entries[i].getKey());
+            }
+        }
+        // like put(), once the index tells which values are still held
+        boolean touch = false;
+        for (int i = 0; i < entries.length; i++) {
+            Object value = entries[i].getValue();
+            if (replaced[i] != value) {
+                touch |= elementReplaced(entries[i].getKey(), replaced[i], value);
+            }
+        }
+        if (touch) {
+            touch();
+        }
+    }
 
-        return newset;
+    /**
+     * Gets a live view of the keys. Removing a key through the view removes the element like
+     * <tt>remove()</tt>.
+     */
+    public Set keySet() {
+        if (keySet == null) {
+            keySet = new KeySet();
+        }
+        return keySet;
     }
 
+    /**
+     * Gets a live view of the elements. Removing an element through the
+     * view removes it like <tt>remove()</tt>.
+     */
     public Collection values() {
-        // TODO this = ok ?
-        return new SmartCollection(map.values(), this);
+        if (values == null) {
+            values = new Values();
+        }
+        return values;
     }
 
+    /**
+     * Gets a live view of the mappings. Removing a mapping through the
+     * view removes the element like <tt>remove()</tt>, setting the value of a mapping replaces it
+     * like <tt>put()</tt>.
+     */
     public Set entrySet() {
-        return new SmartSet(map.entrySet(), this);
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
     }
 
     /**
@@ -109,9 +275,242 @@ public class SmartMap extends AbstractSmartContainer implements Map {
      * @see org.bsf.smartValueObject.container.AbstractSmartContainer#clear
      */
     public void clear() {
-        Iterator it = map.keySet().iterator();
-        while (it.hasNext()) {
-           removeObjectByKey(it.next());
+        boolean touch = false;
+        for (Iterator it = map.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            touch |= elementRemoved(entry.getKey(), entry.getValue());
+        }
+        containerClear();
+        if (touch) {
+            touch();
+        }
+    }
+
+    private void buildValueIndex() {
+        valueKeys = new IdentityHashMap(map.size() * 4 / 3 + 1);
+        for (Iterator it = map.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            index(entry.getValue(), entry.getKey());
+        }
+    }
+
+    /** Adds a key of a value to the index. */
+    private void index(Object value, Object key) {
+        if (!valueKeys.containsKey(value)) {
+            valueKeys.put(value, key);
+            return;
+        }
+
+        Object keys = valueKeys.get(value);
+        if (keys instanceof KeyList) {
+            ((KeyList) keys).add(key);
+        } else {
+            KeyList list = new KeyList();
+            list.add(keys);
+            list.add(key);
+            valueKeys.put(value, list);
+        }
+    }
+
+    /** Removes a key of a value from the index. */
+    private void unindex(Object value, Object key) {
+        Object keys = valueKeys.get(value);
+        if (keys instanceof KeyList) {
+            KeyList list = (KeyList) keys;
+            list.remove(key);
+            if (list.size() == 1) {
+                valueKeys.put(value, list.get(0));
+            }
+        } else {
+            valueKeys.remove(value);
+        }
+    }
+
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (in.readBoolean()) {
+            buildValueIndex();
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeBoolean(valueKeys != null);
+    }
+
+    /**
+     * Iterates over the mappings of the underlying map. Subclasses choose
+     * what is returned.
+     */
+    private abstract class ViewIterator implements Iterator {
+        private final Iterator it = map.entrySet().iterator();
+        /** The mapping last returned, null if none or removed. */
+        private Map.Entry current;
+
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        protected Map.Entry nextEntry() {
+            current = (Map.Entry) it.next();
+            return current;
+        }
+
+        /** Removes the last element with versioning. */
+        public void remove() {
+            if (current == null)
+                throw new IllegalStateException();
+
+            it.remove();
+            if (valueKeys != null) {
+                unindex(current.getValue(), current.getKey());
+            }
+            if (elementRemoved(current.getKey(), current.getValue())) {
+                touch();
+            }
+            current = null;
+        }
+    }
+
+    private class KeySet extends AbstractSet {
+        public Iterator iterator() {
+            return new ViewIterator() {
+                public Object next() {
+                    return nextEntry().getKey();
+                }
+            };
+        }
+
+        public int size() {
+            return SmartMap.this.size();
+        }
+
+        public boolean contains(Object o) {
+            return containsKey(o);
+        }
+
+        public boolean remove(Object o) {
+            if (!containsKey(o))
+                return false;
+
+            removeObjectByKey(o);
+            return true;
+        }
+
+        public void clear() {
+            SmartMap.this.clear();
+        }
+    }
+
+    private class Values extends AbstractCollection {
+        public Iterator iterator() {
+            return new ViewIterator() {
+                public Object next() {
+                    return nextEntry().getValue();
+                }
+            };
+        }
+
+        public int size() {
+            return SmartMap.this.size();
+        }
+
+        public boolean contains(Object o) {
+            return containsValue(o);
+        }
+
+        public boolean remove(Object o) {
+            if (valueKeys == null)
+                return super.remove(o);
+            if (!containsValue(o))
+                return false;
+
+            removeObjectByKey(keyOf(o));
+            return true;
+        }
+
+        public void clear() {
+            SmartMap.this.clear();
+        }
+    }
+
+    private class EntrySet extends AbstractSet {
+        public Iterator iterator() {
+            return new ViewIterator() {
+                public Object next() {
+                    return new Entry(nextEntry());
+                }
+            };
+        }
+
+        public int size() {
+            return SmartMap.this.size();
+        }
+
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+
+            Map.Entry e = (Map.Entry) o;
+            Object key = e.getKey();
+            if (!containsKey(key))
+                return false;
+
+            Object value = getFromContainer(key);
+            return value == null ? e.getValue() == null : value.equals(e.getValue());
+        }
+
+        public boolean remove(Object o) {
+            if (!contains(o))
+                return false;
+
+            removeObjectByKey(((Map.Entry) o).getKey());
+            return true;
+        }
+
+        public void clear() {
+            SmartMap.this.clear();
+        }
+    }
+
+    /** Mapping whose value is replaced with versioning. */
+    private class Entry implements Map.Entry {
+        private final Map.Entry entry;
+
+        Entry(Map.Entry entry) {
+            this.entry = entry;
+        }
+
+        public Object getKey() {
+            return entry.getKey();
+        }
+
+        public Object getValue() {
+            return entry.getValue();
+        }
+
+        public Object setValue(Object value) {
+            return put(entry.getKey(), value);
+        }
+
+        public boolean equals(Object o) {
+            return entry.equals(o);
+        }
+
+        public int hashCode() {
+            return entry.hashCode();
+        }
+
+        public String toString() {
+            return entry.toString();
+        }
+    }
+
+    /** Keys of a value mapped more than once. */
+    private static class KeyList extends ArrayList {
+        KeyList() {
+            super(2);
         }
     }
 }
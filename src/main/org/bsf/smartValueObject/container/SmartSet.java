@@ -25,6 +25,7 @@ public class SmartSet extends AbstractSmartContainer implements Set {
     public SmartSet(Set s, Versionable v) {
         super(v);
         this.set  = s;
+        adoptElements();
     }
 
     protected boolean addToContainer(Object o) {
@@ -76,19 +77,19 @@ public class SmartSet extends AbstractSmartContainer implements Set {
     }
 
     public boolean containsAll(Collection c) {
-        return false;
+        return containsObjects(c);
     }
 
     public boolean addAll(Collection c) {
-        return false;
+        return addObjects(c);
     }
 
     public boolean retainAll(Collection c) {
-        return false;
+        return removeObjects(c, false);
     }
 
     public boolean removeAll(Collection c) {
-        return false;
+        return removeObjects(c, true);
     }
 
     public Iterator getIterator() {
@@ -0,0 +1,256 @@
+package org.bsf.smartValueObject.delta;
+
+import org.bsf.smartValueObject.SmartAccess;
+import org.bsf.smartValueObject.Versionable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies changes written by <tt>DeltaWriter</tt> to a base graph, which
+ * has to be in the state the modified graph had when it was last cleaned.
+ * <p>Dirty fields are written and touched, created elements are added
+ * to their containers, deleted ones removed, so the base graph ends up
+ * with the same version state as the modified graph, ready to be stored
+ * by a mediator. Version ids are taken over from the modified graph.
+ *
+ * @see org.bsf.smartValueObject.delta.DeltaWriter
+ */
+public class DeltaReader {
+    private final DeltaInputStream in;
+    /** Name of the field identifying elements of collections. */
+    private final String keyField;
+    /** Objects of the base graph, indexed by handle. */
+    private final List nodes = new ArrayList();
+    /** Collections mapped to a key -> element index. */
+    private final Map indexes = new IdentityHashMap();
+    /** Classes mapped to their key field. */
+    private final Map keyFields = new HashMap();
+
+    /**
+     * Creates a reader identifying elements of collections by their
+     * <tt>id</tt> field.
+     * @param is the stream to read from.
+     * @throws IOException
+     */
+    public DeltaReader(InputStream is) throws IOException {
+        this(is, DeltaWriter.DEFAULT_KEYFIELD);
+    }
+
+    /**
+     * Creates a reader.
+     * @param is the stream to read from.
+     * @param keyField name of the field identifying elements of collections,
+     * as given to the writer.
+     * @throws IOException
+     */
+    public DeltaReader(InputStream is, String keyField) throws IOException {
+        this.in = new DeltaInputStream(is);
+        this.keyField = keyField;
+    }
+
+    /**
+     * Reads the changes of a graph and applies them.
+     * @param base the root object of the base graph.
+     * @throws IOException if the stream is invalid or doesn't match the
+     * base graph.
+     * @throws ClassNotFoundException
+     * @throws IllegalArgumentException if base is not versionable.
+     */
+    public void readGraph(Object base) throws IOException, ClassNotFoundException {
+        if (!SmartAccess.isVersionable(base))
+            throw new IllegalArgumentException("passed non-versionable object");
+
+        if (in.readInt() != DeltaWriter.MAGIC)
+            throw new StreamCorruptedException("not a delta");
+        byte format = in.readByte();
+        if (format != DeltaWriter.FORMAT)
+            throw new StreamCorruptedException("unsupported delta format " + format);
+
+        try {
+            readRecord(base);
+        } finally {
+            nodes.clear();
+            indexes.clear();
+        }
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void readRecord(Object o) throws IOException, ClassNotFoundException {
+        nodes.add(o);
+        if (SmartAccess.isSmartContainer(o)) {
+            readContainer(o);
+        } else {
+            readNode(o);
+        }
+    }
+
+    private void readNode(Object o) throws IOException, ClassNotFoundException {
+        long id = in.readLong();
+
+        for (short i = in.readShort(); i != DeltaWriter.END; i = in.readShort()) {
+            Object value = in.readObject();
+            try {
+                SmartAccess.setField(o, i, value);
+            } catch (IllegalArgumentException e) {
+                throw new InvalidObjectException("can't set field " + i +
+                        " of " + o + ": " + e.getMessage());
+            }
+        }
+
+        for (short i = in.readShort(); i != DeltaWriter.END; i = in.readShort()) {
+            Object child;
+            try {
+                child = SmartAccess.getField(o, i);
+            } catch (IllegalArgumentException e) {
+                throw new InvalidObjectException(e.getMessage());
+            }
+            if (!SmartAccess.isVersionable(child))
+                throw new InvalidObjectException("no versionable object in field " +
+                        i + " of " + o);
+
+            readRecord(child);
+        }
+
+        SmartAccess.setVersionId(o, id);
+    }
+
+    private void readContainer(Object c) throws IOException, ClassNotFoundException {
+        boolean isMap = c instanceof Map;
+        long id = in.readLong();
+
+        // created elements are added once the deleted ones are removed,
+        // a map key may have been removed and mapped again
+        int created = in.readInt();
+        List added = new ArrayList(isMap ? created * 2 : created);
+        for (int i = 0; i < created; i++) {
+            if (isMap) {
+                added.add(in.readObject());
+            }
+            added.add(in.readObject());
+        }
+
+        int deleted = in.readInt();
+        for (int i = 0; i < deleted; i++) {
+            Object key = in.readObject();
+            Object o = find(c, key);
+            if (isMap) {
+                ((Map) c).remove(key);
+            } else {
+                ((Collection) c).remove(o);
+            }
+        }
+
+        for (Iterator it = added.iterator(); it.hasNext(); ) {
+            if (isMap) {
+                ((Map) c).put(it.next(), it.next());
+            } else {
+                ((Collection) c).add(it.next());
+            }
+        }
+
+        while (in.readBoolean()) {
+            readRecord(find(c, in.readObject()));
+        }
+
+        SmartAccess.setVersionId(c, id);
+    }
+
+    /**
+     * Finds an element of the base graph by its key.
+     * @throws InvalidObjectException if there's no such element.
+     */
+    private Object find(Object c, Object key) throws IOException {
+        Object o;
+        if (c instanceof Map) {
+            o = ((Map) c).get(key);
+        } else {
+            Map index = (Map) indexes.get(c);
+            if (index == null) {
+                index = createIndex(c);
+                indexes.put(c, index);
+            }
+            o = index.get(key);
+        }
+
+        if (o == null)
+            throw new InvalidObjectException("element " + key + " not found in base graph");
+        return o;
+    }
+
+    /**
+     * Indexes the elements of a collection of the base graph by key,
+     * leaving out elements created by this delta.
+     */
+    private Map createIndex(Object c) throws IOException {
+        Map index = new HashMap();
+        for (Iterator it = SmartAccess.iterator(c); it.hasNext(); ) {
+            Object o = it.next();
+            if (((Versionable) o).isCreated())
+                continue;
+
+            try {
+                index.put(keyField(o.getClass()).get(o), o);
+            } catch (IllegalAccessException e) {
+                throw new InvalidClassException(o.getClass().getName(), e.toString());
+            }
+        }
+        return index;
+    }
+
+    private Field keyField(Class clazz) throws InvalidClassException {
+        Field field = (Field) keyFields.get(clazz);
+        if (field != null)
+            return field;
+
+        for (Class c = clazz; c != null && field == null; c = c.getSuperclass()) {
+            try {
+                field = c.getDeclaredField(keyField);
+                field.setAccessible(true);
+            } catch (NoSuchFieldException e) {
+                // try superclass
+            }
+        }
+
+        if (field == null)
+            throw new InvalidClassException(clazz.getName(), "no key field " + keyField);
+
+        keyFields.put(clazz, field);
+        return field;
+    }
+
+    /**
+     * Resolves handles to the objects of the base graph.
+     */
+    private class DeltaInputStream extends ObjectInputStream {
+        DeltaInputStream(InputStream is) throws IOException {
+            super(is);
+            enableResolveObject(true);
+        }
+
+        protected Object resolveObject(Object obj) throws IOException {
+            if (obj instanceof NodeRef) {
+                int handle = ((NodeRef) obj).getHandle();
+                if (handle >= nodes.size())
+                    throw new StreamCorruptedException("invalid handle " + handle);
+                return nodes.get(handle);
+            }
+            return obj;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package org.bsf.smartValueObject.delta;
+
+import org.bsf.smartValueObject.SmartAccess;
+import org.bsf.smartValueObject.Versionable;
+import org.bsf.smartValueObject.container.AbstractSmartContainer;
+import org.bsf.smartValueObject.container.SmartContainer;
+import org.bsf.smartValueObject.container.SmartMap;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the changes made to a versionable graph, to be applied to a copy
+ * of the original graph with <tt>DeltaReader</tt>.
+ * <p>Only the parts of the graph leading to modifications are written.
+ * For every versionable object on the way a record holds its version id,
+ * the values of its dirty fields, and the records of its children. Smart
+ * containers list their created elements in full, the keys of their
+ * deleted elements, and the records of their modified elements.
+ * <p>Elements of collections are identified by a key field (<tt>id</tt>
+ * by default), elements of maps by their key. References to objects
+ * which already have a record are written as handles, so new objects
+ * pointing back into the graph don't drag the graph along.
+ * <p>Finding the modified objects is a lot cheaper with dirty propagation
+ * enabled, otherwise the whole graph is searched.
+ *
+ * @see org.bsf.smartValueObject.delta.DeltaReader
+ * @see org.bsf.smartValueObject.SmartAccess#setDirtyPropagation
+ */
+public class DeltaWriter {
+    /** Marks the beginning of a delta. */
+    static final int MAGIC = 0x53564f44;
+    /** Version of the format. */
+    static final byte FORMAT = 1;
+    /** Ends a list of fields. */
+    static final short END = -1;
+    /** Default name of the field identifying elements of collections. */
+    public static final String DEFAULT_KEYFIELD = "id";
+
+    private final DeltaOutputStream out;
+    /** Name of the field identifying elements of collections. */
+    private final String keyField;
+    /** Objects which have a record, mapped to their handle. */
+    private final Map handles = new IdentityHashMap();
+    /** Objects mapped to Boolean.TRUE if they lead to modifications. */
+    private final Map needed = new IdentityHashMap();
+    /** Smart maps mapped to their reverse lookup tables. */
+    private final Map mapKeys = new IdentityHashMap();
+    /** Classes mapped to their key field. */
+    private final Map keyFields = new HashMap();
+
+    /**
+     * Creates a writer identifying elements of collections by their
+     * <tt>id</tt> field.
+     * @param os the stream to write to.
+     * @throws IOException
+     */
+    public DeltaWriter(OutputStream os) throws IOException {
+        this(os, DEFAULT_KEYFIELD);
+    }
+
+    /**
+     * Creates a writer.
+     * @param os the stream to write to.
+     * @param keyField name of the field identifying elements of collections.
+     * @throws IOException
+     */
+    public DeltaWriter(OutputStream os, String keyField) throws IOException {
+        this.out = new DeltaOutputStream(os);
+        this.keyField = keyField;
+    }
+
+    /**
+     * Writes the changes of a graph.
+     * @param root the root object of the graph.
+     * @throws IOException
+     * @throws IllegalArgumentException if root is not versionable.
+     */
+    public void writeGraph(Object root) throws IOException {
+        if (!SmartAccess.isVersionable(root))
+            throw new IllegalArgumentException("passed non-versionable object");
+
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT);
+        try {
+            writeRecord(root);
+        } finally {
+            handles.clear();
+            needed.clear();
+            mapKeys.clear();
+        }
+        out.flush();
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void writeRecord(Object o) throws IOException {
+        handles.put(o, new Integer(handles.size()));
+        if (SmartAccess.isSmartContainer(o)) {
+            writeContainer(o);
+        } else {
+            writeNode(o);
+        }
+    }
+
+    private void writeNode(Object o) throws IOException {
+        Versionable v = (Versionable) o;
+        int fields = SmartAccess.fieldNames(o).length;
+        out.writeLong(v.getVersionId());
+
+        boolean dirty = v.isDirty();
+        if (dirty) {
+            for (int i = 0; i < fields; i++) {
+                if (v.isDirty(i)) {
+                    out.writeShort(i);
+                    out.writeObject(SmartAccess.getField(o, i));
+                }
+            }
+        }
+        out.writeShort(END);
+
+        for (int i = 0; i < fields; i++) {
+            if (dirty && v.isDirty(i))
+                continue;
+
+            Object child = SmartAccess.getField(o, i);
+            if (SmartAccess.isVersionable(child) &&
+                !handles.containsKey(child) &&
+                isNeeded(child)) {
+                out.writeShort(i);
+                writeRecord(child);
+            }
+        }
+        out.writeShort(END);
+    }
+
+    private void writeContainer(Object c) throws IOException {
+        boolean isMap = c instanceof Map;
+        out.writeLong(((Versionable) c).getVersionId());
+
+        List created = toList(SmartAccess.createdIterator(c));
+        out.writeInt(created.size());
+        for (Iterator it = created.iterator(); it.hasNext(); ) {
+            Object o = it.next();
+            if (isMap) {
+                out.writeObject(keyOf(c, o));
+            }
+            out.writeObject(o);
+        }
+
+        List deleted = toList(SmartAccess.deletedIterator(c));
+        out.writeInt(deleted.size());
+        for (Iterator it = deleted.iterator(); it.hasNext(); ) {
+            out.writeObject(keyOf(c, it.next()));
+        }
+
+        for (Iterator it = candidates(c); it.hasNext(); ) {
+            Object o = it.next();
+            Versionable v = (Versionable) o;
+            if (v.isCreated() || v.isDeleted() ||
+                handles.containsKey(o) || !isNeeded(o))
+                continue;
+
+            out.writeBoolean(true);
+            out.writeObject(keyOf(c, o));
+            writeRecord(o);
+        }
+        out.writeBoolean(false);
+    }
+
+    /**
+     * Checks if there are modifications at or below the given object.
+     * Objects currently being checked count as unmodified, so cycles end.
+     */
+    private boolean isNeeded(Object o) {
+        Boolean b = (Boolean) needed.get(o);
+        if (b != null)
+            return b.booleanValue();
+
+        needed.put(o, Boolean.FALSE);
+        boolean result = findModifications(o);
+        needed.put(o, result ? Boolean.TRUE : Boolean.FALSE);
+        return result;
+    }
+
+    private boolean findModifications(Object o) {
+        Versionable v = (Versionable) o;
+        if (SmartAccess.isDirtyPropagation() && !v.isDirty() && !v.isGraphDirty())
+            return false;
+
+        if (SmartAccess.isSmartContainer(o)) {
+            if (SmartAccess.createdIterator(o).hasNext() ||
+                SmartAccess.deletedIterator(o).hasNext())
+                return true;
+
+            for (Iterator it = candidates(o); it.hasNext(); ) {
+                if (isNeeded(it.next()))
+                    return true;
+            }
+            return false;
+        }
+
+        if (v.isDirty())
+            return true;
+
+        int fields = SmartAccess.fieldNames(o).length;
+        for (int i = 0; i < fields; i++) {
+            Object child = SmartAccess.getField(o, i);
+            if (SmartAccess.isVersionable(child) && isNeeded(child))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the elements of a container which may have been modified.
+     */
+    private Iterator candidates(Object c) {
+        if (SmartAccess.isDirtyPropagation() && c instanceof AbstractSmartContainer) {
+            return ((AbstractSmartContainer) c).getChangedIterator();
+        }
+        return SmartAccess.iterator(c);
+    }
+
+    /**
+     * Gets the key identifying an element of a container.
+     */
+    private Object keyOf(Object c, Object o) throws IOException {
+        if (c instanceof SmartMap &&
+            (((SmartMap) c).hasValueIndex() || ((Versionable) o).isDeleted())) {
+            // deleted elements are only known to the map
+            return ((SmartMap) c).keyOf(o);
+        }
+        if (c instanceof Map) {
+            Map keys = (Map) mapKeys.get(c);
+            if (keys == null) {
+                keys = new IdentityHashMap();
+                Map m = (Map) ((SmartContainer) c).getContainer();
+                for (Iterator it = m.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry entry = (Map.Entry) it.next();
+                    keys.put(entry.getValue(), entry.getKey());
+                }
+                mapKeys.put(c, keys);
+            }
+            return keys.get(o);
+        }
+
+        try {
+            return keyField(o.getClass()).get(o);
+        } catch (IllegalAccessException e) {
+            throw new InvalidClassException(o.getClass().getName(), e.toString());
+        }
+    }
+
+    private Field keyField(Class clazz) throws InvalidClassException {
+        Field field = (Field) keyFields.get(clazz);
+        if (field != null)
+            return field;
+
+        for (Class c = clazz; c != null && field == null; c = c.getSuperclass()) {
+            try {
+                field = c.getDeclaredField(keyField);
+                field.setAccessible(true);
+            } catch (NoSuchFieldException e) {
+                // try superclass
+            }
+        }
+
+        if (field == null)
+            throw new InvalidClassException(clazz.getName(), "no key field " + keyField);
+
+        keyFields.put(clazz, field);
+        return field;
+    }
+
+    private static List toList(Iterator it) {
+        List list = new ArrayList();
+        while (it.hasNext()) {
+            list.add(it.next());
+        }
+        return list;
+    }
+
+    /**
+     * Replaces objects which already have a record by their handle.
+     */
+    private class DeltaOutputStream extends ObjectOutputStream {
+        DeltaOutputStream(OutputStream os) throws IOException {
+            super(os);
+            enableReplaceObject(true);
+        }
+
+        protected Object replaceObject(Object obj) throws IOException {
+            Integer handle = (Integer) handles.get(obj);
+            if (handle != null) {
+                return new NodeRef(handle.intValue());
+            }
+            return obj;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.bsf.smartValueObject.delta;
+
+/**
+ * Stands in for an object of the graph which already has a record in the
+ * delta stream. Replaced by the corresponding object of the base graph
+ * when reading.
+ *
+ * @see org.bsf.smartValueObject.delta.DeltaWriter
+ * @see org.bsf.smartValueObject.delta.DeltaReader
+ */
+class NodeRef implements java.io.Serializable {
+    private static final long serialVersionUID = 1L;
+    /** Position of the record in the stream. */
+    private final int handle;
+
+    NodeRef(int handle) {
+        this.handle = handle;
+    }
+
+    int getHandle() {
+        return handle;
+    }
+}
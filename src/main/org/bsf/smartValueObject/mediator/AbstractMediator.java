@@ -0,0 +1,120 @@
+package org.bsf.smartValueObject.mediator;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Base class for mediators, implementing the operations on several
+ * graphs with those on a single graph. Subclasses override them when
+ * they can do better.
+ *
+ */
+public abstract class AbstractMediator implements Mediator {
+
+    /**
+     * Retrieves the graphs one by one with <tt>getGraph()</tt>.
+     */
+    public List getGraphs(Collection prototypes)
+            throws MediatorException {
+        List graphs = new ArrayList(prototypes.size());
+        for (Iterator it = prototypes.iterator(); it.hasNext(); ) {
+            graphs.add(getGraph(it.next()));
+        }
+        return graphs;
+    }
+
+    /**
+     * Stores the graphs one by one with <tt>updateGraph()</tt>.
+     */
+    public List updateGraphs(Collection graphs)
+            throws MediatorException {
+        List summaries = new ArrayList(graphs.size());
+        for (Iterator it = graphs.iterator(); it.hasNext(); ) {
+            summaries.add(updateGraph(it.next()));
+        }
+        return summaries;
+    }
+
+    /**
+     * Deletes the graphs one by one with <tt>deleteGraph()</tt>.
+     */
+    public void deleteGraphs(Collection graphs)
+            throws MediatorException {
+        for (Iterator it = graphs.iterator(); it.hasNext(); ) {
+            deleteGraph(it.next());
+        }
+    }
+
+    /**
+     * Gets the key of a root object, made of its class and the value of
+     * the index field.
+     * @param o the root object.
+     * @param indexField name of the field holding the key.
+     * @return the key, null if the object has none (yet).
+     */
+    static Object getKey(Object o, String indexField) {
+        Object key = getKeyValue(o, indexField);
+        return key == null ? null : Arrays.asList(new Object[] { o.getClass(), key });
+    }
+
+    /**
+     * Copies the value of the index field of an object to another
+     * instance of the same object which has no key yet, e.g. the key
+     * generated when storing a copy. The field isn't touched.
+     * @param from the object holding the key.
+     * @param to the object getting the key.
+     * @param indexField name of the field holding the key.
+     */
+    static void copyKey(Object from, Object to, String indexField) {
+        Object key = getKeyValue(from, indexField);
+        if (key == null || from.getClass() != to.getClass() ||
+            getKeyValue(to, indexField) != null)
+            return;
+
+        try {
+            indexField(to.getClass(), indexField).set(to, key);
+        } catch (Exception e) {
+            // no key, nothing to copy
+        }
+    }
+
+    /**
+     * Gets the value of the index field, null if there's none or if it
+     * is null or zero.
+     */
+    private static Object getKeyValue(Object o, String indexField) {
+        if (o == null)
+            return null;
+
+        try {
+            Field field = indexField(o.getClass(), indexField);
+            Object key = field == null ? null : field.get(o);
+            if (key == null || key instanceof Number && ((Number) key).longValue() == 0)
+                return null;
+            return key;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the index field in a class or its superclasses.
+     * @return the accessible field, null if there's none.
+     */
+    private static Field indexField(Class clazz, String indexField) {
+        for (Class c = clazz; c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(indexField);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                // try the superclass
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,231 @@
+package org.bsf.smartValueObject.mediator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs the operations of a mediator on worker threads, returning a
+ * <tt>MediatorFuture</tt> instead of blocking the caller.
+ * <p>Operations on the same graph, or on graphs with the same key (held
+ * by the index field of the root), are run one after the other, in the
+ * order of submission.
+ * Updating a graph which is still waiting to be stored doesn't add
+ * another write, the callers share the result of the pending one.
+ * <p>At most <tt>maxPending</tt> operations are waiting or running,
+ * further calls block until one of them is finished.
+ *
+ * @see org.bsf.smartValueObject.mediator.MediatorFuture
+ */
+public class AsyncMediator {
+    private static final Log log = LogFactory.getLog(AsyncMediator.class);
+    private static final int GET    = 0;
+    private static final int UPDATE = 1;
+    private static final int DELETE = 2;
+
+    private final Mediator mediator;
+    private final int maxPending;
+    private String indexField = "id";
+    /** Operations waiting for a worker. */
+    private final LinkedList queue = new LinkedList();
+    /** Keys of the graphs being worked on. */
+    private final Set running = new HashSet();
+    /** Graphs being worked on. */
+    private final Map runningGraphs = new IdentityHashMap();
+    private int pending = 0;
+    private boolean shutdown = false;
+
+    /**
+     * Creates an asynchronous mediator and starts its workers.
+     * @param mediator the mediator doing the work.
+     * @param threads number of worker threads.
+     * @param maxPending maximum number of operations waiting or running.
+     */
+    public AsyncMediator(Mediator mediator, int threads, int maxPending) {
+        if (threads < 1 || maxPending < 1)
+            throw new IllegalArgumentException("threads and maxPending must be positive");
+
+        this.mediator = mediator;
+        this.maxPending = maxPending;
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Worker(), "AsyncMediator-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Sets the field holding the key of the root objects, <tt>id</tt> by
+     * default.
+     */
+    public void setIndexField(String indexField) {
+        this.indexField = indexField;
+    }
+
+    /**
+     * Retrieves a graph.
+     * @see Mediator#getGraph
+     */
+    public MediatorFuture getGraph(Object prototype) throws MediatorException {
+        return submit(GET, prototype);
+    }
+
+    /**
+     * Stores a graph. The graph should not be modified until the future
+     * is done.
+     * @see Mediator#updateGraph
+     */
+    public MediatorFuture updateGraph(Object graph) throws MediatorException {
+        return submit(UPDATE, graph);
+    }
+
+    /**
+     * Deletes a graph.
+     * @see Mediator#deleteGraph
+     */
+    public MediatorFuture deleteGraph(Object graph) throws MediatorException {
+        return submit(DELETE, graph);
+    }
+
+    /**
+     * Stops the workers once the submitted operations are finished.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * Queues an operation, waiting while too many are pending.
+     */
+    private synchronized MediatorFuture submit(int type, Object graph)
+            throws MediatorException {
+        Object key = AbstractMediator.getKey(graph, indexField);
+        if (type == UPDATE) {
+            Task queued = findUpdate(graph, key);
+            if (queued != null) {
+                return queued.future;
+            }
+        }
+
+        while (pending >= maxPending && !shutdown) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new MediatorException("interrupted", e);
+            }
+        }
+        if (shutdown)
+            throw new IllegalStateException("mediator shut down");
+
+        Task task = new Task(type, graph, key);
+        queue.add(task);
+        pending++;
+        notifyAll();
+        return task.future;
+    }
+
+    /**
+     * Finds a waiting update of the same graph, which will store all
+     * modifications made up to its start. An update following an
+     * operation on another instance of the graph is not merged.
+     */
+    private Task findUpdate(Object graph, Object key) {
+        Task found = null;
+        for (Iterator it = queue.iterator(); it.hasNext(); ) {
+            Task task = (Task) it.next();
+            if (task.graph == graph || key != null && key.equals(task.key)) {
+                found = task;
+            }
+        }
+        return found != null && found.type == UPDATE && found.graph == graph ? found : null;
+    }
+
+    /**
+     * Waits for an operation whose graph isn't being worked on.
+     * @return the operation, null when shut down.
+     */
+    private synchronized Task take() {
+        while (true) {
+            for (Iterator it = queue.iterator(); it.hasNext(); ) {
+                Task task = (Task) it.next();
+                if (!runningGraphs.containsKey(task.graph) &&
+                    (task.key == null || !running.contains(task.key))) {
+                    it.remove();
+                    runningGraphs.put(task.graph, task);
+                    if (task.key != null) {
+                        running.add(task.key);
+                    }
+                    return task;
+                }
+            }
+            if (shutdown && queue.isEmpty())
+                return null;
+
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+    }
+
+    private synchronized void finished(Task task) {
+        runningGraphs.remove(task.graph);
+        if (task.key != null) {
+            running.remove(task.key);
+        }
+        pending--;
+        notifyAll();
+    }
+
+    private Object run(Task task) throws MediatorException {
+        switch (task.type) {
+            case GET:
+                return mediator.getGraph(task.graph);
+            case UPDATE:
+                return mediator.updateGraph(task.graph);
+            default:
+                mediator.deleteGraph(task.graph);
+                return null;
+        }
+    }
+
+    private class Worker implements Runnable {
+        public void run() {
+            Task task;
+            while ((task = take()) != null) {
+                try {
+                    task.future.set(AsyncMediator.this.run(task));
+                } catch (MediatorException e) {
+                    task.future.fail(e);
+                } catch (Throwable e) {
+                    // errors too, the worker goes on with the next task
+                    log.error("operation failed", e);
+                    task.future.fail(new MediatorException(e));
+                } finally {
+                    finished(task);
+                }
+            }
+        }
+    }
+
+    private static class Task {
+        private final int type;
+        private final Object graph;
+        private final Object key;
+        private final MediatorFuture future = new MediatorFuture();
+
+        Task(int type, Object graph, Object key) {
+            this.type = type;
+            this.graph = graph;
+            this.key = key;
+        }
+    }
+}
@@ -5,4 +5,10 @@ package org.bsf.smartValueObject.mediator;
  * 
  */
 public class ConcurrencyException extends MediatorException {
+    public ConcurrencyException() {
+    }
+
+    public ConcurrencyException(String message) {
+        super(message);
+    }
 }
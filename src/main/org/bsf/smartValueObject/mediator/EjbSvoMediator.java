@@ -9,6 +9,10 @@ import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Properties;
@@ -20,7 +24,7 @@ import java.util.Properties;
  * real ejb lookups. Implementation is not yet finished !
  * 
  */
-public class EjbSvoMediator implements Mediator {
+public class EjbSvoMediator extends AbstractMediator {
     private static Log log = LogFactory.getLog(EjbSvoMediator.class);
     /** The class of the VO. */
     private Class clazz;
@@ -60,8 +64,7 @@ public class EjbSvoMediator implements Mediator {
      */
     public Object getGraph(Object prototype) throws MediatorException {
         log.info("getGraph(" + prototype + ")");
-        if (prototype == null || prototype.getClass().getName() != clazz.getName())
-                throw new MediatorException("Unknown prototype");
+        checkClass(prototype);
 
         return lookFor(prototype);
     }
@@ -73,8 +76,7 @@ public class EjbSvoMediator implements Mediator {
      */
     public ChangeSummary updateGraph(Object graph) throws MediatorException {
         log.info("updateGraph(" + graph + ")");
-        if (graph == null || graph.getClass().getName() != clazz.getName())
-                 throw new MediatorException("Unknown prototype");
+        checkClass(graph);
 
         if (!SmartAccess.isVersionable(graph)) {
             throw new MediatorException("Object not versionable");
@@ -86,6 +88,54 @@ public class EjbSvoMediator implements Mediator {
         return new ChangeSummary(null, null);
     }
 
+    /**
+     * Retrieves several graphs, checking the prototypes first.
+     *
+     * @param prototypes
+     * @return the graphs, in the order of the prototypes.
+     * @throws MediatorException
+     */
+    public List getGraphs(Collection prototypes) throws MediatorException {
+        log.info("getGraphs(" + prototypes.size() + " prototypes)");
+        for (Iterator it = prototypes.iterator(); it.hasNext(); ) {
+            checkClass(it.next());
+        }
+
+        List graphs = new ArrayList(prototypes.size());
+        for (Iterator it = prototypes.iterator(); it.hasNext(); ) {
+            graphs.add(lookFor(it.next()));
+        }
+        return graphs;
+    }
+
+    /**
+     * Stores several graphs, checking all of them before storing the
+     * dirty ones.
+     * @param graphs
+     * @return a <tt>ChangeSummary</tt> for each graph, in the same order.
+     * @throws MediatorException
+     */
+    public List updateGraphs(Collection graphs) throws MediatorException {
+        log.info("updateGraphs(" + graphs.size() + " graphs)");
+        for (Iterator it = graphs.iterator(); it.hasNext(); ) {
+            Object graph = it.next();
+            checkClass(graph);
+            if (!SmartAccess.isVersionable(graph)) {
+                throw new MediatorException("Object not versionable");
+            }
+        }
+
+        List summaries = new ArrayList(graphs.size());
+        for (Iterator it = graphs.iterator(); it.hasNext(); ) {
+            Object graph = it.next();
+            if (SmartAccess.isGraphDirty(graph)) {
+                storeEJB(graph);
+            }
+            summaries.add(new ChangeSummary(null, null));
+        }
+        return summaries;
+    }
+
     /**
      * Deletes a graph.
      * @param graph the root element of the graph.
@@ -95,6 +145,11 @@ public class EjbSvoMediator implements Mediator {
             throws MediatorException {
     }
 
+    private void checkClass(Object o) throws MediatorException {
+        if (o == null || o.getClass().getName() != clazz.getName())
+            throw new MediatorException("Unknown prototype");
+    }
+
     private void storeEJB(Object graph) throws MediatorException {
         log.info("storeEJB(" + graph + ")");
 
@@ -5,18 +5,41 @@ import net.sf.hibernate.expression.Expression;
 import net.sf.hibernate.cfg.Configuration;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.bsf.smartValueObject.SmartAccess;
+import org.bsf.smartValueObject.Versionable;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.lang.reflect.Field;
 
 /**
  * Mediator for Hibernate.
- * 
+ * <p>Graphs of versionable objects are stored with their dirty
+ * information: created objects are saved, modified objects updated and
+ * deleted objects deleted, clean objects are left alone. The mapping
+ * should thus not cascade saves and updates, the mediator does it
+ * itself. Statements are sent in JDBC batches; objects are written class
+ * by class in the order of the configuration (deletes in reverse order),
+ * so that rows of the same table follow each other and parents are
+ * inserted before their children.
+ * <p>Other objects are stored with <tt>saveOrUpdate()</tt>.
+ * <p>The operations on several graphs use a single session, and a single
+ * transaction for updates and deletes. Graphs are loaded with one query
+ * per class.
+ *
+ * @see org.bsf.smartValueObject.SmartAccess
  */
-public class HibernateMediator implements Mediator {
+public class HibernateMediator extends AbstractMediator {
     private static final Log log = LogFactory.getLog(HibernateMediator.class);
+    /** Number of statements per JDBC batch, the session is flushed as often. */
+    private static final int BATCH_SIZE = 50;
     private SessionFactory sessions;
     private static final String USERNAME = "test";
     private static final String PASSWORD = "test";
@@ -63,6 +86,7 @@ public class HibernateMediator implements Mediator {
         props.setProperty("hibernate.connection.username", USERNAME);
         props.setProperty("hibernate.connection.password", PASSWORD);
         props.setProperty("hibernate.connection.url", "jdbc:mysql://localhost:3306/" + DBNAME);
+        props.setProperty("hibernate.jdbc.batch_size", String.valueOf(BATCH_SIZE));
         return props;
     }
 
@@ -84,28 +108,81 @@ public class HibernateMediator implements Mediator {
         props.setProperty("hibernate.connection.username", "sa");
         props.setProperty("hibernate.connection.password", "");
         props.setProperty("hibernate.connection.url", "jdbc:hsqldb:" + DBNAME);
+        props.setProperty("hibernate.jdbc.batch_size", String.valueOf(BATCH_SIZE));
         return props;
     }
 
     /**
-     * Retrieves a graph based on given prototype.
+     * Retrieves a graph based on given prototype. A versionable graph is
+     * marked clean after loading.
      *
      * @param prototype a prototype to obtain a initialized graph.
      * @return
      * @throws MediatorException
+     * @see #getGraphs
      */
     public Object getGraph(Object prototype)
             throws MediatorException {
+        return getGraphs(Collections.singletonList(prototype)).get(0);
+    }
+
+    /**
+     * Retrieves several graphs in a single session, with one query per
+     * class of prototypes. Versionable graphs are marked clean after
+     * loading.
+     *
+     * @param prototypes prototypes to obtain initialized graphs.
+     * @return the graphs in the order of the prototypes, null for those
+     * not found.
+     * @throws MediatorException
+     */
+    public List getGraphs(Collection prototypes)
+            throws MediatorException {
+        // class -> keys of the prototypes
+        Map keys = new HashMap();
+        for (Iterator it = prototypes.iterator(); it.hasNext(); ) {
+            Object prototype = it.next();
+            List l = (List) keys.get(prototype.getClass());
+            if (l == null) {
+                l = new ArrayList();
+                keys.put(prototype.getClass(), l);
+            }
+            l.add(getPK(prototype));
+        }
+
+        // class -> (key -> graph)
+        Map found = new HashMap();
+        Session s = null;
         try {
-            Object pk = getPK(prototype);
+            s = sessions.openSession();
+            for (Iterator it = keys.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                Criteria crit = s.createCriteria((Class) entry.getKey());
+                crit.add(Expression.in(indexField, (List) entry.getValue()));
 
-            Session s = sessions.openSession();
-            Criteria crit = s.createCriteria(prototype.getClass());
-            crit.add(Expression.eq(indexField, pk));
-            return crit.uniqueResult();
+                Map graphs = new HashMap();
+                for (Iterator results = crit.list().iterator(); results.hasNext(); ) {
+                    Object graph = results.next();
+                    if (graphs.put(getPK(graph), graph) == null &&
+                        SmartAccess.isVersionable(graph)) {
+                        SmartAccess.resetGraph(graph);
+                    }
+                }
+                found.put(entry.getKey(), graphs);
+            }
         } catch (HibernateException e) {
             throw new MediatorException(e);
+        } finally {
+            close(s);
         }
+
+        List result = new ArrayList(prototypes.size());
+        for (Iterator it = prototypes.iterator(); it.hasNext(); ) {
+            Object prototype = it.next();
+            Map graphs = (Map) found.get(prototype.getClass());
+            result.add(graphs.get(getPK(prototype)));
+        }
+        return result;
     }
 
     /**
@@ -113,24 +190,44 @@ public class HibernateMediator implements Mediator {
      *
      * @param graph the root element of the graph.
      * @throws MediatorException
+     * @see #updateGraphs
      */
     public ChangeSummary updateGraph(Object graph)
             throws MediatorException {
-        Session s = null;
-        Transaction tx = null;
+        return (ChangeSummary) updateGraphs(Collections.singletonList(graph)).get(0);
+    }
 
-        try {
-            s = sessions.openSession();
-            tx = s.beginTransaction();
-            s.saveOrUpdate(graph);
-            tx.commit();
-            s.close();
-        } catch (HibernateException e) {
-            try { if (tx!=null) tx.rollback(); }
-			catch (HibernateException he) {}
-            throw new MediatorException(e);
+    /**
+     * Stores several graphs in a single session and transaction. Only the
+     * created, modified and deleted objects of versionable graphs are
+     * written, the graphs are marked clean afterwards.
+     *
+     * @param graphs the root elements of the graphs.
+     * @return a <tt>ChangeSummary</tt> for each graph, in the same order.
+     * @throws MediatorException
+     */
+    public List updateGraphs(Collection graphs)
+            throws MediatorException {
+        UnitOfWork work = new UnitOfWork();
+        List reports = new ArrayList(graphs.size());
+        for (Iterator it = graphs.iterator(); it.hasNext(); ) {
+            reports.add(collect(it.next(), work));
         }
-        return new ChangeSummary(getPK(graph), null);
+
+        if (!work.isEmpty()) {
+            execute(work);
+        }
+
+        List summaries = new ArrayList(graphs.size());
+        Iterator reportIt = reports.iterator();
+        for (Iterator it = graphs.iterator(); it.hasNext(); ) {
+            Object graph = it.next();
+            if (SmartAccess.isVersionable(graph)) {
+                SmartAccess.resetGraph(graph);
+            }
+            summaries.add(new ChangeSummary(getPK(graph), (String) reportIt.next()));
+        }
+        return summaries;
     }
 
     /**
@@ -140,18 +237,166 @@ public class HibernateMediator implements Mediator {
      */
     public void deleteGraph(Object graph)
             throws MediatorException {
-        Transaction tx = null;
+        deleteGraphs(Collections.singletonList(graph));
+    }
+
+    /**
+     * Deletes several graphs in a single session and transaction.
+     * @param graphs the root elements of the graphs.
+     * @throws MediatorException
+     */
+    public void deleteGraphs(Collection graphs)
+            throws MediatorException {
+        UnitOfWork work = new UnitOfWork();
+        work.deleteAll = true;
+        for (Iterator it = graphs.iterator(); it.hasNext(); ) {
+            collect(it.next(), work);
+        }
+        if (!work.isEmpty()) {
+            execute(work);
+        }
+    }
+
+    /**
+     * Sorts the objects of a graph by what has to be done with them.
+     * Objects already collected from another graph are skipped.
+     * A deleted graph only takes the objects it owns, those of its
+     * collections: the referenced objects (e.g. the parent of a deleted
+     * child) are left alone.
+     * @return a report of the changes in the graph.
+     */
+    private String collect(Object graph, UnitOfWork work) {
+        if (!SmartAccess.isVersionable(graph)) {
+            if (work.deleteAll) {
+                work.add(work.deletes, graph);
+            } else {
+                work.others.add(graph);
+            }
+            return null;
+        }
+
+        int inserted = 0, updated = 0, deleted = 0;
+        List stack = new ArrayList();
+        stack.add(graph);
+        while (!stack.isEmpty()) {
+            Object o = stack.remove(stack.size() - 1);
+            if (work.visited.put(o, o) != null)
+                continue;
+
+            if (SmartAccess.isSmartContainer(o)) {
+                for (Iterator it = SmartAccess.iterator(o); it.hasNext(); ) {
+                    push(stack, it.next());
+                }
+                for (Iterator it = SmartAccess.deletedIterator(o); it.hasNext(); ) {
+                    push(stack, it.next());
+                }
+                continue;
+            }
+
+            Versionable v = (Versionable) o;
+            if (work.deleteAll) {
+                if (!v.isCreated()) {
+                    work.add(work.deletes, o);
+                }
+            } else if (v.isDeleted()) {
+                work.add(work.deletes, o);
+                deleted++;
+            } else if (v.isCreated()) {
+                work.add(work.inserts, o);
+                inserted++;
+            } else if (v.isDirty()) {
+                work.add(work.updates, o);
+                updated++;
+            }
+
+            Iterator children = work.deleteAll ?
+                    SmartAccess.getSmartContainers(o) : SmartAccess.getVersionables(o);
+            while (children.hasNext()) {
+                push(stack, children.next());
+            }
+        }
+        return inserted + " inserted, " + updated + " updated, " + deleted + " deleted";
+    }
+
+    private static void push(List stack, Object o) {
+        if (SmartAccess.isVersionable(o)) {
+            stack.add(o);
+        }
+    }
+
+    /**
+     * Writes the collected objects in a single transaction, flushing the
+     * session every <tt>BATCH_SIZE</tt> objects.
+     */
+    private void execute(UnitOfWork work) throws MediatorException {
         Session s = null;
+        Transaction tx = null;
         try {
             s = sessions.openSession();
             tx = s.beginTransaction();
-            s.delete(graph);
+
+            List classes = work.classes;
+            int pending = 0;
+            for (int i = 0; i < classes.size(); i++) {
+                List created = work.get(work.inserts, classes.get(i));
+                for (int j = 0; j < created.size(); j++) {
+                    s.save(created.get(j));
+                    pending = flush(s, pending + 1);
+                }
+            }
+            for (int i = 0; i < classes.size(); i++) {
+                List modified = work.get(work.updates, classes.get(i));
+                for (int j = 0; j < modified.size(); j++) {
+                    s.update(modified.get(j));
+                    pending = flush(s, pending + 1);
+                }
+            }
+            for (int i = 0; i < work.others.size(); i++) {
+                s.saveOrUpdate(work.others.get(i));
+                pending = flush(s, pending + 1);
+            }
+            for (int i = classes.size() - 1; i >= 0; i--) {
+                List deleted = work.get(work.deletes, classes.get(i));
+                for (int j = 0; j < deleted.size(); j++) {
+                    s.delete(deleted.get(j));
+                    pending = flush(s, pending + 1);
+                }
+            }
             tx.commit();
-            s.close();
         } catch (HibernateException e) {
-            try { if (tx!=null) tx.rollback(); }
-			catch (HibernateException he) {}
-            throw new MediatorException();
+            rollback(tx);
+            throw new MediatorException(e);
+        } finally {
+            close(s);
+        }
+    }
+
+    /**
+     * Flushes and clears the session once a batch is full.
+     * @return the number of objects not flushed yet.
+     */
+    private static int flush(Session s, int pending) throws HibernateException {
+        if (pending < BATCH_SIZE)
+            return pending;
+
+        s.flush();
+        s.clear();
+        return 0;
+    }
+
+    private static void rollback(Transaction tx) {
+        try {
+            if (tx != null) tx.rollback();
+        } catch (HibernateException e) {
+            log.warn("could not roll back", e);
+        }
+    }
+
+    private static void close(Session s) {
+        try {
+            if (s != null) s.close();
+        } catch (HibernateException e) {
+            log.warn("could not close session", e);
         }
     }
 
@@ -171,4 +416,43 @@ public class HibernateMediator implements Mediator {
          }
          return pk;
      }
+
+    /**
+     * Objects to be saved, updated or deleted, by class.
+     */
+    private class UnitOfWork {
+        /** Classes of the objects, configured classes first. */
+        private final List classes = new ArrayList(config.getClasses());
+        private final Map inserts = new HashMap();
+        private final Map updates = new HashMap();
+        private final Map deletes = new HashMap();
+        /** Non versionable graphs. */
+        private final List others = new ArrayList();
+        private final Map visited = new IdentityHashMap();
+        /** Deletes all objects, not only the deleted ones. */
+        private boolean deleteAll;
+
+        private void add(Map m, Object o) {
+            Class c = o.getClass();
+            if (!classes.contains(c)) {
+                classes.add(c);
+            }
+            List l = (List) m.get(c);
+            if (l == null) {
+                l = new ArrayList();
+                m.put(c, l);
+            }
+            l.add(o);
+        }
+
+        private List get(Map m, Object c) {
+            List l = (List) m.get(c);
+            return l == null ? Collections.EMPTY_LIST : l;
+        }
+
+        private boolean isEmpty() {
+            return inserts.isEmpty() && updates.isEmpty() &&
+                   deletes.isEmpty() && others.isEmpty();
+        }
+    }
 }
@@ -0,0 +1,929 @@
+package org.bsf.smartValueObject.mediator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bsf.smartValueObject.SmartAccess;
+import org.bsf.smartValueObject.Versionable;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mediator writing the modifications of a graph with JDBC batches.
+ * <p>Only created, modified and deleted objects are written, and updates
+ * only set the modified columns. Statements are prepared once per call
+ * and executed as batches, inserts first (in the order of the configured
+ * classes), then updates and deletes (in reverse order).
+ * <p>The mapping follows conventions, each configured class being mapped
+ * to a table:
+ * <ul>
+ * <li>the table is named after the class, without package and
+ * <tt>VO</tt> suffix (<tt>CompanyVO</tt> is stored in <tt>company</tt>).</li>
+ * <li>instance fields of simple types (primitives, strings, numbers and
+ * dates) are columns of the same name. Transient fields and fields of
+ * other types are not stored.</li>
+ * <li>a field referencing a configured class holds the key of the
+ * referenced object, in a column named after the field without
+ * <tt>VO</tt> suffix plus <tt>Id</tt> (<tt>companyVO</tt> is stored in
+ * <tt>companyId</tt>).</li>
+ * <li>the collection field of a class holds the objects referencing it.
+ * Classes with more than one collection field are not supported.</li>
+ * <li>the key is held by the <tt>id</tt> field. Keys of created objects
+ * are assigned by the mediator from a <tt>KeyGenerator</tt>, by default
+ * from a sequence per table named after the table with a <tt>_seq</tt>
+ * suffix (see <tt>SequenceKeyGenerator</tt>).</li>
+ * <li>the <tt>version</tt> column counts the updates of a row. Updates and
+ * deletes check it against the version id of the object, throwing a
+ * <tt>ConcurrencyException</tt> if the row changed in the meantime. The
+ * objects must thus have been read by this mediator. The check is
+ * disabled with <tt>setVersionColumn(null)</tt>.</li>
+ * </ul>
+ * <p>The operations on several graphs use a single connection, and a
+ * single transaction for updates and deletes.
+ *
+ * @see org.bsf.smartValueObject.SmartAccess
+ */
+public class JdbcBatchMediator extends AbstractMediator {
+    private static final Log log = LogFactory.getLog(JdbcBatchMediator.class);
+    private String indexField = "id";
+    private String versionColumn = "version";
+    private final MediatorConfig config;
+    private final String url;
+    private final String user;
+    private final String password;
+    /** class -> <tt>Table</tt>, in the order of the configuration. */
+    private Map tables;
+    private KeyGenerator keyGenerator = new SequenceKeyGenerator();
+
+    /**
+     * Creates a mediator for the given database. The JDBC driver has to be
+     * loaded already.
+     * @param config the classes to be mapped.
+     * @param url JDBC url of the database.
+     * @param user database user.
+     * @param password password of the user.
+     */
+    public JdbcBatchMediator(MediatorConfig config, String url,
+                             String user, String password) {
+        this.config = config;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+    }
+
+    /**
+     * Sets the column holding the version of the rows.
+     * @param column name of the column, null to disable the optimistic
+     * checks.
+     */
+    public void setVersionColumn(String column) {
+        this.versionColumn = column;
+    }
+
+    /**
+     * Sets the source of the keys of created objects.
+     * @param generator the generator to use, a <tt>SequenceKeyGenerator</tt>
+     * by default.
+     */
+    public void setKeyGenerator(KeyGenerator generator) {
+        if (generator == null)
+            throw new IllegalArgumentException("key generator must not be null");
+        this.keyGenerator = generator;
+    }
+
+    /**
+     * Retrieves a graph based on given prototype.
+     *
+     * @param prototype an object of a configured class, with its key set.
+     * @return the object with the objects below it, null if not found.
+     * @throws MediatorException
+     */
+    public Object getGraph(Object prototype)
+            throws MediatorException {
+        return getGraphs(Collections.singletonList(prototype)).get(0);
+    }
+
+    /**
+     * Retrieves several graphs with a single connection.
+     *
+     * @param prototypes objects of configured classes, with their keys set.
+     * @return the graphs in the order of the prototypes, null for those
+     * not found.
+     * @throws MediatorException
+     */
+    public List getGraphs(Collection prototypes)
+            throws MediatorException {
+        List graphs = new ArrayList(prototypes.size());
+        Connection conn = null;
+        Map statements = new HashMap();
+        try {
+            conn = getConnection();
+            for (Iterator it = prototypes.iterator(); it.hasNext(); ) {
+                Object prototype = it.next();
+                Table table = table(prototype.getClass());
+                Map versions = new IdentityHashMap();
+                List rows = table.select(conn, statements, table.key, table.key.get(prototype), versions);
+                if (rows.isEmpty()) {
+                    graphs.add(null);
+                    continue;
+                }
+
+                Object graph = rows.get(0);
+                loadChildren(conn, statements, table, graph, versions);
+                clean(graph, versions);
+                graphs.add(graph);
+            }
+            return graphs;
+        } catch (SQLException e) {
+            throw new MediatorException(e);
+        } finally {
+            close(statements);
+            close(conn);
+        }
+    }
+
+    /**
+     * Stores the created, modified and deleted objects of a graph, which
+     * is marked clean afterwards.
+     *
+     * @param graph the root element of the graph.
+     * @return the key of the root element and the number of rows written.
+     * @throws ConcurrencyException if a row was changed or deleted since
+     * it was read.
+     * @throws MediatorException
+     */
+    public ChangeSummary updateGraph(Object graph)
+            throws MediatorException {
+        return (ChangeSummary) updateGraphs(Collections.singletonList(graph)).get(0);
+    }
+
+    /**
+     * Stores the created, modified and deleted objects of several graphs
+     * in a single transaction. The graphs are marked clean afterwards.
+     *
+     * @param graphs the root elements of the graphs.
+     * @return a <tt>ChangeSummary</tt> for each graph, in the same order.
+     * @throws ConcurrencyException if a row was changed or deleted since
+     * it was read, no graph is stored then.
+     * @throws MediatorException
+     */
+    public List updateGraphs(Collection graphs)
+            throws MediatorException {
+        UnitOfWork work = new UnitOfWork();
+        List reports = new ArrayList(graphs.size());
+        for (Iterator it = graphs.iterator(); it.hasNext(); ) {
+            Object graph = it.next();
+            checkVersionable(graph);
+            int before = work.count;
+            int[] sizes = work.sizes();
+            collect(graph, work);
+            reports.add(work.count == before ? "Nothing" : work.report(sizes));
+        }
+
+        Map versions = work.isEmpty() ? null : execute(work);
+        List summaries = new ArrayList(graphs.size());
+        Iterator reportIt = reports.iterator();
+        for (Iterator it = graphs.iterator(); it.hasNext(); ) {
+            Object graph = it.next();
+            String report = (String) reportIt.next();
+            if (versions != null) {
+                clean(graph, versions);
+            }
+            summaries.add(new ChangeSummary(table(graph.getClass()).key.get(graph), report));
+        }
+        return summaries;
+    }
+
+    /**
+     * Deletes the rows of all objects of a graph.
+     * @param graph the root element of the graph.
+     * @throws ConcurrencyException if a row was changed since it was read.
+     * @throws MediatorException
+     */
+    public void deleteGraph(Object graph)
+            throws MediatorException {
+        deleteGraphs(Collections.singletonList(graph));
+    }
+
+    /**
+     * Deletes the rows of all objects of several graphs in a single
+     * transaction.
+     * @param graphs the root elements of the graphs.
+     * @throws ConcurrencyException if a row was changed since it was read,
+     * no graph is deleted then.
+     * @throws MediatorException
+     */
+    public void deleteGraphs(Collection graphs)
+            throws MediatorException {
+        UnitOfWork work = new UnitOfWork();
+        work.deleteAll = true;
+        for (Iterator it = graphs.iterator(); it.hasNext(); ) {
+            Object graph = it.next();
+            checkVersionable(graph);
+            collect(graph, work);
+        }
+        if (!work.isEmpty()) {
+            execute(work);
+        }
+    }
+
+    /**
+     * Writes the rows in a single transaction.
+     * @return the new versions of the rows written.
+     */
+    private Map execute(UnitOfWork work) throws MediatorException {
+        Connection conn = null;
+        Map statements = new LinkedHashMap();
+        Map versions = new IdentityHashMap();
+        try {
+            conn = getConnection();
+            conn.setAutoCommit(false);
+
+            List ordered = new ArrayList(tables().values());
+            // keys first, rows may reference each other
+            for (Iterator it = ordered.iterator(); it.hasNext(); ) {
+                Table table = (Table) it.next();
+                assignKeys(conn, table, work.get(work.inserts, table));
+            }
+            for (Iterator it = ordered.iterator(); it.hasNext(); ) {
+                Table table = (Table) it.next();
+                List created = work.get(work.inserts, table);
+                for (int i = 0; i < created.size(); i++) {
+                    table.insert(conn, statements, created.get(i), versions);
+                }
+            }
+            for (Iterator it = ordered.iterator(); it.hasNext(); ) {
+                Table table = (Table) it.next();
+                List modified = work.get(work.updates, table);
+                for (int i = 0; i < modified.size(); i++) {
+                    table.update(conn, statements, modified.get(i), versions);
+                }
+            }
+            for (int t = ordered.size() - 1; t >= 0; t--) {
+                Table table = (Table) ordered.get(t);
+                List deleted = work.get(work.deletes, table);
+                for (int i = 0; i < deleted.size(); i++) {
+                    table.delete(conn, statements, deleted.get(i));
+                }
+            }
+
+            for (Iterator it = statements.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                int[] counts = ((PreparedStatement) entry.getValue()).executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] == 0) {
+                        throw new ConcurrencyException("row changed or deleted: " + entry.getKey());
+                    }
+                }
+            }
+            conn.commit();
+            return versions;
+        } catch (SQLException e) {
+            rollback(conn);
+            throw new MediatorException(e);
+        } catch (MediatorException e) {
+            rollback(conn);
+            throw e;
+        } finally {
+            close(statements);
+            close(conn);
+        }
+    }
+
+    /**
+     * Sorts the objects of a graph by what has to be done with them.
+     * Objects already collected from another graph are skipped.
+     * A deleted graph only takes the objects it owns, those of its
+     * collections: the referenced objects (e.g. the parent of a deleted
+     * child) are left alone.
+     */
+    private void collect(Object graph, UnitOfWork work) throws MediatorException {
+        Map visited = work.visited;
+        List stack = new ArrayList();
+        stack.add(graph);
+
+        while (!stack.isEmpty()) {
+            Object o = stack.remove(stack.size() - 1);
+            if (o == null || visited.put(o, o) != null)
+                continue;
+
+            Table table = table(o.getClass());
+            Versionable v = (Versionable) o;
+            if (work.deleteAll) {
+                if (!v.isCreated()) {
+                    work.add(work.deletes, table, o);
+                }
+            } else if (v.isDeleted()) {
+                work.add(work.deletes, table, o);
+            } else if (v.isCreated()) {
+                work.add(work.inserts, table, o);
+            } else if (v.isDirty()) {
+                work.add(work.updates, table, o);
+            }
+
+            for (int i = 0; i < table.columns.length && !work.deleteAll; i++) {
+                if (table.columns[i].target != null) {
+                    stack.add(table.columns[i].get(o));
+                }
+            }
+            Object children = table.children(o);
+            if (children != null) {
+                for (Iterator it = SmartAccess.iterator(children); it.hasNext(); ) {
+                    stack.add(it.next());
+                }
+                for (Iterator it = SmartAccess.deletedIterator(children); it.hasNext(); ) {
+                    stack.add(it.next());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the objects referencing the given object, and those below them.
+     */
+    private void loadChildren(Connection conn, Map statements, Table table,
+                              Object parent, Map versions)
+            throws SQLException, MediatorException {
+        if (table.collection == null)
+            return;
+
+        Collection children = (Collection) table.children(parent);
+        Object key = table.key.get(parent);
+        for (Iterator it = table.childTables.iterator(); it.hasNext(); ) {
+            Table childTable = (Table) it.next();
+            Column reference = childTable.referenceTo(table);
+            List rows = childTable.select(conn, statements, reference, key, versions);
+            for (int i = 0; i < rows.size(); i++) {
+                Object child = rows.get(i);
+                reference.set(child, parent);
+                loadChildren(conn, statements, childTable, child, versions);
+            }
+            children.addAll(rows);
+        }
+    }
+
+    /**
+     * Marks the graph clean, giving each row its version in the database.
+     * @param versions new versions of the objects, those of the other
+     * objects are kept.
+     */
+    private void clean(Object graph, Map versions) throws MediatorException {
+        Map visited = new IdentityHashMap();
+        List stack = new ArrayList();
+        stack.add(graph);
+
+        while (!stack.isEmpty()) {
+            Object o = stack.remove(stack.size() - 1);
+            if (o == null || visited.put(o, o) != null)
+                continue;
+
+            Table table = table(o.getClass());
+            Long version = (Long) versions.get(o);
+            long id = version != null ? version.longValue() : SmartAccess.getVersionId(o);
+            SmartAccess.reset(o);
+            SmartAccess.setVersionId(o, id);
+
+            for (int i = 0; i < table.columns.length; i++) {
+                if (table.columns[i].target != null) {
+                    stack.add(table.columns[i].get(o));
+                }
+            }
+            Object children = table.children(o);
+            if (children != null) {
+                for (Iterator it = SmartAccess.iterator(children); it.hasNext(); ) {
+                    stack.add(it.next());
+                }
+                SmartAccess.reset(children);
+            }
+        }
+    }
+
+    /**
+     * Gives keys to the created objects which have none yet, with a
+     * single call to the key generator.
+     */
+    private void assignKeys(Connection conn, Table table, List created)
+            throws SQLException, MediatorException {
+        List keyless = new ArrayList();
+        for (int i = 0; i < created.size(); i++) {
+            Object o = created.get(i);
+            Object key = table.key.get(o);
+            if (key == null || key instanceof Number && ((Number) key).longValue() == 0) {
+                keyless.add(o);
+            }
+        }
+        if (keyless.isEmpty())
+            return;
+
+        long[] keys = keyGenerator.nextKeys(conn, table.name, table.key.name, keyless.size());
+        for (int i = 0; i < keys.length; i++) {
+            table.key.set(keyless.get(i), new Long(keys[i]));
+        }
+    }
+
+    private Connection getConnection() throws SQLException {
+        return DriverManager.getConnection(url, user, password);
+    }
+
+    private static void rollback(Connection conn) {
+        try {
+            if (conn != null) conn.rollback();
+        } catch (SQLException e) {
+            log.warn("could not roll back", e);
+        }
+    }
+
+    private static void close(Connection conn) {
+        try {
+            if (conn != null) conn.close();
+        } catch (SQLException e) {
+            log.warn("could not close connection", e);
+        }
+    }
+
+    private static void close(Map statements) {
+        for (Iterator it = statements.values().iterator(); it.hasNext(); ) {
+            try {
+                ((Statement) it.next()).close();
+            } catch (SQLException e) {
+                log.warn("could not close statement", e);
+            }
+        }
+        statements.clear();
+    }
+
+    private static void checkVersionable(Object graph) throws MediatorException {
+        if (!SmartAccess.isVersionable(graph))
+            throw new MediatorException("Object not versionable");
+    }
+
+    /**
+     * Gets the mapping of a class.
+     * @throws MediatorException if the class isn't configured.
+     */
+    private Table table(Class clazz) throws MediatorException {
+        Table table = (Table) tables().get(clazz);
+        if (table == null)
+            throw new MediatorException("class not configured: " + clazz.getName());
+        return table;
+    }
+
+    /**
+     * Maps the configured classes on first use, as their field names are
+     * only available once they are versionable.
+     */
+    private synchronized Map tables() throws MediatorException {
+        if (tables != null)
+            return tables;
+
+        Map map = new LinkedHashMap();
+        for (Iterator it = config.getClasses().iterator(); it.hasNext(); ) {
+            Class clazz = (Class) it.next();
+            map.put(clazz, new Table(clazz));
+        }
+        for (Iterator it = map.values().iterator(); it.hasNext(); ) {
+            ((Table) it.next()).resolve(map);
+        }
+        log.debug("mapped " + map.keySet());
+        tables = map;
+        return tables;
+    }
+
+    /** Finds a field in the class or its superclasses. */
+    private static Field findField(Class clazz, String name) throws MediatorException {
+        for (Class c = clazz; c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                // try superclass
+            }
+        }
+        throw new MediatorException("no field " + name + " in " + clazz.getName());
+    }
+
+    /** Can fields of this type be stored in a column ? */
+    private static boolean isSimple(Class type) {
+        return type.isPrimitive() ||
+               type == String.class ||
+               type == Boolean.class ||
+               type == Character.class ||
+               Number.class.isAssignableFrom(type) ||
+               Date.class.isAssignableFrom(type);
+    }
+
+    /** Removes the <tt>VO</tt> suffix of a name. */
+    private static String stripVO(String name) {
+        return name.endsWith("VO") ? name.substring(0, name.length() - 2) : name;
+    }
+
+    /**
+     * Converts a value read from the database to the type of a field.
+     */
+    private static Object toFieldValue(Object value, Class type) {
+        if (!(value instanceof Number))
+            return value;
+
+        Number n = (Number) value;
+        if (type == Long.class || type == long.class)
+            return new Long(n.longValue());
+        if (type == Integer.class || type == int.class)
+            return new Integer(n.intValue());
+        if (type == Short.class || type == short.class)
+            return new Short(n.shortValue());
+        if (type == Double.class || type == double.class)
+            return new Double(n.doubleValue());
+        if (type == Float.class || type == float.class)
+            return new Float(n.floatValue());
+        return value;
+    }
+
+    /**
+     * Gets the SQL type used for null values of fields of the given type.
+     */
+    private static int sqlType(Class type) {
+        if (type == String.class)
+            return Types.VARCHAR;
+        if (type == Long.class || type == long.class)
+            return Types.BIGINT;
+        if (type == Integer.class || type == int.class)
+            return Types.INTEGER;
+        if (Date.class.isAssignableFrom(type))
+            return Types.TIMESTAMP;
+        return Types.OTHER;
+    }
+
+    /** A field mapped to a column. */
+    private static class Column {
+        private final String name;
+        private final Field field;
+        /** Index of the field, as used by <tt>Versionable.isDirty(int)</tt>. */
+        private final int index;
+        /** Mapping of the referenced class, null if not a reference. */
+        private Table target;
+
+        Column(String name, Field field, int index) {
+            this.name = name;
+            this.field = field;
+            this.index = index;
+        }
+
+        Object get(Object o) throws MediatorException {
+            try {
+                return field.get(o);
+            } catch (IllegalAccessException e) {
+                throw new MediatorException(e);
+            }
+        }
+
+        void set(Object o, Object value) throws MediatorException {
+            try {
+                field.set(o, toFieldValue(value, field.getType()));
+            } catch (IllegalAccessException e) {
+                throw new MediatorException(e);
+            }
+        }
+
+        /** Sets a statement parameter to the value of the field. */
+        void bind(PreparedStatement ps, int i, Object o)
+                throws SQLException, MediatorException {
+            Object value = get(o);
+            Class type = field.getType();
+            if (target != null) {
+                value = value == null ? null : target.key.get(value);
+                type = target.key.field.getType();
+            }
+
+            if (value == null) {
+                ps.setNull(i, sqlType(type));
+            } else if (value instanceof Date && !(value instanceof java.sql.Date) &&
+                       !(value instanceof java.sql.Time)) {
+                ps.setTimestamp(i, new Timestamp(((Date) value).getTime()));
+            } else {
+                ps.setObject(i, value);
+            }
+        }
+
+        /** Reads the column into the field of the object. */
+        void read(ResultSet rs, int i, Object o) throws SQLException, MediatorException {
+            Object value = rs.getObject(i);
+            if (value == null && field.getType().isPrimitive())
+                return;
+            set(o, value);
+        }
+    }
+
+    /** A class mapped to a table. */
+    private class Table {
+        private final Class clazz;
+        private final String name;
+        private Column key;
+        /** Other columns, references included. */
+        private final Column[] columns;
+        /** The field holding the referencing objects, null if none. */
+        private Field collection;
+        /** Tables referencing this one. */
+        private final List childTables = new ArrayList();
+        private String insertSql;
+        private String deleteSql;
+
+        Table(Class clazz) throws MediatorException {
+            this.clazz = clazz;
+            String className = clazz.getName();
+            this.name = stripVO(className.substring(className.lastIndexOf('.') + 1)).toLowerCase();
+
+            String[] names;
+            try {
+                names = SmartAccess.fieldNames(clazz.newInstance());
+            } catch (InstantiationException e) {
+                throw new MediatorException("could not create " + className, e);
+            } catch (IllegalAccessException e) {
+                throw new MediatorException("could not create " + className, e);
+            } catch (IllegalArgumentException e) {
+                throw new MediatorException("not versionable: " + className, e);
+            }
+
+            List list = new ArrayList(names.length);
+            for (int i = 0; i < names.length; i++) {
+                Field field = findField(clazz, names[i]);
+                if (Modifier.isTransient(field.getModifiers()))
+                    continue;
+
+                Class type = field.getType();
+                if (Collection.class.isAssignableFrom(type)) {
+                    if (collection != null)
+                        throw new MediatorException("more than one collection in " + className);
+                    collection = field;
+                } else if (names[i].equals(indexField)) {
+                    key = new Column(names[i], field, i);
+                } else if (isSimple(type) || config.getClasses().contains(type)) {
+                    list.add(new Column(names[i], field, i));
+                }
+            }
+            if (key == null)
+                throw new MediatorException("no key field " + indexField + " in " + className);
+
+            columns = (Column[]) list.toArray(new Column[list.size()]);
+        }
+
+        /** Links the references to the other tables. */
+        void resolve(Map tables) {
+            for (int i = 0; i < columns.length; i++) {
+                Table target = (Table) tables.get(columns[i].field.getType());
+                if (target != null) {
+                    Column c = columns[i];
+                    columns[i] = new Column(stripVO(c.name) + "Id", c.field, c.index);
+                    columns[i].target = target;
+                    target.childTables.add(this);
+                }
+            }
+        }
+
+        /** Gets the column referencing the given table. */
+        Column referenceTo(Table parent) {
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i].target == parent)
+                    return columns[i];
+            }
+            throw new IllegalStateException(name + " doesn't reference " + parent.name);
+        }
+
+        /** Gets the container holding the referencing objects. */
+        Object children(Object o) throws MediatorException {
+            if (collection == null)
+                return null;
+            try {
+                return collection.get(o);
+            } catch (IllegalAccessException e) {
+                throw new MediatorException(e);
+            }
+        }
+
+        /**
+         * Reads the rows having the given value in a column.
+         * @param versions receives the versions of the rows read.
+         */
+        List select(Connection conn, Map statements, Column where, Object value, Map versions)
+                throws SQLException, MediatorException {
+            StringBuffer sql = new StringBuffer("SELECT ").append(key.name);
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(", ").append(columns[i].name);
+            }
+            if (versionColumn != null) {
+                sql.append(", ").append(versionColumn);
+            }
+            sql.append(" FROM ").append(name).append(" WHERE ").append(where.name).append(" = ?");
+
+            PreparedStatement ps = prepare(conn, statements, sql.toString());
+            ps.setObject(1, value);
+            ResultSet rs = ps.executeQuery();
+            List rows = new ArrayList();
+            try {
+                while (rs.next()) {
+                    Object o = clazz.newInstance();
+                    key.read(rs, 1, o);
+                    for (int i = 0; i < columns.length; i++) {
+                        if (columns[i].target == null) {
+                            columns[i].read(rs, i + 2, o);
+                        }
+                    }
+                    if (versionColumn != null) {
+                        versions.put(o, new Long(rs.getLong(columns.length + 2)));
+                    }
+                    rows.add(o);
+                }
+            } catch (InstantiationException e) {
+                throw new MediatorException(e);
+            } catch (IllegalAccessException e) {
+                throw new MediatorException(e);
+            } finally {
+                rs.close();
+            }
+            return rows;
+        }
+
+        void insert(Connection conn, Map statements, Object o, Map versions)
+                throws SQLException, MediatorException {
+            if (insertSql == null) {
+                StringBuffer sql = new StringBuffer("INSERT INTO ").append(name);
+                sql.append(" (").append(key.name);
+                for (int i = 0; i < columns.length; i++) {
+                    sql.append(", ").append(columns[i].name);
+                }
+                int params = columns.length + 1;
+                if (versionColumn != null) {
+                    sql.append(", ").append(versionColumn);
+                    params++;
+                }
+                sql.append(") VALUES (?");
+                for (int i = 1; i < params; i++) {
+                    sql.append(", ?");
+                }
+                insertSql = sql.append(")").toString();
+            }
+
+            PreparedStatement ps = prepare(conn, statements, insertSql);
+            key.bind(ps, 1, o);
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].bind(ps, i + 2, o);
+            }
+            if (versionColumn != null) {
+                ps.setLong(columns.length + 2, 1);
+                versions.put(o, new Long(1));
+            }
+            ps.addBatch();
+        }
+
+        /** Updates the modified columns, all of them if unknown. */
+        void update(Connection conn, Map statements, Object o, Map versions)
+                throws SQLException, MediatorException {
+            Versionable v = (Versionable) o;
+            boolean[] dirty = new boolean[columns.length];
+            boolean any = false;
+            for (int i = 0; i < columns.length; i++) {
+                dirty[i] = v.isDirty(columns[i].index);
+                any |= dirty[i];
+            }
+            if (!any) {
+                for (int i = 0; i < dirty.length; i++) {
+                    dirty[i] = true;
+                }
+            }
+
+            StringBuffer sql = new StringBuffer("UPDATE ").append(name).append(" SET ");
+            String separator = "";
+            for (int i = 0; i < columns.length; i++) {
+                if (dirty[i]) {
+                    sql.append(separator).append(columns[i].name).append(" = ?");
+                    separator = ", ";
+                }
+            }
+            if (versionColumn != null) {
+                sql.append(separator).append(versionColumn).append(" = ?");
+            }
+            sql.append(" WHERE ").append(key.name).append(" = ?");
+            if (versionColumn != null) {
+                sql.append(" AND ").append(versionColumn).append(" = ?");
+            }
+
+            PreparedStatement ps = prepare(conn, statements, sql.toString());
+            int p = 1;
+            for (int i = 0; i < columns.length; i++) {
+                if (dirty[i]) {
+                    columns[i].bind(ps, p++, o);
+                }
+            }
+            long version = v.getVersionId();
+            if (versionColumn != null) {
+                ps.setLong(p++, version + 1);
+                versions.put(o, new Long(version + 1));
+            }
+            key.bind(ps, p++, o);
+            if (versionColumn != null) {
+                ps.setLong(p, version);
+            }
+            ps.addBatch();
+        }
+
+        void delete(Connection conn, Map statements, Object o)
+                throws SQLException, MediatorException {
+            if (deleteSql == null) {
+                deleteSql = "DELETE FROM " + name + " WHERE " + key.name + " = ?" +
+                        (versionColumn != null ? " AND " + versionColumn + " = ?" : "");
+            }
+
+            PreparedStatement ps = prepare(conn, statements, deleteSql);
+            key.bind(ps, 1, o);
+            if (versionColumn != null) {
+                ps.setLong(2, ((Versionable) o).getVersionId());
+            }
+            ps.addBatch();
+        }
+    }
+
+    /** Gets the statement for the given SQL, preparing it once. */
+    private static PreparedStatement prepare(Connection conn, Map statements, String sql)
+            throws SQLException {
+        PreparedStatement ps = (PreparedStatement) statements.get(sql);
+        if (ps == null) {
+            log.debug("prepare: " + sql);
+            ps = conn.prepareStatement(sql);
+            statements.put(sql, ps);
+        }
+        return ps;
+    }
+
+    /** Objects to be written, by table. */
+    private static class UnitOfWork {
+        private final Map inserts = new HashMap();
+        private final Map updates = new HashMap();
+        private final Map deletes = new HashMap();
+        /** Objects collected so far. */
+        private final Map visited = new IdentityHashMap();
+        /** Deletes every stored object found. */
+        private boolean deleteAll = false;
+        private int count = 0;
+
+        void add(Map map, Table table, Object o) {
+            List list = (List) map.get(table);
+            if (list == null) {
+                list = new ArrayList();
+                map.put(table, list);
+            }
+            list.add(o);
+            count++;
+        }
+
+        List get(Map map, Table table) {
+            List list = (List) map.get(table);
+            return list == null ? new ArrayList(0) : list;
+        }
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+
+        private static int size(Map map) {
+            int n = 0;
+            for (Iterator it = map.values().iterator(); it.hasNext(); ) {
+                n += ((List) it.next()).size();
+            }
+            return n;
+        }
+
+        /** @return the number of inserts, updates and deletes. */
+        int[] sizes() {
+            return new int[] { size(inserts), size(updates), size(deletes) };
+        }
+
+        /**
+         * Reports the objects collected since the given sizes.
+         * @param before result of <tt>sizes()</tt>.
+         */
+        String report(int[] before) {
+            int[] after = sizes();
+            return (after[0] - before[0]) + " inserted, " +
+                   (after[1] - before[1]) + " updated, " +
+                   (after[2] - before[2]) + " deleted";
+        }
+    }
+}
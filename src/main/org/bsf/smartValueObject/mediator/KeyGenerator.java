@@ -0,0 +1,23 @@
+package org.bsf.smartValueObject.mediator;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Gives out the keys of created objects for <tt>JdbcBatchMediator</tt>.
+ *
+ * @see org.bsf.smartValueObject.mediator.JdbcBatchMediator#setKeyGenerator
+ */
+public interface KeyGenerator {
+    /**
+     * Gets new keys for rows about to be inserted.
+     * @param conn connection of the transaction inserting the rows.
+     * @param table name of the table.
+     * @param column name of the key column.
+     * @param count number of keys needed, at least 1.
+     * @return the keys, never handed out before.
+     * @throws SQLException
+     */
+    long[] nextKeys(Connection conn, String table, String column, int count)
+            throws SQLException;
+}
@@ -0,0 +1,52 @@
+package org.bsf.smartValueObject.mediator;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts on from the highest key found in a table, remembering the last
+ * key given out. Needs no sequences, but the mediator using it has to
+ * be the only one creating rows: other writers get the same keys.
+ *
+ * @see org.bsf.smartValueObject.mediator.JdbcBatchMediator
+ */
+public class MaxKeyGenerator implements KeyGenerator {
+    /** Last key given out, by table name. */
+    private final Map lastKeys = new HashMap();
+
+    public long[] nextKeys(Connection conn, String table, String column, int count)
+            throws SQLException {
+        Long last;
+        synchronized (lastKeys) {
+            last = (Long) lastKeys.get(table);
+        }
+        if (last == null) {
+            Statement s = conn.createStatement();
+            try {
+                ResultSet rs = s.executeQuery("SELECT MAX(" + column + ") FROM " + table);
+                rs.next();
+                last = new Long(rs.getLong(1));
+            } finally {
+                s.close();
+            }
+        }
+
+        long first;
+        synchronized (lastKeys) {
+            Long current = (Long) lastKeys.get(table);
+            first = Math.max(last.longValue(),
+                             current == null ? 0 : current.longValue()) + 1;
+            lastKeys.put(table, new Long(first + count - 1));
+        }
+
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = first + i;
+        }
+        return keys;
+    }
+}
@@ -1,8 +1,15 @@
 package org.bsf.smartValueObject.mediator;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * The mediator interface.
- * 
+ * <p>The operations on several graphs let implementations load or store
+ * them at once, e.g. in a single transaction. <tt>AbstractMediator</tt>
+ * implements them with the operations on a single graph.
+ *
+ * @see org.bsf.smartValueObject.mediator.AbstractMediator
  */
 public interface Mediator {
     String INDEXFIELD = "indexfield";
@@ -34,4 +41,32 @@ public interface Mediator {
      */
     void deleteGraph(Object graph)
         throws MediatorException;
+
+    /**
+     * Retrieves several graphs.
+     *
+     * @param prototypes prototypes to obtain initialized graphs.
+     * @return the graphs, in the order of the prototypes.
+     * @throws MediatorException
+     */
+    List getGraphs(Collection prototypes)
+        throws MediatorException;
+
+    /**
+     * Stores several graphs.
+     *
+     * @param graphs the root elements of the graphs.
+     * @return a <tt>ChangeSummary</tt> for each graph, in the same order.
+     * @throws MediatorException
+     */
+    List updateGraphs(Collection graphs)
+        throws MediatorException;
+
+    /**
+     * Deletes several graphs.
+     * @param graphs the root elements of the graphs.
+     * @throws MediatorException
+     */
+    void deleteGraphs(Collection graphs)
+        throws MediatorException;
 }
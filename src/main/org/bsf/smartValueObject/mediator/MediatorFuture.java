@@ -0,0 +1,55 @@
+package org.bsf.smartValueObject.mediator;
+
+/**
+ * Result of an operation run by an <tt>AsyncMediator</tt>.
+ *
+ * @see org.bsf.smartValueObject.mediator.AsyncMediator
+ */
+public class MediatorFuture {
+    private boolean done;
+    private Object result;
+    private MediatorException exception;
+
+    MediatorFuture() {
+    }
+
+    /**
+     * Is the operation finished ?
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Waits for the operation to finish.
+     * @return the result of the operation: the graph for
+     * <tt>getGraph()</tt>, a <tt>ChangeSummary</tt> for
+     * <tt>updateGraph()</tt>, null for <tt>deleteGraph()</tt>.
+     * @throws MediatorException the exception thrown by the operation, or
+     * if the calling thread was interrupted.
+     */
+    public synchronized Object get() throws MediatorException {
+        while (!done) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new MediatorException("interrupted", e);
+            }
+        }
+        if (exception != null)
+            throw exception;
+        return result;
+    }
+
+    synchronized void set(Object result) {
+        this.result = result;
+        this.done = true;
+        notifyAll();
+    }
+
+    synchronized void fail(MediatorException exception) {
+        this.exception = exception;
+        this.done = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,57 @@
+package org.bsf.smartValueObject.mediator;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.MessageFormat;
+
+/**
+ * Takes the keys from a database sequence per table. Sequences are not
+ * rolled back, so concurrent writers never get the same key.
+ * <p>The query is given as a <tt>MessageFormat</tt> pattern, <tt>{0}</tt>
+ * standing for the table and <tt>{1}</tt> for the key column. The
+ * default, <tt>CALL NEXT VALUE FOR {0}_seq</tt>, works with HSQLDB; on
+ * PostgreSQL e.g. <tt>SELECT nextval(''{0}_seq'')</tt> is used instead.
+ *
+ * @see org.bsf.smartValueObject.mediator.JdbcBatchMediator
+ */
+public class SequenceKeyGenerator implements KeyGenerator {
+    private final String pattern;
+
+    /**
+     * Creates a generator using the sequences named after the tables with
+     * a <tt>_seq</tt> suffix.
+     */
+    public SequenceKeyGenerator() {
+        this("CALL NEXT VALUE FOR {0}_seq");
+    }
+
+    /**
+     * Creates a generator with a query of its own.
+     * @param pattern query returning the next value of the sequence of a
+     * table.
+     */
+    public SequenceKeyGenerator(String pattern) {
+        this.pattern = pattern;
+    }
+
+    public long[] nextKeys(Connection conn, String table, String column, int count)
+            throws SQLException {
+        String sql = MessageFormat.format(pattern, new Object[] { table, column });
+        long[] keys = new long[count];
+        PreparedStatement ps = conn.prepareStatement(sql);
+        try {
+            for (int i = 0; i < count; i++) {
+                ResultSet rs = ps.executeQuery();
+                if (!rs.next())
+                    throw new SQLException("no value from sequence: " + sql);
+                keys[i] = rs.getLong(1);
+                rs.close();
+            }
+        } finally {
+            ps.close();
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,728 @@
+package org.bsf.smartValueObject.mediator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bsf.smartValueObject.SmartAccess;
+import org.bsf.smartValueObject.Versionable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Mediator queueing the updates of versionable graphs and storing them
+ * later in batches with the <tt>updateGraphs()</tt> of another mediator.
+ * <p>The queue holds copies of the graphs, made by serialization: the
+ * graph given to <tt>updateGraph()</tt> is marked clean (keeping its
+ * version ids) once copied, so it may be modified while the copy waits
+ * or is being stored; the new modifications are stored by the next
+ * update. Once the copy is stored, its version ids and the keys (held by
+ * the index field) given to created objects are passed back to the
+ * graph.
+ * <p>A graph is queued once, however often it is updated before being
+ * stored. Updating a queued graph again, or another instance with the
+ * same key and version id, merges the modified fields into the queued
+ * copy if nothing below the root was modified; otherwise the queue is
+ * flushed first, so an instance of another version is stored on its
+ * own and checked by the mediator storing it.
+ * <p>The queue is flushed when it holds <tt>batchSize</tt> graphs, every
+ * <tt>flushInterval</tt> milliseconds and on <tt>flush()</tt> and
+ * <tt>close()</tt>. <tt>getGraph()</tt> answers with a clean copy of the
+ * queued graph if there is one, deletes are passed on at once.
+ * <p>The graphs are stored without holding the lock of the mediator, so
+ * other graphs can be queued meanwhile; only the operations on a graph
+ * being stored wait for the flush to end. Flushes are stored one after
+ * the other.
+ * <p>If a log file is given, every queued copy is appended to it before
+ * <tt>updateGraph()</tt> returns. After each flush the log is emptied,
+ * or replaced by one holding the graphs queued meanwhile. Graphs left
+ * in the log by a crash are queued again by the next mediator created on
+ * the same file; those stored right before the crash may thus be stored
+ * twice.
+ *
+ * @see org.bsf.smartValueObject.SmartAccess#isGraphDirty
+ */
+public class WriteBehindMediator extends AbstractMediator {
+    private static final Log log = LogFactory.getLog(WriteBehindMediator.class);
+    private final Mediator mediator;
+    private final int batchSize;
+    private final File logFile;
+    private String indexField = "id";
+    /** Key (or entry id for graphs without key) -> <tt>Entry</tt>, in queueing order. */
+    private Map pending = new LinkedHashMap();
+    /** Graph given to or returned by this mediator -> <tt>Entry</tt> of its copy. */
+    private Map entries = new IdentityHashMap();
+    /** The <tt>pending</tt> entries being stored, null if not flushing. */
+    private Map flushing;
+    /** The <tt>entries</tt> being stored, null if not flushing. */
+    private Map flushingEntries;
+    private long nextId = 0;
+    private FileOutputStream logOut;
+    private Timer timer;
+
+    /**
+     * Creates a write-behind mediator, queueing the graphs found in the
+     * log file.
+     * @param mediator the mediator storing the graphs.
+     * @param batchSize number of queued graphs triggering a flush.
+     * @param flushInterval milliseconds between two flushes, 0 for none.
+     * @param logFile file logging the queued graphs, null for none.
+     * @throws MediatorException if the log can't be read.
+     */
+    public WriteBehindMediator(Mediator mediator, int batchSize,
+                               long flushInterval, File logFile)
+            throws MediatorException {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be positive");
+
+        this.mediator = mediator;
+        this.batchSize = batchSize;
+        this.logFile = logFile;
+        if (logFile != null && logFile.exists()) {
+            recover();
+        }
+        if (flushInterval > 0) {
+            timer = new Timer(true);
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    try {
+                        flush();
+                    } catch (MediatorException e) {
+                        log.error("could not flush queued graphs", e);
+                    } catch (RuntimeException e) {
+                        // would end the timer thread
+                        log.error("could not flush queued graphs", e);
+                    }
+                }
+            }, flushInterval, flushInterval);
+        }
+    }
+
+    /**
+     * Sets the field holding the key of the root objects, <tt>id</tt> by
+     * default.
+     */
+    public void setIndexField(String indexField) {
+        this.indexField = indexField;
+    }
+
+    /**
+     * Retrieves a graph, a clean copy of the queued one if any.
+     *
+     * @param prototype a prototype to obtain a initialized graph.
+     * @throws MediatorException
+     */
+    public Object getGraph(Object prototype)
+            throws MediatorException {
+        Object key = getKey(prototype, indexField);
+        synchronized (this) {
+            waitForFlush(null, key);
+            Entry entry = key == null ? null : (Entry) pending.get(key);
+            if (entry != null) {
+                Copy copy = new Copy(entry.graph);
+                // the copy is the original here, the queued graph its copy
+                entry.link(copy.copies, copy.originals);
+                entries.put(copy.graph, entry);
+                markClean(copy.graph);
+                return copy.graph;
+            }
+        }
+        return mediator.getGraph(prototype);
+    }
+
+    /**
+     * Queues a graph to be stored.
+     *
+     * @param graph the root element of a versionable graph.
+     * @return the key of the graph and whether it was queued.
+     * @throws MediatorException if the graph isn't versionable or the log
+     * can't be written.
+     */
+    public ChangeSummary updateGraph(Object graph)
+            throws MediatorException {
+        if (!SmartAccess.isVersionable(graph))
+            throw new MediatorException("Object not versionable");
+
+        Object key = getKey(graph, indexField);
+        boolean full;
+        while (true) {
+            synchronized (this) {
+                waitForFlush(graph, key);
+                Entry entry = (Entry) entries.get(graph);
+                if (!SmartAccess.isGraphDirty(graph))
+                    return summary(key, entry == null ? "Nothing" : "Queued");
+
+                if (entry == null && key != null) {
+                    entry = (Entry) pending.get(key);
+                }
+                if (entry == null || isMergeable(entry.graph, graph)) {
+                    queue(graph, key, entry);
+                    full = pending.size() >= batchSize;
+                    break;
+                }
+            }
+            // the queued graph is stored first
+            flush();
+        }
+
+        if (full) {
+            flush();
+        }
+        return summary(key, "Queued");
+    }
+
+    /**
+     * Queues a copy of a graph, merging it into the queued entry if given.
+     */
+    private void queue(Object graph, Object key, Entry entry)
+            throws MediatorException {
+        if (entry != null) {
+            Copy copy = new Copy(graph);
+            merge(entry.graph, copy.graph);
+            // the merged root stands for the queued one
+            copy.copies.set(0, entry.graph);
+            entry.link(copy.originals, copy.copies);
+            entries.put(graph, entry);
+            append(entry.id, new Copy(entry.graph).data);
+        } else {
+            Copy copy = new Copy(graph);
+            entry = new Entry(nextId++, key, copy.graph);
+            entry.link(copy.originals, copy.copies);
+            pending.put(entry.mapKey, entry);
+            entries.put(graph, entry);
+            append(entry.id, copy.data);
+        }
+        markClean(graph);
+    }
+
+    /**
+     * Waits until the running flush, if any, has ended.
+     */
+    private void waitForFlush() throws MediatorException {
+        while (flushing != null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new MediatorException("interrupted while waiting for flush", e);
+            }
+        }
+    }
+
+    /**
+     * Waits while the graph, or a graph with the same key, is being stored.
+     * @param graph the graph, null if unknown.
+     * @param key key of the graph, null if it has none.
+     */
+    private void waitForFlush(Object graph, Object key) throws MediatorException {
+        while (flushing != null &&
+               (graph != null && flushingEntries.containsKey(graph) ||
+                key != null && flushing.containsKey(key))) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new MediatorException("interrupted while waiting for flush", e);
+            }
+        }
+    }
+
+    /**
+     * Deletes a graph at once, dropping it from the queue. Graphs which
+     * were created and never stored are only dropped.
+     *
+     * @param graph the root element of the graph.
+     * @throws MediatorException
+     */
+    public synchronized void deleteGraph(Object graph)
+            throws MediatorException {
+        Object key = getKey(graph, indexField);
+        waitForFlush(graph, key);
+        Entry entry = (Entry) entries.get(graph);
+        if (entry == null && key != null) {
+            entry = (Entry) pending.get(key);
+        }
+        boolean created = SmartAccess.isVersionable(graph) && SmartAccess.isCreated(graph);
+        if (entry != null) {
+            created = SmartAccess.isCreated(entry.graph);
+            pending.remove(entry.mapKey);
+            entries.values().removeAll(Collections.singleton(entry));
+            append(entry.id, null);
+        }
+
+        if (!created) {
+            mediator.deleteGraph(graph);
+        }
+    }
+
+    /**
+     * Stores the queued graphs. If storing fails, the graphs stay queued.
+     * The graphs are stored outside of the lock, after the previous flush.
+     *
+     * @return a <tt>ChangeSummary</tt> for each graph stored.
+     * @throws MediatorException
+     */
+    public List flush() throws MediatorException {
+        List graphs;
+        synchronized (this) {
+            waitForFlush();
+            if (pending.isEmpty())
+                return Collections.EMPTY_LIST;
+
+            flushing = pending;
+            flushingEntries = entries;
+            pending = new LinkedHashMap();
+            entries = new IdentityHashMap();
+            graphs = new ArrayList(flushing.size());
+            for (Iterator it = flushing.values().iterator(); it.hasNext(); ) {
+                graphs.add(((Entry) it.next()).graph);
+            }
+        }
+
+        List summaries = null;
+        try {
+            summaries = mediator.updateGraphs(graphs);
+            log.debug("stored " + graphs.size() + " graphs");
+        } finally {
+            synchronized (this) {
+                try {
+                    if (summaries != null) {
+                        stored();
+                    } else {
+                        requeue();
+                    }
+                } finally {
+                    flushing = null;
+                    flushingEntries = null;
+                    notifyAll();
+                }
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Passes the results of a flush back and drops the stored graphs
+     * from the log.
+     */
+    private void stored() throws MediatorException {
+        for (Iterator it = flushing.values().iterator(); it.hasNext(); ) {
+            ((Entry) it.next()).passBack(indexField);
+        }
+        if (pending.isEmpty()) {
+            truncateLog();
+        } else {
+            rewriteLog();
+        }
+    }
+
+    /**
+     * Puts the graphs of a failed flush back in front of the queue. Their
+     * records are still in the log.
+     */
+    private void requeue() {
+        Map queue = new LinkedHashMap(flushing);
+        queue.putAll(pending);
+        pending = queue;
+        entries.putAll(flushingEntries);
+    }
+
+    /**
+     * Drops the queued graphs without storing them, e.g. after a flush
+     * failed because of a concurrent modification.
+     *
+     * @return the graphs dropped.
+     * @throws MediatorException if the log can't be emptied.
+     */
+    public synchronized List discard() throws MediatorException {
+        waitForFlush();
+        List graphs = new ArrayList(pending.size());
+        for (Iterator it = pending.values().iterator(); it.hasNext(); ) {
+            graphs.add(((Entry) it.next()).graph);
+        }
+        pending.clear();
+        entries.clear();
+        truncateLog();
+        return graphs;
+    }
+
+    /**
+     * Gets the number of queued graphs, including those being stored.
+     */
+    public synchronized int size() {
+        return pending.size() + (flushing == null ? 0 : flushing.size());
+    }
+
+    /**
+     * Stops the timer, stores the queued graphs and closes the log.
+     * @throws MediatorException
+     */
+    public void close() throws MediatorException {
+        synchronized (this) {
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+        }
+        flush();
+        synchronized (this) {
+            closeLog();
+        }
+    }
+
+    private void closeLog() {
+        if (logOut != null) {
+            try {
+                logOut.close();
+            } catch (IOException e) {
+                log.warn("could not close log", e);
+            }
+            logOut = null;
+        }
+    }
+
+    /**
+     * Can the modifications of a graph be merged into the queued instance ?
+     * Only modified fields of the root of the same version are merged.
+     */
+    private static boolean isMergeable(Object queued, Object graph) {
+        if (queued.getClass() != graph.getClass() ||
+            SmartAccess.getVersionId(queued) != SmartAccess.getVersionId(graph) ||
+            SmartAccess.isDeleted(queued) ||
+            SmartAccess.isCreated(graph) ||
+            SmartAccess.isDeleted(graph))
+            return false;
+
+        for (Iterator it = SmartAccess.getVersionables(graph); it.hasNext(); ) {
+            if (SmartAccess.isGraphDirty(it.next()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies the modified fields of the root of a copied graph into the
+     * queued instance.
+     */
+    private static void merge(Object queued, Object copy) {
+        Versionable v = (Versionable) copy;
+        int fields = SmartAccess.fieldNames(copy).length;
+        for (int i = 0; i < fields; i++) {
+            if (v.isDirty(i)) {
+                SmartAccess.setField(queued, i, SmartAccess.getField(copy, i));
+            }
+        }
+    }
+
+    /**
+     * Marks all objects of a graph clean, keeping their version ids.
+     */
+    private static void markClean(Object graph) {
+        Map visited = new IdentityHashMap();
+        List stack = new ArrayList();
+        stack.add(graph);
+
+        while (!stack.isEmpty()) {
+            Object o = stack.remove(stack.size() - 1);
+            if (visited.put(o, o) != null)
+                continue;
+
+            Iterator children = SmartAccess.isSmartContainer(o) ?
+                    SmartAccess.iterator(o) : SmartAccess.getVersionables(o);
+            while (children.hasNext()) {
+                Object child = children.next();
+                if (SmartAccess.isVersionable(child)) {
+                    stack.add(child);
+                }
+            }
+            long id = SmartAccess.getVersionId(o);
+            SmartAccess.reset(o);
+            SmartAccess.setVersionId(o, id);
+        }
+    }
+
+    private static ChangeSummary summary(Object key, String report) {
+        return new ChangeSummary(key == null ? null : ((List) key).get(1), report);
+    }
+
+    // --------------------------------------------------------------------------
+    // the log holds records of an entry id followed by the length and the
+    // serialized graph, or -1 when the entry was dropped.
+
+    /**
+     * Appends the state of an entry to the log and syncs it to disk.
+     * @param data the serialized queued graph, null if dropped.
+     */
+    private void append(long id, byte[] data) throws MediatorException {
+        if (logFile == null)
+            return;
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(id);
+            if (data == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(data.length);
+                out.write(data);
+            }
+            out.flush();
+
+            if (logOut == null) {
+                logOut = new FileOutputStream(logFile.getPath(), true);
+            }
+            bytes.writeTo(logOut);
+            logOut.flush();
+            logOut.getFD().sync();
+        } catch (IOException e) {
+            throw new MediatorException("could not write log " + logFile, e);
+        }
+    }
+
+    /**
+     * Cuts the log off after the given length, syncing it to disk.
+     */
+    private void truncateLog(long length) throws MediatorException {
+        try {
+            RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+            try {
+                file.setLength(length);
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            throw new MediatorException("could not repair log " + logFile, e);
+        }
+    }
+
+    /**
+     * Replaces the log by one holding the queued graphs only. The new log
+     * is written aside and renamed, so a crash leaves either of them.
+     */
+    private void rewriteLog() throws MediatorException {
+        if (logFile == null)
+            return;
+
+        File tmp = new File(logFile.getPath() + ".tmp");
+        closeLog();
+        try {
+            // appended to the new log
+            logOut = new FileOutputStream(tmp);
+            for (Iterator it = pending.values().iterator(); it.hasNext(); ) {
+                Entry entry = (Entry) it.next();
+                append(entry.id, new Copy(entry.graph).data);
+            }
+            closeLog();
+            // deleting first is needed where renaming doesn't replace a file
+            if (!tmp.renameTo(logFile) && !(logFile.delete() && tmp.renameTo(logFile)))
+                throw new IOException("could not rename " + tmp);
+        } catch (IOException e) {
+            throw new MediatorException("could not rewrite log " + logFile, e);
+        } finally {
+            closeLog();
+        }
+    }
+
+    private void truncateLog() throws MediatorException {
+        if (logFile == null)
+            return;
+
+        try {
+            if (logOut != null) {
+                logOut.close();
+            }
+            logOut = new FileOutputStream(logFile.getPath(), false);
+        } catch (IOException e) {
+            throw new MediatorException("could not empty log " + logFile, e);
+        }
+    }
+
+    /**
+     * Queues the graphs found in the log. An incomplete record at the end,
+     * left by a crash during a write, is cut off so that new records
+     * follow the last complete one.
+     */
+    private void recover() throws MediatorException {
+        Map graphs = new LinkedHashMap();
+        // end of the last complete record
+        long end = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(logFile));
+            while (true) {
+                long id;
+                byte[] data;
+                try {
+                    id = in.readLong();
+                    int length = in.readInt();
+                    data = length < 0 ? null : new byte[length];
+                    if (data != null) {
+                        in.readFully(data);
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                end += 12 + (data == null ? 0 : data.length);
+
+                Long entryId = new Long(id);
+                if (data == null) {
+                    graphs.remove(entryId);
+                } else {
+                    ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+                    graphs.put(entryId, ois.readObject());
+                }
+                nextId = Math.max(nextId, id + 1);
+            }
+        } catch (IOException e) {
+            throw new MediatorException("could not read log " + logFile, e);
+        } catch (ClassNotFoundException e) {
+            throw new MediatorException("could not read log " + logFile, e);
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) {
+                log.warn("could not close log", e);
+            }
+        }
+        if (logFile.length() > end) {
+            log.warn("dropping incomplete record at the end of " + logFile);
+            truncateLog(end);
+        }
+
+        for (Iterator it = graphs.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry e = (Map.Entry) it.next();
+            Object graph = e.getValue();
+            Entry entry = new Entry(((Long) e.getKey()).longValue(), getKey(graph, indexField), graph);
+            pending.put(entry.mapKey, entry);
+        }
+        if (!pending.isEmpty()) {
+            log.info("recovered " + pending.size() + " graphs from " + logFile);
+        }
+    }
+
+    /**
+     * A queued graph.
+     */
+    private static class Entry {
+        private final long id;
+        /** The key of the graph, or the id if it has none. */
+        private final Object mapKey;
+        private final Object graph;
+        /** Objects of the graphs outside, with their queued copies. */
+        private final List links = new ArrayList();
+
+        Entry(long id, Object key, Object graph) {
+            this.id = id;
+            this.mapKey = key != null ? key : new Long(id);
+            this.graph = graph;
+        }
+
+        /**
+         * Links the versionable objects of a graph outside to their queued
+         * copies, skipping version objects and containers.
+         * @param originals objects of the graph outside.
+         * @param copies the queued objects, in the same order.
+         */
+        void link(List originals, List copies) {
+            for (int i = 0; i < originals.size(); i++) {
+                Object o = originals.get(i);
+                if (SmartAccess.isVersionable(o) && SmartAccess.fieldNames(o).length > 0) {
+                    links.add(new Link(o, copies.get(i), SmartAccess.isCreated(o)));
+                }
+            }
+        }
+
+        /**
+         * Passes the version ids and the keys of created objects from the
+         * stored copies back to the objects outside.
+         */
+        void passBack(String indexField) {
+            for (int i = 0; i < links.size(); i++) {
+                Link link = (Link) links.get(i);
+                SmartAccess.setVersionId(link.original, SmartAccess.getVersionId(link.copy));
+                if (link.created) {
+                    copyKey(link.copy, link.original, indexField);
+                }
+            }
+        }
+    }
+
+    /**
+     * An object outside and its queued copy.
+     */
+    private static class Link {
+        private final Object original;
+        private final Object copy;
+        /** Was the object created when copied ? */
+        private final boolean created;
+
+        Link(Object original, Object copy, boolean created) {
+            this.original = original;
+            this.copy = copy;
+            this.created = created;
+        }
+    }
+
+    /**
+     * A copy of a graph made by serialization, with the versionable objects
+     * of the graph and of the copy in the same order. The objects of the
+     * graph are written again after it, as references to those already
+     * written, which are read as the copied objects.
+     */
+    private static class Copy {
+        private final byte[] data;
+        private final Object graph;
+        private final List originals;
+        private final List copies;
+
+        Copy(Object graph) throws MediatorException {
+            try {
+                final ArrayList written = new ArrayList();
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream out = new ObjectOutputStream(bytes) {
+                    {
+                        enableReplaceObject(true);
+                    }
+
+                    protected Object replaceObject(Object o) {
+                        if (o instanceof Versionable && o != written) {
+                            written.add(o);
+                        }
+                        return o;
+                    }
+                };
+                out.writeObject(graph);
+                out.writeObject(written);
+                out.close();
+                this.data = bytes.toByteArray();
+                this.originals = written;
+
+                ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+                this.graph = in.readObject();
+                this.copies = (List) in.readObject();
+            } catch (IOException e) {
+                throw new MediatorException("could not copy graph", e);
+            } catch (ClassNotFoundException e) {
+                throw new MediatorException("could not copy graph", e);
+            }
+        }
+    }
+}
@@ -4,8 +4,8 @@ import org.objectweb.asm.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.bsf.smartValueObject.tools.Instrumentor;
+import org.bsf.smartValueObject.SharedVersion;
 import org.bsf.smartValueObject.Versionable;
-import org.bsf.smartValueObject.Version;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -25,6 +25,10 @@ public class ASMInstrumentor implements Instrumentor {
     private static Log log = LogFactory.getLog(ASMInstrumentor.class);
     private ClassWriter cw;
     private String className;
+    /** Implementation of VERSIONINTERFACE to instantiate. */
+    private String versionClass = VERSIONCLASS;
+    /** Start with a shared version, allocated on the first write ? */
+    private boolean lazy = false;
 
     public void modifyClass(String name) throws InstrumentorException {
         modifyClass(null, name);
@@ -44,16 +48,66 @@ public class ASMInstrumentor implements Instrumentor {
 
         try {
             InputStream is = new FileInputStream(file);
-            ClassReader cr = new ClassReader(is);
-            cw = new ClassWriter(true);
-            ClassVisitor cv = new SVOClassAdapter(className, cw);
-            cr.accept(cv, true);
+            modify(new ClassReader(is));
         } catch (Exception e) {
             throw new InstrumentorException(e);
         }
 
     }
 
+    /**
+     * Modifies a class given as bytecode, e.g. while it is being loaded.
+     *
+     * @param name the internal name of the class (<tt>a/b/C</tt>).
+     * @param bytecode the unmodified class.
+     * @throws InstrumentorException
+     * @see SmartAgent
+     */
+    public void modifyClass(String name, byte[] bytecode) throws InstrumentorException {
+        className = name;
+        try {
+            modify(new ClassReader(bytecode));
+        } catch (Exception e) {
+            throw new InstrumentorException(e);
+        }
+    }
+
+    private void modify(ClassReader cr) {
+        cw = new ClassWriter(true);
+        ClassVisitor cv = new SVOClassAdapter(className, cw);
+        cr.accept(cv, true);
+    }
+
+    /**
+     * Checks if a class has already been made versionable.
+     * @param bytecode the class.
+     * @return true if the class implements VERSIONINTERFACE.
+     */
+    public static boolean isVersionable(byte[] bytecode) {
+        InterfaceReader ir = new InterfaceReader();
+        new ClassReader(bytecode).accept(ir, true);
+        return ir.versionable;
+    }
+
+    public void setVersionClass(String classname) {
+        this.versionClass = classname;
+    }
+
+    /**
+     * Not supported by this implementation.
+     * @throws UnsupportedOperationException if inline is true.
+     */
+    public void setInlineVersion(boolean inline) {
+        if (inline) {
+            throw new UnsupportedOperationException(
+                    "ASMInstrumentor can't inline the version state");
+        }
+    }
+
+    public void setLazyVersion(boolean lazy) {
+        this.lazy = lazy;
+    }
+
     public byte[] getBytecode() throws InstrumentorException {
         if (cw == null) {
             throw new InstrumentorException();
@@ -65,11 +119,46 @@ public class ASMInstrumentor implements Instrumentor {
        throw new UnsupportedOperationException();
     }
 
+    /**
+     * Looks for VERSIONINTERFACE in the interfaces of a class.
+     */
+    private static class InterfaceReader implements ClassVisitor {
+        private boolean versionable = false;
+
+        public void visit(int access, String name, String superName,
+                          String[] interfaces, String sourceFile) {
+            String versionDesc = VERSIONINTERFACE.replace('.', '/');
+            for (int i = 0; interfaces != null && i < interfaces.length; i++) {
+                if (interfaces[i].equals(versionDesc)) {
+                    versionable = true;
+                }
+            }
+        }
+
+        public void visitInnerClass(String name, String outerName, String innerName, int access) {
+        }
+
+        public void visitField(int access, String name, String desc, Object value, Attribute attrs) {
+        }
+
+        public CodeVisitor visitMethod(int access, String name, String desc,
+                                       String[] exceptions, Attribute attrs) {
+            return null;
+        }
+
+        public void visitAttribute(Attribute attr) {
+        }
+
+        public void visitEnd() {
+        }
+    }
+
     /**
      * Adapter to change class informations with ASM.
      */
     private class SVOClassAdapter extends ClassAdapter implements Constants {
         private Set methods = new HashSet();
+        private List fields = new ArrayList();
         private boolean methodsCreated = false;
         private String internalName;
 
@@ -95,6 +184,14 @@ public class ASMInstrumentor implements Instrumentor {
             createVersionableField(cv);
         }
 
+        public void visitField(int access, String name, String desc, Object value, Attribute attrs) {
+            log.debug("visitField(" + name + ")");
+            if ((access & ACC_STATIC) == 0) {
+                fields.add(name);
+            }
+            cv.visitField(access, name, desc, value, attrs);
+        }
+
         public CodeVisitor visitMethod(int i, String s, String s1, String[] strings, Attribute attribute) {
             log.debug("visitMethod(" + s + ")");
             CodeVisitor mv = cv.visitMethod(i, s, s1, strings, attribute);
@@ -131,6 +228,14 @@ public class ASMInstrumentor implements Instrumentor {
             return internalName;
         }
 
+        /**
+         * Gets the index of an instance field of this class.
+         * @return the index, or -1 if the field is not declared here.
+         */
+        public int getFieldIndex(String field) {
+            return fields.indexOf(field);
+        }
+
         private void createTrapMethods() {
             log.debug("createTrapMethods()");
             for (Iterator it = methods.iterator(); it.hasNext(); ) {
@@ -145,7 +250,11 @@ public class ASMInstrumentor implements Instrumentor {
                 createTrapMethod(method, codevisitor);
             }
 
+            if (lazy) {
+                createWritableMethod();
+            }
             createVersionableMethods(Versionable.class, VERSIONFIELD);
+            createFieldNames();
             methodsCreated = true;
         }
 
@@ -211,17 +320,32 @@ public class ASMInstrumentor implements Instrumentor {
 
 
 
-            cv.visitVarInsn(ALOAD, 0);
-            cv.visitFieldInsn(GETFIELD,
-                    getInternalName(),
-                    VERSIONFIELD,
-                    Type.getDescriptor(Versionable.class));
+            loadWritableVersion(cv);
+
+            int index = getFieldIndex(m.getField());
+            if (index != -1) {
+                // call version.touch(int index)
+                pushInt(cv, index);
+                cv.visitMethodInsn(INVOKEINTERFACE,
+                        Type.getInternalName(Versionable.class),
+                        VERSIONMETHOD, "(I)V");
+            } else {
+                // inherited field, call version.touch(String fieldname)
+                cv.visitLdcInsn(m.getField());
+                cv.visitMethodInsn(INVOKEINTERFACE,
+                        Type.getInternalName(Versionable.class),
+                        VERSIONMETHOD, "(Ljava/lang/String;)V");
+            }
 
-            // call version.touch(String fieldname)
-            cv.visitLdcInsn(m.getField());
-            cv.visitMethodInsn(INVOKEINTERFACE,
-                    Type.getDescriptor(Versionable.class),
-                    VERSIONMETHOD, "(Ljava/lang/String;)V");
+            // link the new child to this object
+            if (m.getType().startsWith("L") &&
+                !m.getTypeInternalName().startsWith("java/lang")) {
+                cv.visitVarInsn(ALOAD, 0);
+                cv.visitVarInsn(ALOAD, 0);
+                cv.visitFieldInsn(GETFIELD, getInternalName(), m.getField(), m.getType());
+                cv.visitVarInsn(ALOAD, 1);
+                createReparentCall(cv);
+            }
 
             // set new field value
             cv.visitVarInsn(ALOAD, 0);
@@ -259,6 +383,11 @@ public class ASMInstrumentor implements Instrumentor {
             String replacementDesc = replacement.replace('.', '/');
             String versionableDesc = VERSIONINTERFACE.replace('.', '/');
 
+            // keep old field value
+            cv.visitVarInsn(ALOAD, 0);
+            cv.visitFieldInsn(GETFIELD, getInternalName(), m.getField(), m.getType());
+            cv.visitVarInsn(ASTORE, 2);
+
             // create smart container
             cv.visitVarInsn(ALOAD, 0);
             cv.visitTypeInsn(NEW, replacementDesc);
@@ -267,9 +396,13 @@ public class ASMInstrumentor implements Instrumentor {
             // load parameter on stack
             cv.visitVarInsn(ALOAD, 1);
 
-            // load versionable field on stack
-            cv.visitVarInsn(ALOAD, 0);
-            cv.visitFieldInsn(GETFIELD, getInternalName(), VERSIONFIELD, "L" + versionableDesc + ";");
+            if (lazy) {
+                // the version may still be replaced, use this object
+                cv.visitVarInsn(ALOAD, 0);
+            } else {
+                // load versionable field on stack
+                loadWritableVersion(cv);
+            }
 
             // invoke contructor
             cv.visitMethodInsn(INVOKESPECIAL,
@@ -279,8 +412,119 @@ public class ASMInstrumentor implements Instrumentor {
 
             // store new object in field
             cv.visitFieldInsn(PUTFIELD, getInternalName(), m.getField(), m.getType());
+
+            // link the container to this object
+            cv.visitVarInsn(ALOAD, 0);
+            cv.visitVarInsn(ALOAD, 2);
+            cv.visitVarInsn(ALOAD, 0);
+            cv.visitFieldInsn(GETFIELD, getInternalName(), m.getField(), m.getType());
+            createReparentCall(cv);
+
             cv.visitInsn(RETURN);
-            cv.visitMaxs(4, 2);
+            cv.visitMaxs(4, 3);
+        }
+
+        /**
+         * Pushes the version of this object, allocating it first if the
+         * class is lazy.
+         */
+        private void loadWritableVersion(CodeVisitor cv) {
+            cv.visitVarInsn(ALOAD, 0);
+            if (lazy) {
+                cv.visitMethodInsn(INVOKESPECIAL,
+                        getInternalName(),
+                        WRITABLEMETHOD,
+                        "()" + Type.getDescriptor(Versionable.class));
+            } else {
+                cv.visitFieldInsn(GETFIELD,
+                        getInternalName(),
+                        VERSIONFIELD,
+                        Type.getDescriptor(Versionable.class));
+            }
+        }
+
+        /**
+         * Creates WRITABLEMETHOD, replacing the shared version by a new
+         * instance of the version class:
+         * <code>if (version instanceof SharedVersion)
+         * version = ((SharedVersion) version).allocate(new Version(this));
+         * return version;</code>
+         */
+        private void createWritableMethod() {
+            log.debug("createWritableMethod()");
+            String versionableDesc = Type.getDescriptor(Versionable.class);
+            String sharedDesc = SHAREDVERSIONCLASS.replace('.', '/');
+            String versionDesc = versionClass.replace('.', '/');
+            CodeVisitor mv = cv.visitMethod(ACC_PRIVATE,
+                    WRITABLEMETHOD, "()" + versionableDesc, null, null);
+            Label allocated = new Label();
+
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, getInternalName(), VERSIONFIELD, versionableDesc);
+            mv.visitTypeInsn(INSTANCEOF, sharedDesc);
+            mv.visitJumpInsn(IFEQ, allocated);
+
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, getInternalName(), VERSIONFIELD, versionableDesc);
+            mv.visitTypeInsn(CHECKCAST, sharedDesc);
+            mv.visitTypeInsn(NEW, versionDesc);
+            mv.visitInsn(DUP);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitMethodInsn(INVOKESPECIAL, versionDesc, "<init>", "(Ljava/lang/Object;)V");
+            mv.visitMethodInsn(INVOKEVIRTUAL, sharedDesc, "allocate",
+                    "(" + versionableDesc + ")" + versionableDesc);
+            mv.visitFieldInsn(PUTFIELD, getInternalName(), VERSIONFIELD, versionableDesc);
+
+            mv.visitLabel(allocated);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, getInternalName(), VERSIONFIELD, versionableDesc);
+            mv.visitInsn(ARETURN);
+            mv.visitMaxs(5, 1);
+        }
+
+        /**
+         * Invokes <tt>VersionHelper.reparent(parent, oldChild, newChild)</tt>,
+         * the arguments being on the operand stack.
+         */
+        private void createReparentCall(CodeVisitor cv) {
+            cv.visitMethodInsn(INVOKESTATIC,
+                    VERSIONHELPER.replace('.', '/'),
+                    "reparent",
+                    "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)V");
+        }
+
+        private void pushInt(CodeVisitor cv, int value) {
+            if (value <= 5) {
+                cv.visitInsn(ICONST_0 + value);
+            } else if (value <= Byte.MAX_VALUE) {
+                cv.visitIntInsn(BIPUSH, value);
+            } else if (value <= Short.MAX_VALUE) {
+                cv.visitIntInsn(SIPUSH, value);
+            } else {
+                cv.visitLdcInsn(new Integer(value));
+            }
+        }
+
+        /**
+         * Creates a constant listing the instance fields of the class,
+         * in the order used for the indices passed to <tt>touch(int)</tt>.
+         */
+        private void createFieldNames() {
+            log.debug("createFieldNames()");
+            StringBuffer names = new StringBuffer();
+            for (Iterator it = fields.iterator(); it.hasNext(); ) {
+                names.append(it.next());
+                if (it.hasNext())
+                    names.append(',');
+            }
+
+            cv.visitField(
+                    ACC_PUBLIC + ACC_STATIC + ACC_FINAL,    /* access */
+                    FIELDNAMES,                             /* name */
+                    "Ljava/lang/String;",                   /* descriptor */
+                    names.toString(),                       /* static value */
+                    null);                                  /* attributes */
         }
 
         private void createVersionableField(ClassVisitor cv) {
@@ -316,13 +560,52 @@ public class ASMInstrumentor implements Instrumentor {
                 // create method signature
                 CodeVisitor codevisitor = cv.visitMethod(ACC_PUBLIC,
                     name, desc, exceptions, null);
-                // load 'this'
-                codevisitor.visitVarInsn(ALOAD, 0);
-                // get version field
-                codevisitor.visitFieldInsn(GETFIELD,
-                        getInternalName(),
-                        VERSIONFIELD,
-                        Type.getDescriptor(Versionable.class));
+
+                if (lazy && name.equals(CLEANMETHOD)) {
+                    // version = SharedVersion.markClean(version), keeps it shared
+                    String versionableDesc = Type.getDescriptor(Versionable.class);
+                    codevisitor.visitVarInsn(ALOAD, 0);
+                    codevisitor.visitVarInsn(ALOAD, 0);
+                    codevisitor.visitFieldInsn(GETFIELD, getInternalName(), VERSIONFIELD, versionableDesc);
+                    codevisitor.visitMethodInsn(INVOKESTATIC,
+                            SHAREDVERSIONCLASS.replace('.', '/'),
+                            CLEANMETHOD,
+                            "(" + versionableDesc + ")" + versionableDesc);
+                    codevisitor.visitFieldInsn(PUTFIELD, getInternalName(), VERSIONFIELD, versionableDesc);
+                    codevisitor.visitInsn(RETURN);
+                    codevisitor.visitMaxs(2, 1);
+                    continue;
+                }
+
+                if (lazy && SharedVersion.isLinkMethod(name)) {
+                    // version = SharedVersion.addParent(version, this, parent), keeps it shared
+                    String versionableDesc = Type.getDescriptor(Versionable.class);
+                    codevisitor.visitVarInsn(ALOAD, 0);
+                    codevisitor.visitVarInsn(ALOAD, 0);
+                    codevisitor.visitFieldInsn(GETFIELD, getInternalName(), VERSIONFIELD, versionableDesc);
+                    codevisitor.visitVarInsn(ALOAD, 0);
+                    codevisitor.visitVarInsn(ALOAD, 1);
+                    codevisitor.visitMethodInsn(INVOKESTATIC,
+                            SHAREDVERSIONCLASS.replace('.', '/'),
+                            name,
+                            "(" + versionableDesc + versionableDesc + versionableDesc + ")" + versionableDesc);
+                    codevisitor.visitFieldInsn(PUTFIELD, getInternalName(), VERSIONFIELD, versionableDesc);
+                    codevisitor.visitInsn(RETURN);
+                    codevisitor.visitMaxs(4, 2);
+                    continue;
+                }
+
+                if (lazy && !SharedVersion.isShareable(name)) {
+                    loadWritableVersion(codevisitor);
+                } else {
+                    // load 'this'
+                    codevisitor.visitVarInsn(ALOAD, 0);
+                    // get version field
+                    codevisitor.visitFieldInsn(GETFIELD,
+                            getInternalName(),
+                            VERSIONFIELD,
+                            Type.getDescriptor(Versionable.class));
+                }
 
                 // load parameters on operand stack
                 Class[] parameters = method.getParameterTypes();
@@ -343,7 +626,7 @@ public class ASMInstrumentor implements Instrumentor {
 
                 // invoke method on version field
                 codevisitor.visitMethodInsn(INVOKEINTERFACE,
-                        Type.getDescriptor(Versionable.class),
+                        Type.getInternalName(Versionable.class),
                         name,
                         desc);
 
@@ -414,14 +697,21 @@ public class ASMInstrumentor implements Instrumentor {
         }
 
         private void initVersionable() {
-            String versionDesc = Type.getDescriptor(Version.class);
+            String versionDesc = versionClass.replace('.', '/');
             String versionableDesc = Type.getDescriptor(Versionable.class);
             String ownerDesc = ca.getInternalName();
 
             cv.visitVarInsn(ALOAD, 0);
-            cv.visitTypeInsn(NEW, versionDesc);
-            cv.visitInsn(DUP);
-            cv.visitMethodInsn(INVOKESPECIAL, versionDesc, "<init>", "()V");
+            if (lazy) {
+                // version = SharedVersion.NEW
+                String sharedDesc = SHAREDVERSIONCLASS.replace('.', '/');
+                cv.visitFieldInsn(GETSTATIC, sharedDesc, "NEW", "L" + sharedDesc + ";");
+            } else {
+                cv.visitTypeInsn(NEW, versionDesc);
+                cv.visitInsn(DUP);
+                cv.visitVarInsn(ALOAD, 0);
+                cv.visitMethodInsn(INVOKESPECIAL, versionDesc, "<init>", "(Ljava/lang/Object;)V");
+            }
             cv.visitFieldInsn(PUTFIELD,
                     ownerDesc,
                     VERSIONFIELD,
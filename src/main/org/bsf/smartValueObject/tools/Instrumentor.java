@@ -14,12 +14,26 @@ public interface Instrumentor {
     String VERSIONINTERFACE = "org.bsf.smartValueObject.Versionable";
     /** Default implementation for VERSIONINTERFACE. */
     String VERSIONCLASS     = "org.bsf.smartValueObject.Version";
+    /** Smaller implementation for VERSIONINTERFACE, also used for inlined state. */
+    String COMPACTVERSIONCLASS = "org.bsf.smartValueObject.CompactVersion";
+    /** Immutable version shared by objects not modified yet. */
+    String SHAREDVERSIONCLASS = "org.bsf.smartValueObject.SharedVersion";
+    /** Method of lazily versioned classes returning their own version. */
+    String WRITABLEMETHOD   = "writableVersion";
     /** The helper class used by instrumentors + TOs (on runtime) */
     String VERSIONHELPER    = "org.bsf.smartValueObject.VersionHelper";
+    /** Dispatches the modifications to listeners. */
+    String VERSIONEVENTS    = "org.bsf.smartValueObject.VersionEvents";
     /** Name of the field in versionable classes. */
     String VERSIONFIELD     = "version";
     /** Method to call upon field write access. */
     String VERSIONMETHOD    = "touch";
+    /**
+     * Static field added to versionable classes, listing their instance
+     * fields separated by commas. The position of a field in this list is
+     * the index passed to <tt>touch(int)</tt>.
+     */
+    String FIELDNAMES       = "versionFields";
     /** To verify is object has been altered. */
     String DIRTYMETHOD      = "isDirty";
     /** Method to clean flags. */
@@ -62,6 +76,34 @@ public interface Instrumentor {
      */
     byte[] getBytecode() throws InstrumentorException;
 
+    /**
+     * Sets the implementation of VERSIONINTERFACE used for the version
+     * field, VERSIONCLASS by default. The class needs a constructor taking
+     * the owning object and a constructor without arguments.
+     *
+     * @param classname fully qualified name of the class.
+     */
+    void setVersionClass(String classname);
+
+    /**
+     * Keep the version state in fields of the modified classes instead of
+     * a separate version object, saving one object per instance.
+     *
+     * @param inline true to inline the state.
+     * @throws UnsupportedOperationException if the instrumentor can't do this.
+     * @see org.bsf.smartValueObject.CompactVersion
+     */
+    void setInlineVersion(boolean inline);
+
+    /**
+     * Start with the shared SHAREDVERSIONCLASS and allocate the version
+     * object on the first modification only.
+     *
+     * @param lazy true to allocate versions lazily.
+     * @see org.bsf.smartValueObject.SharedVersion
+     */
+    void setLazyVersion(boolean lazy);
+
     /**
      * Use internal classloader to build class object.
      * <p>Exists rather for testing purposes, as classes won't be compatible !
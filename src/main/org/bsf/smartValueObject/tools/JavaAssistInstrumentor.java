@@ -3,8 +3,12 @@ package org.bsf.smartValueObject.tools;
 import javassist.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.bsf.smartValueObject.SharedVersion;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -17,16 +21,34 @@ import java.util.Properties;
  */
 public class JavaAssistInstrumentor implements Instrumentor {
     private static final Log log = LogFactory.getLog(JavaAssistInstrumentor.class);
-    /** Default pool to obtain CtClasses from. */
+    /**
+     * Default pool to obtain CtClasses from. Shared by all instances,
+     * which synchronize on it to be usable from several threads.
+     */
     private static final ClassPool pool;
-    /** The codeconverter to be used to change field access. */
-    private static final CodeConverter converter = new CodeConverter();
     /** Custom classloader to define classes at runtime. */
     private static InstClassLoader instCL = new InstClassLoader(JavaAssistInstrumentor.class.getClassLoader());
     /** A The modified class in javassist's representation. */
     private CtClass ctclass = null;
-    /** The trap method to be used for field access. */
-    private CtMethod standardTrap = null;
+    /** Names of the intercepted fields, in index order. */
+    private StringBuffer fieldNames = null;
+    /** The codeconverter to be used to change field access. */
+    private CodeConverter converter = null;
+    /** Sources of the write methods, added after the conversion. */
+    private List writeMethods = null;
+    /** Implementation of VERSIONINTERFACE used for the version field. */
+    private String versionClass = VERSIONCLASS;
+    /** Keep the version state in fields of the class ? */
+    private boolean inline = false;
+    /** Start with a shared version, allocated on the first write ? */
+    private boolean lazy = false;
+
+    /** Fields holding the state of inlined versions. */
+    private static final String INLINE_ID     = VERSIONFIELD + "_id";
+    private static final String INLINE_STATE  = VERSIONFIELD + "_state";
+    private static final String INLINE_FIELDS = VERSIONFIELD + "_fields";
+    private static final String INLINE_MORE   = VERSIONFIELD + "_more";
+    private static final String INLINE_PARENTS = VERSIONFIELD + "_parents";
 
     static {
         // default classpool = java.lang.Object.class.getClassLoader()
@@ -65,38 +87,66 @@ public class JavaAssistInstrumentor implements Instrumentor {
             name = fileToClass(name);
         }
 
-        try {
-            ctclass = pool.get(name);
-            if (alreadyModified(ctclass)) {
-                return;
-            } else {
-                modifyClass(ctclass);
+        synchronized (pool) {
+            try {
+                ctclass = pool.get(name);
+                if (alreadyModified(ctclass)) {
+                    return;
+                } else {
+                    modifyClass(ctclass);
+                }
+            } catch (Exception e) {
+                throw new InstrumentorException("JavaAssistInstrumentor: error while transforming", e);
             }
-        } catch (Exception e) {
-            throw new InstrumentorException("JavaAssistInstrumentor: error while transforming", e);
         }
     }
 
     public void modifyClass(String basedir, String file) throws InstrumentorException {
-        try {
-            FileInputStream fis = new FileInputStream(new File(basedir, file));
-            byte[] bytecode = readStream(fis);
-            pool.insertClassPath(new ByteArrayClassPath(fileToClass(file), bytecode));
-            pool.appendClassPath(basedir);
-        } catch (NotFoundException e) {
-            throw new InstrumentorException(e);
-        }  catch (IOException e) {
-            throw new InstrumentorException(e);
+        synchronized (pool) {
+            try {
+                FileInputStream fis = new FileInputStream(new File(basedir, file));
+                byte[] bytecode = readStream(fis);
+                pool.insertClassPath(new ByteArrayClassPath(fileToClass(file), bytecode));
+                pool.appendClassPath(basedir);
+            } catch (NotFoundException e) {
+                throw new InstrumentorException(e);
+            }  catch (IOException e) {
+                throw new InstrumentorException(e);
+            }
+            modifyClass(file);
         }
-        modifyClass(file);
+    }
+
+    public void setVersionClass(String classname) {
+        this.versionClass = classname;
+    }
+
+    /**
+     * Inlined version state is kept in fields named <tt>version_*</tt>,
+     * the logic is provided by <tt>CompactVersion</tt>.
+     */
+    public void setInlineVersion(boolean inline) {
+        this.inline = inline;
+    }
+
+    /**
+     * Lazy classes get a method WRITABLEMETHOD, allocating the version
+     * if it is still shared. It is used by the traps and all methods of
+     * VERSIONINTERFACE changing the state, except for the parent links
+     * which are kept by SHAREDVERSIONCLASS.
+     */
+    public void setLazyVersion(boolean lazy) {
+        this.lazy = lazy;
     }
 
     public byte[] getBytecode() throws InstrumentorException {
         if (ctclass == null) throw new IllegalStateException("use modifyClass first");
-        try {
-            return ctclass.toBytecode();
-        } catch (Exception e) {
-            throw new InstrumentorException(e);
+        synchronized (pool) {
+            try {
+                return ctclass.toBytecode();
+            } catch (Exception e) {
+                throw new InstrumentorException(e);
+            }
         }
     }
 
@@ -113,11 +163,20 @@ public class JavaAssistInstrumentor implements Instrumentor {
         log.debug("modifyClass: " + cc);
 
         try {
-            standardTrap = createTrapWrite(cc);
+            fieldNames = new StringBuffer();
+            converter = new CodeConverter();
+            writeMethods = new ArrayList();
             addFieldInterceptors(cc);
-            makeFieldsPublic(cc);
-            makeVersionable(cc);
+            // convert before adding the write methods, they store
+            // the fields directly and must not call themselves
             cc.instrument(converter);
+            makeFieldsPublic(cc);
+            if (inline) {
+                makeVersionableInline(cc);
+            } else {
+                makeVersionable(cc);
+            }
+            addWriteMethods(cc);
         } catch (Exception e) {
             log.warn("exeception while modifying", e);
             throw new InstrumentorException(e);
@@ -150,11 +209,131 @@ public class JavaAssistInstrumentor implements Instrumentor {
     private void makeVersionable(CtClass cc)
             throws CannotCompileException, NotFoundException, InstrumentorException {
         CtField versionField = addVersionField(cc);
+        addFieldNamesField(cc);
         CtClass versionInterface = pool.get(VERSIONINTERFACE);
+        if (lazy) {
+            addWritableMethod(cc);
+        }
         addDelegations(versionInterface, versionField, cc);
         cc.addInterface(versionInterface);
     }
 
+    /**
+     * Makes class versionable without a version object.
+     * Adds fields for the version state and implements VERSIONINTERFACE
+     * on them, using the static methods of COMPACTVERSIONCLASS.
+     *
+     * @see org.bsf.smartValueObject.CompactVersion
+     */
+    private void makeVersionableInline(CtClass cc)
+            throws CannotCompileException, NotFoundException {
+        String cv = COMPACTVERSIONCLASS;
+        String changed = INLINE_STATE + " = " + cv + ".changed(";
+        String parentsAndThis = ", " + INLINE_PARENTS + ", this);";
+
+        // needed first, 'this' is passed on as versionable
+        cc.addInterface(pool.get(VERSIONINTERFACE));
+        addFieldNamesField(cc);
+        cc.addField(CtField.make("public long " + INLINE_ID + ";", cc),
+                VERSIONCLASS + ".getIdGenerator().nextId()");
+        cc.addField(CtField.make("public byte " + INLINE_STATE + ";", cc),
+                "(byte) " + cv + ".NEW");
+        cc.addField(CtField.make("public long " + INLINE_FIELDS + ";", cc));
+        cc.addField(CtField.make("public long[] " + INLINE_MORE + ";", cc));
+        cc.addField(CtField.make("public transient " + VERSIONINTERFACE + "[] " +
+                INLINE_PARENTS + ";", cc));
+
+        String[] methods = {
+            "public void touch() {" +
+                changed + INLINE_STATE + parentsAndThis + "}",
+            "public void touch(String field) { touch(); }",
+            "public void touch(int field) {" +
+            "   if (field < 64) {" +
+            "       " + INLINE_FIELDS + " |= 1L << field;" +
+            "   } else {" +
+            "       " + INLINE_MORE + " = " + cv + ".touchMore(" + INLINE_MORE + ", field);" +
+            "   }" +
+            "   touch();" +
+            "   " + VERSIONEVENTS + ".fieldWritten(this, field);" +
+            "}",
+            "public void delete() {" +
+                changed + cv + ".delete(" + INLINE_STATE + ")" + parentsAndThis + "}",
+            "public void create() {" +
+                changed + cv + ".create(" + INLINE_STATE + ")" + parentsAndThis + "}",
+            "public boolean isCreated() {" +
+            "   return (" + INLINE_STATE + " & " + cv + ".CREATED) != 0; }",
+            "public boolean isDeleted() {" +
+            "   return (" + INLINE_STATE + " & " + cv + ".DELETED) != 0; }",
+            "public boolean isDirty() {" +
+            "   return (" + INLINE_STATE + " & " + cv + ".DIRTY) != 0; }",
+            "public boolean isGraphDirty() {" +
+            "   return (" + INLINE_STATE + " & " + cv + ".GRAPHDIRTY) != 0; }",
+            "public boolean isDirty(int field) {" +
+            "   return " + cv + ".isDirty(" + INLINE_FIELDS + ", " + INLINE_MORE + ", field); }",
+            "public void markClean() {" +
+            "   " + INLINE_STATE + " = (byte) 0;" +
+            "   " + INLINE_FIELDS + " = 0L;" +
+            "   " + INLINE_MORE + " = null;" +
+            "   " + INLINE_ID + " = " + VERSIONCLASS + ".getIdGenerator().nextId();" +
+            "}",
+            "public void addParent(" + VERSIONINTERFACE + " parent) {" +
+            "   " + INLINE_PARENTS + " = " + cv + ".addParent(" + INLINE_PARENTS +
+                    ", parent, " + INLINE_STATE + ", this); }",
+            "public void removeParent(" + VERSIONINTERFACE + " parent) {" +
+            "   " + INLINE_PARENTS + " = " + VERSIONHELPER + ".removeParent(" +
+                    INLINE_PARENTS + ", parent); }",
+            "public void touchGraph(" + VERSIONINTERFACE + " child) {" +
+            "   " + INLINE_STATE + " = " + cv + ".touchGraph(" + INLINE_STATE + parentsAndThis + "}",
+            "public long getVersionId() { return " + INLINE_ID + "; }",
+            "public void setVersionId(long id) { " + INLINE_ID + " = id; }"
+        };
+        for (int i = 0; i < methods.length; i++) {
+            log.debug(methods[i]);
+            cc.addMethod(CtNewMethod.make(methods[i], cc));
+        }
+
+        // restore the links to the children after deserialization
+        if (hasDeclaredMethod(cc, "readObject")) {
+            log.warn(cc.getName() + " has its own readObject(), " +
+                     "links to children are not restored after deserialization");
+        } else {
+            cc.addMethod(CtNewMethod.make(
+                    "private void readObject(java.io.ObjectInputStream in)" +
+                    "       throws java.io.IOException, ClassNotFoundException {" +
+                    "   in.defaultReadObject();" +
+                    "   " + cv + ".relinkAfterRead(this, in);" +
+                    "}", cc));
+        }
+    }
+
+    /**
+     * Adds WRITABLEMETHOD, replacing the shared version by a new
+     * instance of the version class.
+     *
+     * @see org.bsf.smartValueObject.SharedVersion#allocate
+     */
+    private void addWritableMethod(CtClass cc) throws CannotCompileException {
+        String body =
+                "private " + VERSIONINTERFACE + " " + WRITABLEMETHOD + "() {" +
+                "   if (" + VERSIONFIELD + " instanceof " + SHAREDVERSIONCLASS + ") {" +
+                "       " + VERSIONFIELD + " = ((" + SHAREDVERSIONCLASS + ") " + VERSIONFIELD +
+                            ").allocate(new " + versionClass + "(this));" +
+                "   }" +
+                "   return " + VERSIONFIELD + ";" +
+                "}";
+        log.debug(body);
+        cc.addMethod(CtNewMethod.make(body, cc));
+    }
+
+    private static boolean hasDeclaredMethod(CtClass cc, String name) {
+        CtMethod[] methods = cc.getDeclaredMethods();
+        for (int i = 0; i < methods.length; i++) {
+            if (methods[i].getName().equals(name))
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Generic method to implement an interface by delegation.
      * <p>E.g. <code>declaring.isDirty()</code> ==>
@@ -185,7 +364,22 @@ public class JavaAssistInstrumentor implements Instrumentor {
 
             // ($$) javassist specific macro (expanded to parameters)
             // field.methodname(1st parameter, 2nd parameter...)
-            body.append(field.getName() + (".") + method.getName() + "($$);");
+            String target = field.getName();
+            if (lazy && method.getName().equals(CLEANMETHOD)) {
+                // keeps the version shared
+                body.append(target + " = " + SHAREDVERSIONCLASS + "." + CLEANMETHOD + "($0." + target + ");");
+                target = null;
+            } else if (lazy && SharedVersion.isLinkMethod(method.getName())) {
+                // keeps the version shared, holding the parent links
+                body.append(target + " = " + SHAREDVERSIONCLASS + "." + method.getName() +
+                            "($0." + target + ", (" + VERSIONINTERFACE + ") $0, $1);");
+                target = null;
+            } else if (lazy && !SharedVersion.isShareable(method.getName())) {
+                target = WRITABLEMETHOD + "()";
+            }
+            if (target != null) {
+                body.append(target + (".") + method.getName() + "($$);");
+            }
 
             // make new method using the signature of the interface's method
             // and the body defined above, add it to class
@@ -205,66 +399,86 @@ public class JavaAssistInstrumentor implements Instrumentor {
             throws NotFoundException, CannotCompileException {
         CtField[] fields = cc.getDeclaredFields();
 
+        int index = 0;
         for (int i = 0; i < fields.length; i++) {
             if ((fields[i].getModifiers() & Modifier.STATIC) != 0) {
                 continue;
             }
 
-            addFieldInterceptor(fields[i], SMARTCONTAINERS);
+            if (index > 0) {
+                fieldNames.append(',');
+            }
+            fieldNames.append(fields[i].getName());
+            addFieldInterceptor(fields[i], index++, SMARTCONTAINERS);
         }
     }
 
     /**
      * Adds an interceptor  to a field (for write access).
-     * Implemented by 'wrapping around' a trap method for type safety.
      * Because field interception can only be intercepted by calling
-     * a static method we need to implement a static wrapper called 'trap'
-     * which will finally do an interception on the object itself.
+     * a static method, each write access to the field is replaced by
+     * a call to a static method of the class which stores the value
+     * directly and touches the version.
      *
      * <p>write access to field foo of type Bar will result in:
-     * <code>static write_foo(Object o, Bar bar) { trap_method };</code>
+     * <code>static write_foo(Object o, Bar bar) { trap };</code>
      *
      * @param field field to be intercepted.
+     * @param index index of the field, passed to VERSIONMETHOD.
      * @param ifaces interfaces with their 'smart' replacements.
      */
-    private void addFieldInterceptor(CtField field, Properties ifaces)
+    private void addFieldInterceptor(CtField field, int index, Properties ifaces)
             throws NotFoundException, CannotCompileException {
         String name = field.getName();
         CtClass cc = field.getDeclaringClass();
         log.debug("addFieldInterceptor: " + name);
 
-        CtMethod trap;
-        String fieldtype = field.getType().getName();
-        String replacement = ifaces.getProperty(fieldtype);
+        CtClass type = field.getType();
+        String replacement = ifaces.getProperty(type.getName());
 
         // create special traps if we assign to interfaces with 'smart'
         // replacements
         if (replacement != null) {
-            trap = createTrapWriteGeneric(cc, fieldtype, replacement);
+            writeMethods.add(createTrapWriteGeneric(cc, name, type.getName(), replacement));
         } else {
             // else use standard trap
-            trap = standardTrap;
+            writeMethods.add(createTrapWrite(cc, name, type, index));
         }
 
-        CtClass[] writeParam = new CtClass[2];
-        writeParam[0] = pool.get("java.lang.Object");
-        writeParam[1] = field.getType();
-        CtMethod method = CtNewMethod.wrapped(
-                CtClass.voidType, // return type
-                fieldWrite(name), // name of method
-                writeParam, // params
-                null, // execeptions
-                trap, // body
-                CtMethod.ConstParameter.string(name), // const parameter (String/int/null)
-                cc);                // declaring class
-        // needed because replaceFieldWrite dispatches
-        // only to static methods
-        method.setModifiers(Modifier.PUBLIC | Modifier.STATIC);
-        cc.addMethod(method);
-
         converter.replaceFieldWrite(field, cc, fieldWrite(name));
     }
 
+    /**
+     * Compiles the write methods registered by the field interceptors.
+     * Needed because replaceFieldWrite dispatches only to static methods.
+     */
+    private void addWriteMethods(CtClass cc) throws CannotCompileException {
+        for (Iterator it = writeMethods.iterator(); it.hasNext();) {
+            String body = (String) it.next();
+            log.debug(body);
+            cc.addMethod(CtNewMethod.make(body, cc));
+        }
+    }
+
+    /** Can a field of this type hold a versionable object ? */
+    private static boolean isReference(CtClass type) {
+        return !type.isPrimitive() &&
+               !type.isArray() &&
+               !type.getName().startsWith("java.lang.");
+    }
+
+    /**
+     * Is a change of a field of this type detected by <code>equals()</code> ?
+     * @see org.bsf.smartValueObject.VersionHelper#doEquals
+     */
+    private static boolean isValueType(CtClass type) {
+        String name = type.getName();
+        return name.startsWith("java.lang.") ||
+               name.equals("java.util.Date") ||
+               name.equals("java.math.BigDecimal") ||
+               name.equals("java.math.BigInteger");
+    }
+
     /** Convention to name methods. */
     private static String fieldWrite(String name) {
         return "write_" + name;
@@ -285,13 +499,31 @@ public class JavaAssistInstrumentor implements Instrumentor {
         CtField field;
 
         field = createVersionField(cc);
-        // add field to class, it will be initialised by 'new' on runtime
-        // e.g. Version version = new Version();
-        cc.addField(field, CtField.Initializer.byNew(pool.get(VERSIONCLASS)));
+        if (lazy) {
+            // e.g. Versionable version = SharedVersion.NEW;
+            cc.addField(field, SHAREDVERSIONCLASS + ".NEW");
+        } else {
+            // add field to class, it will be initialised by 'new' on runtime
+            // e.g. Version version = new Version();
+            cc.addField(field, CtField.Initializer.byNew(pool.get(versionClass)));
+        }
 
         return field;
     }
 
+    /**
+     * Adds the FIELDNAMES constant to the class, listing the intercepted
+     * fields in index order.
+     *
+     * @see org.bsf.smartValueObject.tools.Instrumentor#FIELDNAMES
+     */
+    private void addFieldNamesField(CtClass cc)
+            throws CannotCompileException, NotFoundException {
+        CtField field = new CtField(pool.get("java.lang.String"), FIELDNAMES, cc);
+        field.setModifiers(Modifier.PUBLIC | Modifier.STATIC | Modifier.FINAL);
+        cc.addField(field, CtField.Initializer.constant(fieldNames.toString()));
+    }
+
     /**
      * Creates the version field.
      *
@@ -300,7 +532,8 @@ public class JavaAssistInstrumentor implements Instrumentor {
     private CtField createVersionField(CtClass declaring)
             throws CannotCompileException, NotFoundException {
         String name = VERSIONFIELD;
-        CtClass type = pool.get(VERSIONCLASS);
+        // a lazy version field holds the shared version too
+        CtClass type = pool.get(lazy ? VERSIONINTERFACE : versionClass);
         CtField field = new CtField(type, name, declaring);
         field.setModifiers(Modifier.PUBLIC);
 
@@ -309,40 +542,48 @@ public class JavaAssistInstrumentor implements Instrumentor {
 
     /**
      * Creates a 'trap' for interception.
-     * The created 'trap' will call VERSIONMETHOD (e.g. 'touch')
-     * on the object and set the field using reflection. In case of fields in
-     * the java.lang.* package or primitive types we do an invocation of the
-     * equals method to verify if a real change has taken place or if the field
-     * already contains the value. In this case the object will not be
-     * marked as 'dirty'.
+     * The created 'trap' stores the value in the field and calls
+     * VERSIONMETHOD (e.g. 'touch') with the index of the field on the
+     * version. In case of fields in the java.lang.* package or primitive
+     * types the old and new value are compared first to verify if a real
+     * change has taken place or if the field already contains the value.
+     * In this case the object will not be marked as 'dirty'.
+     * <p>Traps for reference fields also update the parent links of the
+     * old and new value.
      *
      * @param cc target class.
-     * @return trap method.
+     * @param fieldname the intercepted field.
+     * @param type type of the field.
+     * @param index index of the field.
+     * @return source of the trap method.
      * @see #addFieldInterceptor
+     * @see org.bsf.smartValueObject.VersionHelper#reparent
      */
-    private CtMethod createTrapWrite(CtClass cc)
-            throws CannotCompileException {
+    private String createTrapWrite(CtClass cc, String fieldname, CtClass type, int index) {
         String classname = cc.getName();
-
-        String body =
-                "protected static Object trapWrite(Object[] args, String name) {" +
-                classname + " foo = (" + classname + ") args[0];" +
-                "try {" +
-                "   java.lang.reflect.Field field = foo.getClass().getField(name);" +
-                "   if (" + VERSIONHELPER + ".doEquals(field)) {" +
-                "       if (field.get(foo) != null && field.get(foo).equals(args[1]))" +
-                "           return null;" +
-                "       else if (args[1] == null)" +
-                "           return null;" +
-                "   }" +
-                "   field.set(foo, args[1]); " +
-                "   ((" + VERSIONINTERFACE + ")foo)." + VERSIONMETHOD + "(field.getName());" +
-                "} catch (Throwable t) { throw new RuntimeException(t); } " +
-                "return null;" +
-                "}";
-
-        log.debug(body);
-        return CtNewMethod.make(body, cc);
+        String field = "foo." + fieldname;
+
+        StringBuffer body = new StringBuffer();
+        body.append("public static void " + fieldWrite(fieldname) +
+                "(Object o, " + type.getName() + " value) {");
+        body.append(classname + " foo = (" + classname + ") o;");
+        if (type.isPrimitive()) {
+            body.append("if (" + field + " == value) return;");
+        } else if (isValueType(type)) {
+            body.append("if (" + field + " == null) {" +
+                        "   if (value == null) return;" +
+                        "} else if (" + field + ".equals(value)) return;");
+        } else if (isReference(type)) {
+            body.append(VERSIONHELPER + ".reparent(foo, " + field + ", value);");
+        }
+        // inlined versions implement VERSIONMETHOD themselves
+        String version = inline ? "" : (lazy ? WRITABLEMETHOD + "()" : VERSIONFIELD) + ".";
+        // touch before the store, the version may record the old value
+        body.append("foo." + version + VERSIONMETHOD + "(" + index + ");");
+        body.append(field + " = value;");
+        body.append("}");
+
+        return body.toString();
     }
 
     /**
@@ -354,39 +595,34 @@ public class JavaAssistInstrumentor implements Instrumentor {
      * a reference to the version state of its parent.
      *
      * @param cc target class.
+     * @param fieldname the intercepted field.
      * @param dumb package name of class to replace.
      * @param smart package name of replacing class.
-     * @return trap method.
+     * @return source of the trap method.
      */
-    private CtMethod createTrapWriteGeneric(CtClass cc, String dumb, String smart)
-            throws CannotCompileException {
+    private String createTrapWriteGeneric(CtClass cc, String fieldname,
+                                          String dumb, String smart) {
         String classname = cc.getName();
-        int lastDot = dumb.lastIndexOf('.');
-        String suffix;
-        if (lastDot != -1) {
-            suffix = dumb.substring(lastDot + 1);
-        } else {
-            suffix = dumb;
-        }
+        String field = "foo." + fieldname;
 
         String body =
-                "protected static Object trapWrite" + suffix + "(Object[] args, String name) {" +
-                classname + " foo = (" + classname + ") args[0];" +
-                "try { " +
-                "   java.lang.reflect.Field field = foo.getClass().getField(name);" +
-                dumb + " o = new " + smart +
-                "    ((" + dumb + ") args[1]," +
+                "public static void " + fieldWrite(fieldname) +
+                "(Object o, " + dumb + " value) {" +
+                classname + " foo = (" + classname + ") o;" +
+                "Object old = " + field + ";" +
+                "if (value == null) {" +
+                "   " + field + " = null;" +
+                "} else {" +
+                "   " + field + " = new " + smart + "(value," +
                 // using version object of parent
                 // "    (" + VERSIONINTERFACE + ") foo);" +
                 // use new version object
-                "    new " + VERSIONCLASS + "());" +
-                "   field.set(foo, o); " +
-                "} catch (Throwable t) {} " +
-                "return null;" +
+                "       new " + versionClass + "());" +
+                "}" +
+                VERSIONHELPER + ".reparent(foo, old, " + field + ");" +
                 "}";
 
-        log.debug(body);
-        return CtNewMethod.make(body, cc);
+        return body;
     }
 
     // --------------------------------------------------------------------------
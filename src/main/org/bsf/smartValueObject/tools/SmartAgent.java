@@ -0,0 +1,187 @@
+package org.bsf.smartValueObject.tools;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * Java agent doing the bytecode modification while classes are loaded,
+ * as an alternative to <tt>SmartTask</tt>. Only classes which are
+ * actually used get modified, using the <tt>ASMInstrumentor</tt>.
+ * <p><blockquote><pre>
+ * java -javaagent:bsf-SVO-agent.jar=include=com.acme.*VO;exclude=*Test* ...
+ * </pre></blockquote>
+ * <p>Options are separated by semicolons, patterns by commas. A pattern
+ * matches fully qualified class names, <tt>*</tt> stands for any
+ * sequence of characters. A class is modified if it matches one of the
+ * <tt>include</tt> patterns (default <tt>*VO</tt>) and none of the
+ * <tt>exclude</tt> patterns (default <tt>*Test*</tt>), like the fileset
+ * used with <tt>SmartTask</tt>. Classes which are already versionable
+ * are left alone.
+ * <p>Modified classes are kept in memory, so loading the same class
+ * again (e.g. in another classloader) does not modify it twice.
+ *
+ * @see org.bsf.smartValueObject.tools.ASMInstrumentor
+ * @see org.bsf.smartValueObject.tools.SmartTask
+ */
+public class SmartAgent implements ClassFileTransformer {
+    private static final Log log = LogFactory.getLog(SmartAgent.class);
+    /** Default patterns, same as in the build of the tests. */
+    public static final String DEFAULT_INCLUDE = "*VO";
+    public static final String DEFAULT_EXCLUDE = "*Test*";
+
+    private final String[] includes;
+    private final String[] excludes;
+    /** class name -> <tt>CacheEntry</tt> */
+    private final Map cache = new HashMap();
+
+    /**
+     * Entry point of the agent, registers a new <tt>SmartAgent</tt>.
+     * @param options as given on the command line, may be null.
+     * @param inst provided by the JVM.
+     */
+    public static void premain(String options, Instrumentation inst) {
+        SmartAgent agent = new SmartAgent(options);
+        log.info("SmartAgent: including " + Arrays.asList(agent.includes) +
+                ", excluding " + Arrays.asList(agent.excludes));
+        inst.addTransformer(agent);
+    }
+
+    /**
+     * Creates a new agent.
+     * @param options e.g. <tt>include=a.b.*VO,c.*;exclude=*Test*</tt>,
+     * null for the defaults.
+     * @throws IllegalArgumentException for unknown options.
+     */
+    public SmartAgent(String options) {
+        String include = DEFAULT_INCLUDE;
+        String exclude = DEFAULT_EXCLUDE;
+
+        if (options != null) {
+            StringTokenizer st = new StringTokenizer(options, ";");
+            while (st.hasMoreTokens()) {
+                String option = st.nextToken().trim();
+                if (option.startsWith("include=")) {
+                    include = option.substring("include=".length());
+                } else if (option.startsWith("exclude=")) {
+                    exclude = option.substring("exclude=".length());
+                } else if (option.length() > 0) {
+                    throw new IllegalArgumentException("unknown option: " + option);
+                }
+            }
+        }
+
+        includes = split(include);
+        excludes = split(exclude);
+    }
+
+    /**
+     * Should this class be made versionable ?
+     * @param className fully qualified name of the class.
+     */
+    public boolean isIncluded(String className) {
+        return matchesAny(includes, className) && !matchesAny(excludes, className);
+    }
+
+    public byte[] transform(ClassLoader loader, String className,
+                            Class classBeingRedefined, ProtectionDomain domain,
+                            byte[] bytecode) {
+        // bootstrap classes and redefinitions are never touched
+        if (loader == null || classBeingRedefined != null || className == null) {
+            return null;
+        }
+        if (!isIncluded(className.replace('/', '.'))) {
+            return null;
+        }
+
+        CacheEntry entry;
+        synchronized (cache) {
+            entry = (CacheEntry) cache.get(className);
+        }
+        if (entry != null && Arrays.equals(entry.original, bytecode)) {
+            return entry.modified;
+        }
+
+        byte[] modified = null;
+        try {
+            if (!ASMInstrumentor.isVersionable(bytecode)) {
+                log.debug("SmartAgent: smartify " + className);
+                ASMInstrumentor instrumentor = new ASMInstrumentor();
+                instrumentor.modifyClass(className, bytecode);
+                modified = instrumentor.getBytecode();
+            }
+        } catch (Throwable t) {
+            // the class gets loaded unmodified
+            log.warn("SmartAgent: could not modify " + className, t);
+            return null;
+        }
+
+        synchronized (cache) {
+            cache.put(className, new CacheEntry(bytecode, modified));
+        }
+        return modified;
+    }
+
+    private static String[] split(String patterns) {
+        List list = new ArrayList();
+        StringTokenizer st = new StringTokenizer(patterns, ",");
+        while (st.hasMoreTokens()) {
+            String pattern = st.nextToken().trim();
+            if (pattern.length() > 0) {
+                list.add(pattern);
+            }
+        }
+        return (String[]) list.toArray(new String[list.size()]);
+    }
+
+    private static boolean matchesAny(String[] patterns, String s) {
+        for (int i = 0; i < patterns.length; i++) {
+            if (matches(patterns[i], 0, s, 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Wildcard matching, <tt>*</tt> matches any sequence of characters. */
+    private static boolean matches(String pattern, int p, String s, int i) {
+        while (p < pattern.length()) {
+            char c = pattern.charAt(p);
+            if (c == '*') {
+                for (int j = s.length(); j >= i; j--) {
+                    if (matches(pattern, p + 1, s, j)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (i >= s.length() || s.charAt(i) != c) {
+                return false;
+            }
+            p++;
+            i++;
+        }
+        return i == s.length();
+    }
+
+    /** Original and modified bytecode of a class. */
+    private static class CacheEntry {
+        private final byte[] original;
+        /** null if the class did not need modification. */
+        private final byte[] modified;
+
+        CacheEntry(byte[] original, byte[] modified) {
+            this.original = original;
+            this.modified = modified;
+        }
+    }
+}
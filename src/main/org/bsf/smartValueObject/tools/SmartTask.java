@@ -7,27 +7,50 @@ import org.apache.tools.ant.types.FileSet;
 import org.bsf.smartValueObject.tools.Instrumentor;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Enumeration;
+import java.util.Properties;
 import java.util.Vector;
 
 /**
  * Ant task to do bytecode modification on compile time. Relies on
  * a concrete implementation of <tt>Instrumentor</tt>.
  * <p><blockquote><pre>
- * &lt;smartify instrumentor="org.bsf.smartValueObject.tools.JavaAssistInstrumentor"&gt;
+ * &lt;smartify instrumentor="org.bsf.smartValueObject.tools.JavaAssistInstrumentor"
+ *      threads="4"&gt;
  *      &lt;fileset dir="${build.dir}/test"&gt;
  *               &lt;include name="*VO.class"/&gt;
  *      &lt;/fileset&gt;
  * &lt;/smartify&gt;
  * </pre></blockquote>
+ * <p>The MD5 hash of every modified class is recorded in a manifest
+ * (<tt>.smartify</tt> in the directory of the fileset). Classes which
+ * did not change since they were modified are skipped on the next run.
+ * Modified classes are written to a temporary file first, which then
+ * replaces the original class.
  */
 public class SmartTask extends org.apache.tools.ant.taskdefs.MatchingTask {
+    /** Name of the manifest file in the directory of a fileset. */
+    public static final String MANIFEST = ".smartify";
+
     private Vector filesets = new Vector();
     /** The classname of the instrumentor to use. */
     private String instrumentor =
             "org.bsf.smartValueObject.tools.JavaAssistInstrumentor";
+    /** Number of classes modified in parallel. */
+    private int threads = Runtime.getRuntime().availableProcessors();
+    /** Implementation of <tt>Versionable</tt> used by the modified classes. */
+    private String versionClass = Instrumentor.VERSIONCLASS;
+    /** Keep the version state in fields of the modified classes ? */
+    private boolean inline = false;
+    /** Allocate the version objects on the first modification ? */
+    private boolean lazy = false;
 
     public void addFileset(FileSet f) {
         filesets.addElement(f);
@@ -47,11 +70,76 @@ public class SmartTask extends org.apache.tools.ant.taskdefs.MatchingTask {
         return this.instrumentor;
     }
 
+    /**
+     * Number of worker threads, each using its own instrumentor.
+     * Defaults to the number of available processors.
+     * @param n at least 1.
+     */
+    public void setThreads(int n) {
+        if (n < 1) {
+            throw new BuildException("threads must be at least 1");
+        }
+        this.threads = n;
+    }
+
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Class of the version objects added to the modified classes, e.g.
+     * <tt>org.bsf.smartValueObject.CompactVersion</tt> to save memory.
+     * @param s implementation of <tt>Versionable</tt> to use.
+     * @see org.bsf.smartValueObject.tools.Instrumentor#setVersionClass
+     */
+    public void setVersionClass(String s) {
+        this.versionClass = s;
+    }
+
+    public String getVersionClass() {
+        return this.versionClass;
+    }
+
+    /**
+     * If true, the version state is kept in fields of the modified
+     * classes instead of a separate version object. Only supported by
+     * the <tt>JavaAssistInstrumentor</tt>.
+     * @param inline whether to inline the version state.
+     * @see org.bsf.smartValueObject.tools.Instrumentor#setInlineVersion
+     */
+    public void setInline(boolean inline) {
+        this.inline = inline;
+    }
+
+    public boolean isInline() {
+        return this.inline;
+    }
+
+    /**
+     * If true, objects share an immutable version until they are first
+     * modified, which saves the version objects of objects only read.
+     * Can't be combined with <tt>inline</tt>.
+     * @param lazy whether to allocate versions lazily.
+     * @see org.bsf.smartValueObject.tools.Instrumentor#setLazyVersion
+     * @see org.bsf.smartValueObject.SharedVersion
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    public boolean isLazy() {
+        return this.lazy;
+    }
+
     public void execute() throws BuildException {
         if (filesets.size() == 0) {
             throw new BuildException("Need a fileset!");
         }
+        if (inline && lazy) {
+            throw new BuildException("inline and lazy can't be combined");
+        }
 
+        log("SmartTask: using " + getInstrumentor() + " to instrument classes");
         Enumeration e = filesets.elements();
         while (e.hasMoreElements()) {
             FileSet fs = (FileSet) e.nextElement();
@@ -69,32 +157,152 @@ public class SmartTask extends org.apache.tools.ant.taskdefs.MatchingTask {
      * @param files list of files as specified by the fileset-tag.
      */
     private void smartify(String basedir, String[] files) {
-        Instrumentor instrumentor = getInstrumentorInstance();
-        log("SmartTask: using " + getInstrumentor() + " to instrument classes");
-        for (int i = 0; i < files.length; i++) {
-            String file = files[i];
+        File manifestFile = new File(basedir, MANIFEST);
+        Properties manifest = loadManifest(manifestFile);
+        Batch batch = new Batch(basedir, files, manifest);
 
-            log("SmartTask: smartify " + file, Project.MSG_INFO);
+        int n = Math.min(threads, files.length);
+        Worker[] workers = new Worker[n];
+        for (int i = 0; i < n; i++) {
+            workers[i] = new Worker(batch, getInstrumentorInstance());
+        }
 
+        // the calling thread is the first worker
+        for (int i = 1; i < n; i++) {
+            workers[i].start();
+        }
+        if (n > 0) {
+            workers[0].run();
+        }
+        for (int i = 1; i < n; i++) {
             try {
-                instrumentor.modifyClass(basedir, file);
-            } catch (InstrumentorException e) {
-                throw new BuildException(e.getLocalizedMessage(), e);
+                workers[i].join();
+            } catch (InterruptedException e) {
+                throw new BuildException(e);
             }
+        }
+
+        if (batch.failure != null) {
+            throw batch.failure;
+        }
 
+        log("SmartTask: " + batch.modified + " classes modified, " +
+            (files.length - batch.modified) + " up to date");
+        storeManifest(manifestFile, manifest);
+    }
+
+    /**
+     * Smartifies a single file unless it is recorded as up to date in
+     * the manifest.
+     * @return true if the file was modified.
+     */
+    private boolean smartify(Instrumentor instrumentor, Batch batch, String file)
+            throws IOException, InstrumentorException {
+        File target = new File(batch.basedir, file);
+        String hash = md5(readFile(target));
+        if (hash.equals(batch.getHash(file))) {
+            log("SmartTask: up to date " + file, Project.MSG_VERBOSE);
+            return false;
+        }
+
+        log("SmartTask: smartify " + file, Project.MSG_INFO);
+        instrumentor.modifyClass(batch.basedir, file);
+        byte[] bytecode = instrumentor.getBytecode();
+        if (bytecode.length == 0)
+            return false;
+
+        write(target, bytecode);
+        batch.setHash(file, md5(bytecode));
+        return true;
+    }
+
+    /**
+     * Replaces a file by writing to a temporary file in the same
+     * directory and renaming it.
+     */
+    private static void write(File target, byte[] bytecode) throws IOException {
+        File tmp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+        try {
+            OutputStream os = new FileOutputStream(tmp);
             try {
-                byte[] bytecode = instrumentor.getBytecode();
-                if (bytecode.length == 0)
-                    continue;
-                FileOutputStream fos = new FileOutputStream(
-                        new File(basedir + File.separator + file));
-                fos.write(bytecode);
-                fos.close();
+                os.write(bytecode);
+            } finally {
+                os.close();
+            }
+
+            if (!tmp.renameTo(target)) {
+                // some platforms don't rename onto existing files
+                if (!target.delete() || !tmp.renameTo(target)) {
+                    throw new IOException("could not replace " + target);
+                }
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] buffer = new byte[(int) file.length()];
+        InputStream is = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < buffer.length) {
+                int read = is.read(buffer, n, buffer.length - n);
+                if (read < 0)
+                    throw new IOException("unexpected end of " + file);
+                n += read;
+            }
+        } finally {
+            is.close();
+        }
+        return buffer;
+    }
+
+    private static String md5(byte[] data) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new BuildException(e);
+        }
+
+        byte[] digest = md.digest(data);
+        StringBuffer sb = new StringBuffer(digest.length * 2);
+        for (int i = 0; i < digest.length; i++) {
+            sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(digest[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private Properties loadManifest(File file) {
+        Properties manifest = new Properties();
+        if (file.exists()) {
+            try {
+                InputStream is = new FileInputStream(file);
+                try {
+                    manifest.load(is);
+                } finally {
+                    is.close();
+                }
             } catch (IOException e) {
-                throw new BuildException(e.getLocalizedMessage(), e);
-            } catch (InstrumentorException e) {
-                throw new BuildException(e.getLocalizedMessage(), e);
+                log("SmartTask: ignoring unreadable manifest " + file, Project.MSG_WARN);
+                manifest.clear();
+            }
+        }
+        return manifest;
+    }
+
+    private void storeManifest(File file, Properties manifest) {
+        try {
+            OutputStream os = new FileOutputStream(file);
+            try {
+                manifest.store(os, "classes modified by SmartTask");
+            } finally {
+                os.close();
             }
+        } catch (IOException e) {
+            throw new BuildException(e.getLocalizedMessage(), e);
         }
     }
 
@@ -110,6 +318,86 @@ public class SmartTask extends org.apache.tools.ant.taskdefs.MatchingTask {
             throw new BuildException("Error while instantiating " +
                     "instrumentor " + getInstrumentor(), e);
         }
+
+        instrumentor.setVersionClass(versionClass);
+        try {
+            instrumentor.setInlineVersion(inline);
+            instrumentor.setLazyVersion(lazy);
+        } catch (UnsupportedOperationException e) {
+            throw new BuildException(e.getMessage(), e);
+        }
         return instrumentor;
     }
+
+    /**
+     * The files of one fileset, shared by the workers.
+     */
+    private static class Batch {
+        private final String basedir;
+        private final String[] files;
+        private final Properties manifest;
+        private int next = 0;
+        private int modified = 0;
+        private BuildException failure;
+
+        Batch(String basedir, String[] files, Properties manifest) {
+            this.basedir = basedir;
+            this.files = files;
+            this.manifest = manifest;
+        }
+
+        /** @return next file to smartify, null if done or failed. */
+        synchronized String next() {
+            if (failure != null || next >= files.length)
+                return null;
+            return files[next++];
+        }
+
+        synchronized void done(boolean wasModified) {
+            if (wasModified)
+                modified++;
+        }
+
+        synchronized void fail(BuildException e) {
+            if (failure == null)
+                failure = e;
+        }
+
+        synchronized String getHash(String file) {
+            return manifest.getProperty(file.replace(File.separatorChar, '/'));
+        }
+
+        synchronized void setHash(String file, String hash) {
+            manifest.setProperty(file.replace(File.separatorChar, '/'), hash);
+        }
+    }
+
+    /**
+     * Smartifies files of a batch until none are left. Instrumentors
+     * keep the state of the current class, so every worker has its own.
+     */
+    private class Worker extends Thread {
+        private final Batch batch;
+        private final Instrumentor instrumentor;
+
+        Worker(Batch batch, Instrumentor instrumentor) {
+            this.batch = batch;
+            this.instrumentor = instrumentor;
+        }
+
+        public void run() {
+            String file;
+            while ((file = batch.next()) != null) {
+                try {
+                    batch.done(smartify(instrumentor, batch, file));
+                } catch (InstrumentorException e) {
+                    batch.fail(new BuildException(file + ": " + e.getLocalizedMessage(), e));
+                } catch (IOException e) {
+                    batch.fail(new BuildException(file + ": " + e.getLocalizedMessage(), e));
+                } catch (RuntimeException e) {
+                    batch.fail(new BuildException(file + ": " + e, e));
+                }
+            }
+        }
+    }
 }
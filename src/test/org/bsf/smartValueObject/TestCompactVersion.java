@@ -0,0 +1,94 @@
+package org.bsf.smartValueObject;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Testcase for CompactVersion.
+ *
+ * @see org.bsf.smartValueObject.CompactVersion
+ */
+public class TestCompactVersion extends TestCase {
+    private CompactVersion version;
+
+    public void setUp() {
+        version = new CompactVersion();
+    }
+
+    public void testNew() {
+        assertTrue(version.isCreated());
+        assertTrue(version.isDirty());
+        assertTrue(version.isGraphDirty());
+        assertTrue(!version.isDeleted());
+    }
+
+    public void testStateChanges() {
+        version.markClean();
+        assertTrue(!version.isDirty());
+        assertTrue(!version.isCreated());
+
+        version.delete();
+        assertTrue(version.isDeleted());
+        assertTrue(version.isDirty());
+
+        version.create();
+        assertTrue(version.isCreated());
+        assertTrue(!version.isDeleted());
+    }
+
+    public void testTouchFields() {
+        version.markClean();
+        version.touch(5);
+        version.touch(130);
+
+        assertTrue(version.isDirty(5));
+        assertTrue(version.isDirty(130));
+        assertTrue(!version.isDirty(6));
+        assertTrue(!version.isDirty(70));
+
+        version.markClean();
+        assertTrue(!version.isDirty(130));
+    }
+
+    public void testMoreFieldsSerialized() throws Exception {
+        version.markClean();
+        version.touch(130);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(version);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        CompactVersion copy = (CompactVersion) in.readObject();
+
+        assertTrue(copy.isDirty(130));
+        assertTrue(!copy.isDirty(131));
+        copy.markClean();
+        assertTrue(!copy.isDirty(130));
+        assertTrue("original cleaned", version.isDirty(130));
+    }
+
+    public void testParentNotified() {
+        CompactVersion parent = new CompactVersion();
+        parent.markClean();
+        version.markClean();
+
+        version.addParent(parent);
+        assertTrue("parent dirty", !parent.isGraphDirty());
+
+        version.touch(0);
+        assertTrue("parent not notified", parent.isGraphDirty());
+        assertTrue("parent itself dirty", !parent.isDirty());
+    }
+
+    public void testVersionIdChanges() {
+        long id = version.getVersionId();
+        version.markClean();
+        assertTrue(id != version.getVersionId());
+    }
+}
@@ -0,0 +1,156 @@
+package org.bsf.smartValueObject;
+
+import junit.framework.TestCase;
+import org.bsf.smartValueObject.container.SmartList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+
+/**
+ * Testcase for SharedVersion.
+ *
+ * @see org.bsf.smartValueObject.SharedVersion
+ */
+public class TestSharedVersion extends TestCase {
+
+    public void setUp() {
+        VersionHelper.setDirtyPropagation(false);
+    }
+
+    public void tearDown() {
+        VersionHelper.setDirtyPropagation(false);
+    }
+
+    public void testStates() {
+        assertTrue(SharedVersion.NEW.isCreated());
+        assertTrue(SharedVersion.NEW.isDirty());
+        assertTrue(!SharedVersion.NEW.isDirty(0));
+        assertTrue(!SharedVersion.CLEAN.isCreated());
+        assertTrue(!SharedVersion.CLEAN.isDirty());
+        assertTrue(!SharedVersion.CLEAN.isGraphDirty());
+    }
+
+    public void testImmutable() {
+        try {
+            SharedVersion.NEW.touch(0);
+            fail("shared version modified");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    public void testAllocate() {
+        Versionable v = SharedVersion.NEW.allocate(new Version());
+        assertTrue(v.isCreated());
+
+        v = SharedVersion.CLEAN.allocate(new Version());
+        assertTrue(!v.isCreated());
+        assertTrue(!v.isDirty());
+    }
+
+    public void testMarkClean() {
+        assertSame(SharedVersion.CLEAN, SharedVersion.markClean(SharedVersion.NEW));
+        assertSame("version kept", SharedVersion.CLEAN, SharedVersion.markClean(new Version()));
+
+        VersionHelper.setDirtyPropagation(true);
+        Version version = new Version();
+        assertSame("linked version dropped", version, SharedVersion.markClean(version));
+        assertTrue(!version.isDirty());
+    }
+
+    public void testParentLinks() {
+        Version owner = new Version();
+        Version parent = new Version();
+        parent.markClean();
+
+        Versionable v = SharedVersion.addParent(SharedVersion.CLEAN, owner, parent);
+        assertTrue(v instanceof SharedVersion);
+        assertTrue(v != SharedVersion.CLEAN);
+        assertTrue(!parent.isGraphDirty());
+
+        // dropped on markClean, kept in the shared state
+        v = SharedVersion.markClean(v);
+        v = ((SharedVersion) v).allocate(new Version(owner));
+        v = SharedVersion.markClean(v);
+        assertTrue(v instanceof SharedVersion);
+
+        v = ((SharedVersion) v).allocate(new Version(owner));
+        v.touch(0);
+        assertTrue("parent link lost", parent.isGraphDirty());
+
+        v = SharedVersion.removeParent(SharedVersion.markClean(v), owner, parent);
+        assertSame(SharedVersion.CLEAN, v);
+    }
+
+    public void testRollbackParented() {
+        VersionHelper.setDirtyPropagation(true);
+        SmartList list = new SmartList(new ArrayList(), new Version());
+        LazyVO clean = new LazyVO();
+        clean.markClean();
+        LazyVO created = new LazyVO();
+        list.add(clean);
+        list.add(created);
+        assertTrue("parents not kept", clean.version instanceof SharedVersion);
+        assertTrue(clean.version != SharedVersion.CLEAN);
+
+        SmartAccess.rollback(clean);
+        assertTrue(!clean.isDirty());
+
+        try {
+            SmartAccess.rollback(created);
+            fail("created object rolled back");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testSerialization() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(SharedVersion.CLEAN);
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        assertSame(SharedVersion.CLEAN, in.readObject());
+    }
+
+    /**
+     * Versionable object laid out like a class instrumented with the
+     * <tt>lazy</tt> option.
+     */
+    public static class LazyVO implements Versionable {
+        public Versionable version = SharedVersion.NEW;
+
+        private Versionable writable() {
+            if (version instanceof SharedVersion) {
+                version = ((SharedVersion) version).allocate(new Version(this));
+            }
+            return version;
+        }
+
+        public void touch() { writable().touch(); }
+        public void touch(String field) { writable().touch(field); }
+        public void touch(int field) { writable().touch(field); }
+        public void delete() { writable().delete(); }
+        public void create() { writable().create(); }
+        public boolean isCreated() { return version.isCreated(); }
+        public boolean isDeleted() { return version.isDeleted(); }
+        public boolean isDirty() { return version.isDirty(); }
+        public boolean isDirty(int field) { return version.isDirty(field); }
+        public void markClean() { version = SharedVersion.markClean(version); }
+        public void addParent(Versionable parent) {
+            version = SharedVersion.addParent(version, this, parent);
+        }
+        public void removeParent(Versionable parent) {
+            version = SharedVersion.removeParent(version, this, parent);
+        }
+        public void touchGraph(Versionable child) { writable().touchGraph(child); }
+        public boolean isGraphDirty() { return version.isGraphDirty(); }
+        public long getVersionId() { return writable().getVersionId(); }
+        public void setVersionId(long id) { writable().setVersionId(id); }
+    }
+}
@@ -100,6 +100,30 @@ public class TestSmartAccess extends AbstractTestSmartContainer {
         }
     }
 
+    public void testGetModified() {
+        TestVO[] living = createMany(50, true);
+        SmartAccess.resetGraph(sc);
+        assertTrue(!SmartAccess.modifiedIterator(sc).hasNext());
+
+        living[42].setName("changed");
+        living[7].setId(7);
+
+        Iterator it = SmartAccess.modifiedIterator(sc);
+        assertSame(living[42], it.next());
+        assertSame(living[7], it.next());
+        assertTrue(!it.hasNext());
+
+        // only the container is cleaned, the elements are still dirty
+        sc.markClean();
+        it = SmartAccess.modifiedIterator(sc);
+        assertSame(living[42], it.next());
+        assertSame(living[7], it.next());
+        assertTrue(!it.hasNext());
+
+        SmartAccess.resetGraph(sc);
+        assertTrue(!SmartAccess.modifiedIterator(sc).hasNext());
+    }
+
     public void testIsDirty() {
         TestVO test = new TestVO();
         test.touch();
@@ -107,6 +131,45 @@ public class TestSmartAccess extends AbstractTestSmartContainer {
             SmartAccess.isDirty(test));
     }
 
+    public void testDirtyFields() {
+        TestVO test = new TestVO();
+        test.markClean();
+        assertEquals(0, SmartAccess.dirtyFields(test).length);
+
+        test.setOtherTestVO(new TestVO());
+        test.setId(42);
+
+        String[] dirty = SmartAccess.dirtyFields(test);
+        assertEquals(2, dirty.length);
+        assertEquals("id", dirty[0]);
+        assertEquals("otherTestVO", dirty[1]);
+
+        test.markClean();
+        assertEquals(0, SmartAccess.dirtyFields(test).length);
+    }
+
+    public void testGetVersionables() {
+        TestVO test1 = new TestVO();
+        TestVO test2 = new TestVO();
+        test1.setName("test");
+
+        int count = 0;
+        for (Iterator it = SmartAccess.getVersionables(test1); it.hasNext(); ) {
+            assertSame(test1.tests, it.next());
+            count++;
+        }
+        assertEquals(1, count);
+
+        test1.setOtherTestVO(test2);
+        count = 0;
+        for (Iterator it = SmartAccess.getVersionables(test1); it.hasNext(); ) {
+            Object o = it.next();
+            assertTrue(o == test1.tests || o == test2);
+            count++;
+        }
+        assertEquals(2, count);
+    }
+
     public void testIsCreated() {
         TestVO test = new TestVO();
         test.create();
@@ -181,6 +244,42 @@ public class TestSmartAccess extends AbstractTestSmartContainer {
              SmartAccess.isGraphDirty(test1));
     }
 
+    public void testDirtyPropagation() {
+        SmartAccess.setDirtyPropagation(true);
+        try {
+            TestVO test1 = new TestVO();
+            TestVO test2 = new TestVO();
+            TestVO test3 = new TestVO();
+            TestVO test4 = new TestVO();
+            test1.setOtherTestVO(test2);
+            test2.addTestVO(test3);
+            test3.setOtherTestVO(test1);
+
+            SmartAccess.resetGraph(test1);
+            assertTrue("Graph is not clean", !SmartAccess.isGraphDirty(test1));
+
+            test3.setName("changed");
+            assertTrue("Modification not propagated",
+                    SmartAccess.isGraphDirty(test1));
+
+            SmartAccess.resetGraph(test1);
+            test2.setOtherTestVO(test4);
+            SmartAccess.resetGraph(test1);
+            test4.setId(4);
+            assertTrue("Modification not propagated",
+                    SmartAccess.isGraphDirty(test1));
+
+            // test4 is no longer part of the graph
+            test2.setOtherTestVO(null);
+            SmartAccess.resetGraph(test1);
+            test4.setId(5);
+            assertTrue("Modification of detached object propagated",
+                    !SmartAccess.isGraphDirty(test1));
+        } finally {
+            SmartAccess.setDirtyPropagation(false);
+        }
+    }
+
     public void testResetAll() {
         TestVO test1 = new TestVO();
         TestVO test2 = new TestVO();
@@ -195,6 +294,46 @@ public class TestSmartAccess extends AbstractTestSmartContainer {
         assertTrue(!SmartAccess.isGraphDirty(test1));
     }
 
+    public void testDeepGraph() {
+        TestVO root = new TestVO();
+        TestVO last = root;
+        for (int i = 0; i < 50000; i++) {
+            TestVO next = new TestVO();
+            last.setOtherTestVO(next);
+            last = next;
+        }
+
+        SmartAccess.resetGraph(root);
+        assertTrue(!SmartAccess.isGraphDirty(root));
+
+        last.touch();
+        assertTrue(SmartAccess.isGraphDirty(root));
+    }
+
+    public void testEqualObjectsAreVisited() {
+        TestVO test1 = new EqualTestVO();
+        TestVO test2 = new EqualTestVO();
+        test1.setOtherTestVO(test2);
+
+        SmartAccess.resetGraph(test1);
+        assertTrue(!test2.isDirty());
+
+        test2.touch();
+        assertTrue("Equal object was not visited",
+             SmartAccess.isGraphDirty(test1));
+    }
+
+    /** All instances are equal. */
+    private static class EqualTestVO extends TestVO {
+        public boolean equals(Object o) {
+            return o instanceof EqualTestVO;
+        }
+
+        public int hashCode() {
+            return 42;
+        }
+    }
+
     public void testAfterAddRemoveShouldBeClean() {
         TestVO test1 = new TestVO();
         TestVO test2 = new TestVO();
@@ -0,0 +1,109 @@
+package org.bsf.smartValueObject;
+
+import junit.framework.TestCase;
+
+/**
+ * Testcase for SnapshotVersion, recording the fields of a TestVO.
+ *
+ * @see org.bsf.smartValueObject.SnapshotVersion
+ */
+public class TestSnapshotVersion extends TestCase {
+    private static final int ID = 0;
+    private static final int NAME = 1;
+    private static final int OTHERTESTVO = 2;
+
+    private TestVO test;
+    private SnapshotVersion version;
+
+    public void setUp() {
+        test = new TestVO();
+        test.id = 1;
+        test.name = "foo";
+        version = new SnapshotVersion(test);
+        version.markClean();
+    }
+
+    public void testRevertedIsClean() {
+        writeName("bar");
+        assertTrue(version.isDirty());
+        assertTrue(version.isDirty(NAME));
+
+        writeName("foo");
+        assertTrue("reverted object dirty", !version.isDirty());
+        assertTrue(!version.isDirty(NAME));
+    }
+
+    public void testOneFieldDiffers() {
+        writeName("bar");
+        writeId(2);
+        writeName("foo");
+
+        assertTrue(version.isDirty());
+        assertTrue(version.isDirty(ID));
+        assertTrue(!version.isDirty(NAME));
+    }
+
+    public void testReferences() {
+        TestVO other = new TestVO();
+        version.touch(OTHERTESTVO);
+        test.otherTestVO = other;
+        assertTrue(version.isDirty(OTHERTESTVO));
+
+        version.touch(OTHERTESTVO);
+        test.otherTestVO = null;
+        assertTrue(!version.isDirty());
+    }
+
+    public void testRollback() {
+        long id = version.getVersionId();
+        writeName("bar");
+        writeId(5);
+        version.rollback();
+
+        assertEquals("foo", test.name);
+        assertEquals(1, test.id);
+        assertTrue(!version.isDirty());
+        assertEquals(id, version.getVersionId());
+    }
+
+    public void testForced() {
+        version.delete();
+        assertTrue(version.isDirty());
+
+        version.markClean();
+        version.touch("unknown");
+        assertTrue(version.isDirty());
+    }
+
+    public void testCreated() {
+        version = new SnapshotVersion(test);
+        writeName("foo");
+        assertTrue("created object clean", version.isDirty(NAME));
+
+        try {
+            version.rollback();
+            fail("created object rolled back");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testNoSnapshot() {
+        try {
+            SmartAccess.rollback(test);
+            fail("object without snapshot rolled back");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private void writeName(String name) {
+        version.touch(NAME);
+        test.name = name;
+    }
+
+    private void writeId(int id) {
+        version.touch(ID);
+        test.id = id;
+    }
+}
@@ -11,7 +11,13 @@ import java.util.ArrayList;
  * VOs to ease testing.
  */
 public class TestVO implements Versionable {
-    private Versionable v = new Version();
+    /** Field names in index order, as generated by the instrumentors. */
+    public static final String versionFields = "id,name,otherTestVO,tests";
+    private static final int ID = 0;
+    private static final int NAME = 1;
+    private static final int OTHERTESTVO = 2;
+
+    private Versionable v = new Version(this);
 
     // we need public access for testing purposes
     public int id;
@@ -19,8 +25,12 @@ public class TestVO implements Versionable {
     public TestVO otherTestVO;
     public Collection tests = new SmartCollection(new ArrayList(), new Version());
 
+    {
+        VersionHelper.reparent(this, null, tests);
+    }
+
     public void setId(int id) {
-        touch("id");
+        touch(ID);
         this.id = id;
     }
 
@@ -29,7 +39,7 @@ public class TestVO implements Versionable {
     }
 
     public void setName(String s) {
-        touch("name");
+        touch(NAME);
         this.name = s;
     }
 
@@ -38,7 +48,8 @@ public class TestVO implements Versionable {
     }
 
     public void setOtherTestVO(TestVO test) {
-        touch("otherTestVO");
+        touch(OTHERTESTVO);
+        VersionHelper.reparent(this, otherTestVO, test);
         otherTestVO = test;
     }
 
@@ -58,6 +69,10 @@ public class TestVO implements Versionable {
         v.touch(field);
     }
 
+    public void touch(int field) {
+        v.touch(field);
+    }
+
     public void delete() {
         v.delete();
     }
@@ -78,10 +93,30 @@ public class TestVO implements Versionable {
         return v.isDirty();
     }
 
+    public boolean isDirty(int field) {
+        return v.isDirty(field);
+    }
+
     public void markClean() {
         v.markClean();
     }
 
+    public void addParent(Versionable parent) {
+        v.addParent(parent);
+    }
+
+    public void removeParent(Versionable parent) {
+        v.removeParent(parent);
+    }
+
+    public void touchGraph(Versionable child) {
+        v.touchGraph(child);
+    }
+
+    public boolean isGraphDirty() {
+        return v.isGraphDirty();
+    }
+
     /**
      * Gets the version number.
      */
@@ -96,4 +131,4 @@ public class TestVO implements Versionable {
     public String toString() {
         return "TestVO: id=" + id;
     }
-}
\ No newline at end of file
+}
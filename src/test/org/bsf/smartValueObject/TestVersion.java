@@ -0,0 +1,118 @@
+package org.bsf.smartValueObject;
+
+import junit.framework.TestCase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Testcase for Version.
+ *
+ * @see org.bsf.smartValueObject.Version
+ */
+public class TestVersion extends TestCase {
+    private Version version;
+
+    public void setUp() {
+        version = new Version();
+        version.markClean();
+    }
+
+    public void testTouchField() {
+        version.touch(3);
+        assertTrue(version.isDirty());
+        assertTrue(version.isDirty(3));
+        assertTrue(!version.isDirty(2));
+        assertTrue(!version.isDirty(67));
+    }
+
+    public void testTouchManyFields() {
+        version.touch(63);
+        version.touch(64);
+        version.touch(200);
+
+        assertTrue(version.isDirty(63));
+        assertTrue(version.isDirty(64));
+        assertTrue(version.isDirty(200));
+        assertTrue(!version.isDirty(0));
+        assertTrue(!version.isDirty(136));
+        assertTrue(!version.isDirty(1000));
+    }
+
+    public void testMarkClean() {
+        version.touch(1);
+        version.touch(100);
+        version.markClean();
+
+        assertTrue(!version.isDirty());
+        assertTrue(!version.isDirty(1));
+        assertTrue(!version.isDirty(100));
+    }
+
+    public void testTouchByName() {
+        version.touch("foo");
+        assertTrue(version.isDirty());
+        assertTrue(!version.isDirty(0));
+    }
+
+    public void testVersionIdChanges() {
+        long id = version.getVersionId();
+        version.markClean();
+        assertTrue("same version id after markClean",
+                id != version.getVersionId());
+        assertTrue("same version id for new version",
+                version.getVersionId() != new Version().getVersionId());
+    }
+
+    public void testUniqueIds() throws InterruptedException {
+        final Set ids = new HashSet();
+        final int perThread = 5000;
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    long[] mine = new long[perThread];
+                    for (int j = 0; j < perThread; j++) {
+                        mine[j] = new Version().getVersionId();
+                    }
+                    synchronized (ids) {
+                        for (int j = 0; j < perThread; j++) {
+                            ids.add(new Long(mine[j]));
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+
+        assertEquals("duplicate version ids",
+                threads.length * perThread, ids.size());
+    }
+
+    public void testClock() {
+        long last = VersionIdGenerators.CLOCK.nextId();
+        for (int i = 0; i < 1000; i++) {
+            long id = VersionIdGenerators.CLOCK.nextId();
+            assertTrue("clock ids not increasing", id > last);
+            last = id;
+        }
+    }
+
+    public void testIdGenerator() {
+        VersionIdGenerator old = Version.getIdGenerator();
+        try {
+            Version.setIdGenerator(new VersionIdGenerator() {
+                public long nextId() {
+                    return 42;
+                }
+            });
+            version.markClean();
+            assertEquals(42, version.getVersionId());
+        } finally {
+            Version.setIdGenerator(old);
+        }
+    }
+}
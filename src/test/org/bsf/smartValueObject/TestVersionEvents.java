@@ -0,0 +1,133 @@
+package org.bsf.smartValueObject;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.bsf.smartValueObject.container.SmartCollection;
+import org.bsf.smartValueObject.container.SmartMap;
+
+/**
+ * Testcase for VersionEvents.
+ *
+ * @see org.bsf.smartValueObject.VersionEvents
+ */
+public class TestVersionEvents extends TestCase {
+    private Recorder recorder;
+
+    public void setUp() {
+        recorder = new Recorder();
+        VersionEvents.addListener(recorder);
+    }
+
+    public void tearDown() {
+        VersionEvents.removeListener(recorder);
+        VersionEvents.setBatchSize(1000);
+        // drops what is left
+        VersionEvents.flush();
+    }
+
+    public void testUnbatched() {
+        TestVO test = new TestVO();
+        test.setName("foo");
+        assertEquals("event queued outside batch", 1, recorder.batches.size());
+        test.setId(3);
+        assertEquals(2, recorder.batches.size());
+
+        VersionEvent[] events = (VersionEvent[]) recorder.batches.get(1);
+        assertEquals(1, events.length);
+        assertEquals("id", events[0].getFieldName());
+    }
+
+    public void testFieldEvents() {
+        TestVO test = new TestVO();
+        VersionEvents.begin();
+        test.setName("foo");
+        test.setId(3);
+        assertEquals("dispatched before flush", 0, recorder.batches.size());
+
+        VersionEvents.flush();
+        assertEquals(1, recorder.batches.size());
+        VersionEvent[] events = (VersionEvent[]) recorder.batches.get(0);
+        assertEquals(2, events.length);
+        assertSame(test, events[0].getSource());
+        assertEquals(VersionEvent.FIELD, events[0].getType());
+        assertEquals("name", events[0].getFieldName());
+        assertEquals("id", events[1].getFieldName());
+        VersionEvents.end();
+    }
+
+    public void testContainerEvents() {
+        SmartCollection sc = new SmartCollection(new ArrayList(), new Version());
+        TestVO test = new TestVO();
+        VersionEvents.begin();
+        sc.add(test);
+        sc.remove(test);
+
+        SmartMap map = new SmartMap(new HashMap(), new Version());
+        map.put("key", test);
+        VersionEvents.end();
+
+        VersionEvent[] events = (VersionEvent[]) recorder.batches.get(0);
+        assertEquals(3, events.length);
+        assertEquals(VersionEvent.ADDED, events[0].getType());
+        assertSame(sc, events[0].getSource());
+        assertSame(test, events[0].getElement());
+        assertEquals(VersionEvent.REMOVED, events[1].getType());
+        assertEquals("key", events[2].getKey());
+    }
+
+    public void testNestedBatches() {
+        TestVO test = new TestVO();
+        VersionEvents.begin();
+        test.setName("a");
+        VersionEvents.begin();
+        test.setName("b");
+        VersionEvents.end();
+        assertEquals("dispatched in nested batch", 0, recorder.batches.size());
+        VersionEvents.end();
+
+        assertEquals(1, recorder.batches.size());
+        assertEquals(2, ((VersionEvent[]) recorder.batches.get(0)).length);
+
+        try {
+            VersionEvents.end();
+            fail("batch ended twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testBatchSize() {
+        VersionEvents.setBatchSize(2);
+        TestVO test = new TestVO();
+        VersionEvents.begin();
+        test.setId(1);
+        test.setId(2);
+        assertEquals(0, recorder.batches.size());
+        test.setId(3);
+        assertEquals(1, recorder.batches.size());
+        VersionEvents.end();
+    }
+
+    public void testInactive() {
+        VersionEvents.removeListener(recorder);
+        assertTrue(!VersionEvents.isActive());
+        VersionEvents.begin();
+        new TestVO().setName("foo");
+
+        VersionEvents.addListener(recorder);
+        VersionEvents.end();
+        assertEquals("event queued without listener", 0, recorder.batches.size());
+    }
+
+    private static class Recorder implements VersionListener {
+        private List batches = new ArrayList();
+
+        public void versionChanged(VersionEvent[] events) {
+            batches.add(events);
+        }
+    }
+}
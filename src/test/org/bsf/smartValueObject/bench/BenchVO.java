@@ -0,0 +1,36 @@
+package org.bsf.smartValueObject.bench;
+
+/**
+ * Value object used to measure instrumented field writes. The
+ * <tt>benchmark</tt> target compiles it once and keeps a plain copy
+ * besides one enhanced by each instrumentor.
+ */
+public class BenchVO {
+    private int count;
+    private String name;
+    private BenchVO other;
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public BenchVO getOther() {
+        return other;
+    }
+
+    public void setOther(BenchVO other) {
+        this.other = other;
+    }
+}
@@ -0,0 +1,73 @@
+package org.bsf.smartValueObject.bench;
+
+/**
+ * A single timed operation. Subclasses implement <code>run()</code>,
+ * which is called repeatedly; <code>measure()</code> does a number of
+ * untimed warmup rounds before the timed ones and reports the average
+ * cost of one call.
+ * <p>Results returned from <code>run()</code> are accumulated in a sink
+ * so the work cannot be optimized away by the JIT.
+ */
+public abstract class Benchmark {
+    /** Receives the results of <code>run()</code>. */
+    private static volatile long sink;
+
+    private final String name;
+
+    public Benchmark(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Called once before every round, not timed.
+     */
+    public void setUp() {
+    }
+
+    /**
+     * The operation to measure.
+     * @param i the number of the call within the current round.
+     * @return any value depending on the work done.
+     */
+    public abstract long run(int i);
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param warmup number of untimed rounds.
+     * @param rounds number of timed rounds.
+     * @param calls number of calls to <code>run()</code> per round.
+     * @return the average time of one call in nanoseconds.
+     */
+    public double measure(int warmup, int rounds, int calls) {
+        for (int r = 0; r < warmup; r++) {
+            round(calls);
+        }
+
+        long total = 0;
+        for (int r = 0; r < rounds; r++) {
+            total += round(calls);
+        }
+
+        return (total * 1000000.0) / ((double) rounds * calls);
+    }
+
+    /**
+     * @return the time spent for one round in milliseconds.
+     */
+    private long round(int calls) {
+        setUp();
+        long acc = 0;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < calls; i++) {
+            acc += run(i);
+        }
+        long time = System.currentTimeMillis() - start;
+        sink += acc;
+        return time;
+    }
+}
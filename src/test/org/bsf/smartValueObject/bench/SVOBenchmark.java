@@ -0,0 +1,355 @@
+package org.bsf.smartValueObject.bench;
+
+import org.bsf.smartValueObject.SmartAccess;
+import org.bsf.smartValueObject.TestVO;
+import org.bsf.smartValueObject.Version;
+import org.bsf.smartValueObject.Versionable;
+import org.bsf.smartValueObject.container.SmartList;
+import org.bsf.smartValueObject.container.SmartMap;
+import org.bsf.smartValueObject.container.SmartSet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Micro benchmarks for the hot paths of SmartValueObject: field writes
+ * of enhanced VOs, <tt>Version.touch()</tt>, graph traversal and the
+ * smart containers compared to their plain <tt>java.util</tt> backing
+ * collections.
+ * <p>Configured through system properties:
+ * <ul>
+ * <li><tt>bench.suite</tt> - one of <tt>all</tt> (default),
+ * <tt>writes</tt>, <tt>version</tt>, <tt>graph</tt> or <tt>containers</tt>
+ * <li><tt>bench.label</tt> - printed next to the results, e.g. the
+ * instrumentor used for <tt>BenchVO</tt>
+ * <li><tt>bench.depth</tt>, <tt>bench.fanout</tt> - shape of the
+ * graph for the traversal benchmarks (default 4 and 8)
+ * <li><tt>bench.size</tt> - number of elements for the container
+ * benchmarks (default 1000)
+ * <li><tt>bench.warmup</tt>, <tt>bench.rounds</tt> - rounds per
+ * benchmark (default 5 and 10)
+ * </ul>
+ * Run with <tt>ant benchmark</tt>, which measures <tt>BenchVO</tt>
+ * plain and enhanced by each instrumentor.
+ */
+public class SVOBenchmark {
+    /** Containers filled per round of the container benchmarks. */
+    private static final int BATCH = 100;
+
+    private final int warmup = Integer.getInteger("bench.warmup", 5).intValue();
+    private final int rounds = Integer.getInteger("bench.rounds", 10).intValue();
+    private final int depth = Integer.getInteger("bench.depth", 4).intValue();
+    private final int fanout = Integer.getInteger("bench.fanout", 8).intValue();
+    private final int size = Integer.getInteger("bench.size", 1000).intValue();
+    private final String label = System.getProperty("bench.label", "");
+
+    public static void main(String[] args) {
+        SVOBenchmark bench = new SVOBenchmark();
+        String suite = System.getProperty("bench.suite", "all");
+        boolean all = suite.equals("all");
+
+        if (all || suite.equals("writes"))
+            bench.writes();
+        if (all || suite.equals("version"))
+            bench.version();
+        if (all || suite.equals("graph")) {
+            bench.graph(false);
+            bench.graph(true);
+        }
+        if (all || suite.equals("containers"))
+            bench.containers();
+    }
+
+    /**
+     * Field writes through the setters of <tt>BenchVO</tt>, whatever
+     * version of it is first on the classpath.
+     */
+    private void writes() {
+        final BenchVO vo = new BenchVO();
+        final BenchVO[] others = { new BenchVO(), new BenchVO() };
+        final String[] names = { "foo", "bar" };
+        String kind = (((Object) vo) instanceof Versionable) ?
+                "enhanced" : "plain";
+        header("field writes, BenchVO " + kind + " " + label);
+
+        report(new Benchmark("setCount(int)") {
+            public long run(int i) {
+                vo.setCount(i);
+                return vo.getCount();
+            }
+        }, 1000000);
+        report(new Benchmark("setName(String)") {
+            public long run(int i) {
+                vo.setName(names[i & 1]);
+                return 0;
+            }
+        }, 1000000);
+        report(new Benchmark("setOther(BenchVO)") {
+            public long run(int i) {
+                vo.setOther(others[i & 1]);
+                return 0;
+            }
+        }, 1000000);
+    }
+
+    private void version() {
+        final Version v = new Version();
+        header("Version");
+
+        report(new Benchmark("touch()") {
+            public long run(int i) {
+                v.touch();
+                v.markClean();
+                return 0;
+            }
+        }, 1000000);
+        report(new Benchmark("touch(String)") {
+            public long run(int i) {
+                v.touch("name");
+                v.markClean();
+                return 0;
+            }
+        }, 1000000);
+        report(new Benchmark("touch(int)") {
+            public long run(int i) {
+                v.touch(i & 63);
+                v.markClean();
+                return 0;
+            }
+        }, 1000000);
+        report(new Benchmark("isDirty(int)") {
+            public long run(int i) {
+                return v.isDirty(i & 63) ? 1 : 0;
+            }
+        }, 1000000);
+    }
+
+    /**
+     * Traversal of a tree of <tt>TestVO</tt>s.
+     * @param propagation whether upward dirty propagation is enabled.
+     */
+    private void graph(boolean propagation) {
+        SmartAccess.setDirtyPropagation(propagation);
+        try {
+            final List leaves = new ArrayList();
+            final TestVO root = createTree(depth, leaves);
+            final int n = leaves.size();
+            header("graph, depth " + depth + ", fanout " + fanout +
+                    ", propagation " + (propagation ? "on" : "off"));
+
+            report(new Benchmark("isGraphDirty, clean") {
+                public void setUp() {
+                    SmartAccess.resetGraph(root);
+                }
+
+                public long run(int i) {
+                    return SmartAccess.isGraphDirty(root) ? 1 : 0;
+                }
+            }, 200);
+            report(new Benchmark("isGraphDirty, one leaf dirty") {
+                public void setUp() {
+                    SmartAccess.resetGraph(root);
+                    ((TestVO) leaves.get(n / 2)).setName("dirty");
+                }
+
+                public long run(int i) {
+                    return SmartAccess.isGraphDirty(root) ? 1 : 0;
+                }
+            }, 200);
+            report(new Benchmark("touch leaf + resetGraph") {
+                public long run(int i) {
+                    ((TestVO) leaves.get(i % n)).setName("dirty");
+                    SmartAccess.resetGraph(root);
+                    return 0;
+                }
+            }, 200);
+        } finally {
+            SmartAccess.setDirtyPropagation(false);
+        }
+    }
+
+    private TestVO createTree(int levels, List leaves) {
+        TestVO vo = new TestVO();
+        if (levels <= 1) {
+            leaves.add(vo);
+        } else {
+            for (int i = 0; i < fanout; i++) {
+                vo.addTestVO(createTree(levels - 1, leaves));
+            }
+        }
+        return vo;
+    }
+
+    private void containers() {
+        final TestVO[] elements = new TestVO[size];
+        for (int i = 0; i < size; i++) {
+            elements[i] = new TestVO();
+            elements[i].setId(i);
+        }
+
+        collection("ArrayList", new CollectionFactory() {
+            public Collection create() {
+                return new ArrayList();
+            }
+        }, elements);
+        collection("SmartList", new CollectionFactory() {
+            public Collection create() {
+                return new SmartList(new ArrayList(), new Version());
+            }
+        }, elements);
+        collection("HashSet", new CollectionFactory() {
+            public Collection create() {
+                return new HashSet();
+            }
+        }, elements);
+        collection("SmartSet", new CollectionFactory() {
+            public Collection create() {
+                return new SmartSet(new HashSet(), new Version());
+            }
+        }, elements);
+        map("HashMap", new MapFactory() {
+            public Map create() {
+                return new HashMap();
+            }
+        }, elements);
+        map("SmartMap", new MapFactory() {
+            public Map create() {
+                return new SmartMap(new HashMap(), new Version());
+            }
+        }, elements);
+    }
+
+    private void collection(String name, final CollectionFactory factory,
+                            final TestVO[] elements) {
+        header(name + ", " + size + " elements");
+        final Collection[] c = new Collection[BATCH];
+
+        report(new Benchmark("add") {
+            public void setUp() {
+                for (int b = 0; b < BATCH; b++) {
+                    c[b] = factory.create();
+                }
+            }
+
+            public long run(int i) {
+                return c[i / size].add(elements[i % size]) ? 1 : 0;
+            }
+        }, BATCH * size);
+        report(new Benchmark("remove") {
+            public void setUp() {
+                for (int b = 0; b < BATCH; b++) {
+                    c[b] = factory.create();
+                    fill(c[b], elements);
+                }
+            }
+
+            public long run(int i) {
+                return c[i / size].remove(elements[size - 1 - i % size]) ? 1 : 0;
+            }
+        }, BATCH * size);
+        report(new Benchmark("iterate") {
+            public void setUp() {
+                c[0] = factory.create();
+                fill(c[0], elements);
+            }
+
+            public long run(int i) {
+                return count(c[0].iterator());
+            }
+        }, BATCH);
+    }
+
+    private void map(String name, final MapFactory factory,
+                     final TestVO[] elements) {
+        header(name + ", " + size + " elements");
+        final Map[] m = new Map[BATCH];
+        final Integer[] keys = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = new Integer(i);
+        }
+
+        report(new Benchmark("put") {
+            public void setUp() {
+                for (int b = 0; b < BATCH; b++) {
+                    m[b] = factory.create();
+                }
+            }
+
+            public long run(int i) {
+                return m[i / size].put(keys[i % size], elements[i % size]) == null ? 1 : 0;
+            }
+        }, BATCH * size);
+        report(new Benchmark("remove") {
+            public void setUp() {
+                for (int b = 0; b < BATCH; b++) {
+                    m[b] = factory.create();
+                    fill(m[b], keys, elements);
+                }
+            }
+
+            public long run(int i) {
+                return m[i / size].remove(keys[i % size]) == null ? 0 : 1;
+            }
+        }, BATCH * size);
+        report(new Benchmark("iterate values") {
+            public void setUp() {
+                m[0] = factory.create();
+                fill(m[0], keys, elements);
+            }
+
+            public long run(int i) {
+                return count(m[0].values().iterator());
+            }
+        }, BATCH);
+    }
+
+    private static void fill(Collection c, Object[] elements) {
+        for (int i = 0; i < elements.length; i++) {
+            c.add(elements[i]);
+        }
+    }
+
+    private static void fill(Map m, Object[] keys, Object[] elements) {
+        for (int i = 0; i < elements.length; i++) {
+            m.put(keys[i], elements[i]);
+        }
+    }
+
+    private static long count(Iterator it) {
+        long n = 0;
+        while (it.hasNext()) {
+            if (it.next() != null)
+                n++;
+        }
+        return n;
+    }
+
+    private void header(String title) {
+        System.out.println();
+        System.out.println(title);
+    }
+
+    private void report(Benchmark b, int calls) {
+        double ns = b.measure(warmup, rounds, calls);
+        StringBuffer line = new StringBuffer("  ");
+        line.append(b.getName());
+        while (line.length() < 40) {
+            line.append(' ');
+        }
+        line.append(Math.round(ns)).append(" ns/op");
+        System.out.println(line);
+    }
+
+    private interface CollectionFactory {
+        Collection create();
+    }
+
+    private interface MapFactory {
+        Map create();
+    }
+}
@@ -288,4 +288,46 @@ public abstract class AbstractTestSmartContainer extends TestCase {
             assertTrue(testVO.isDeleted());
         }
     }
+
+    public void testDeletedLeaveContainer() {
+        createMany(true);
+        TestVO[] deleted = deleteMany();
+
+        int n = 0;
+        for (Iterator it = containerUnderTest.getIterator(); it.hasNext(); n++) {
+            assertTrue("deleted element found in container",
+                    !isInArray((TestVO) it.next(), deleted));
+        }
+        assertEquals(containerUnderTest.size(), n);
+        assertEquals(deleted.length, containerUnderTest.getDeleted());
+
+        ((Versionable) containerUnderTest).markClean();
+        assertEquals("deleted elements not purged", 0, containerUnderTest.getDeleted());
+        assertTrue(!SmartAccess.deletedIterator(containerUnderTest).hasNext());
+    }
+
+    public void testReAdd() {
+        createMany(true);
+        TestVO clean = getOne();
+        long id = clean.getVersionId();
+        _removeFromContainer(clean);
+        assertTrue(clean.isDeleted());
+        _addToContainer(clean);
+        assertTrue(!clean.isDeleted());
+        assertTrue(!clean.isCreated());
+        assertTrue(!clean.isDirty());
+        assertEquals(id, clean.getVersionId());
+
+        TestVO modified = getOne();
+        modified.setName("modified");
+        _removeFromContainer(modified);
+        _addToContainer(modified);
+        assertTrue(!modified.isDeleted());
+        assertTrue(modified.isDirty());
+        assertEquals(Arrays.asList(new String[] { "name" }),
+                Arrays.asList(SmartAccess.dirtyFields(modified)));
+
+        assertEquals(0, containerUnderTest.getDeleted());
+        assertEquals(0, containerUnderTest.getCreated());
+    }
 }
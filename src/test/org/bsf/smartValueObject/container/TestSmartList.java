@@ -6,6 +6,11 @@ import org.bsf.smartValueObject.container.AbstractTestSmartContainer;
 import org.bsf.smartValueObject.TestVO;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.ListIterator;
 
 /**
  * 
@@ -14,6 +19,8 @@ import java.util.ArrayList;
 public class TestSmartList extends AbstractTestSmartContainer {
 
     private SmartList sl;
+    /** List for the index based tests, not checked against the log. */
+    private SmartList list;
 
     /**
      * Creates the container to be tested.
@@ -51,7 +58,143 @@ public class TestSmartList extends AbstractTestSmartContainer {
         return (TestVO) sl.iterator().next();
     }
 
-    public void testSomething() {
+    public void testIndicesSkipDeleted() {
+        TestVO[] vos = cleanElements(3);
+        list.remove(1);
 
+        assertEquals(2, list.size());
+        assertSame(vos[2], list.get(1));
+        assertEquals(1, list.indexOf(vos[2]));
+        assertEquals(-1, list.indexOf(vos[1]));
+        assertTrue(vos[1].isDeleted());
+        assertEquals(1, list.getDeleted());
+    }
+
+    public void testSet() {
+        TestVO[] vos = cleanElements(2);
+        TestVO replacement = new TestVO();
+
+        assertSame(vos[0], list.set(0, replacement));
+        assertSame(replacement, list.get(0));
+        assertEquals(2, list.size());
+        assertTrue("replaced element not deleted", vos[0].isDeleted());
+        assertEquals(1, list.getCreated());
+        assertTrue(list.isDirty());
+    }
+
+    public void testMove() {
+        TestVO[] vos = cleanElements(4);
+        list.set(1, vos[1]);
+        assertTrue("same element set", !list.isDirty());
+
+        TestVO t = new TestVO();
+        list.add(t);
+        Collections.swap(list, 0, 3);
+        Collections.swap(list, 0, 4);
+        Collections.reverse(list);
+        Collections.sort(list, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                int h1 = System.identityHashCode(o1);
+                int h2 = System.identityHashCode(o2);
+                return h1 < h2 ? -1 : (h1 == h2 ? 0 : 1);
+            }
+        });
+
+        assertEquals(5, list.size());
+        assertEquals("moved element deleted", 0, list.getDeleted());
+        assertTrue(!list.getDeletedIterator().hasNext());
+        assertEquals(1, list.getCreated());
+        for (int i = 0; i < vos.length; i++) {
+            assertTrue(list.contains(vos[i]));
+            assertTrue(!vos[i].isDeleted());
+            assertTrue(!vos[i].isDirty());
+        }
+    }
+
+    public void testMoveAfterChanges() {
+        TestVO[] vos = cleanElements(3);
+        Collections.swap(list, 0, 2);
+        list.add(0, new TestVO());
+        list.remove(vos[1]);
+        list.add(vos[1]);
+        Collections.swap(list, 0, 3);
+        list.set(1, new TestVO());
+
+        assertEquals(1, list.getDeleted());
+        assertTrue("replaced element kept", vos[2].isDeleted());
+        assertTrue(!vos[0].isDeleted());
+        assertTrue(!vos[1].isDeleted());
+        assertTrue(!vos[1].isDirty());
+    }
+
+    public void testAddAtIndex() {
+        TestVO[] vos = cleanElements(2);
+        list.remove(0);
+        TestVO t = new TestVO();
+        list.add(1, t);
+
+        assertSame(vos[1], list.get(0));
+        assertSame(t, list.get(1));
+        assertEquals(1, list.getCreated());
+    }
+
+    public void testBulk() {
+        TestVO[] vos = cleanElements(4);
+        TestVO t = new TestVO();
+        list.addAll(1, Arrays.asList(new Object[] { t }));
+        assertSame(t, list.get(1));
+        assertEquals(1, list.getCreated());
+
+        assertTrue(list.removeAll(Arrays.asList(new Object[] { vos[0], t })));
+        assertEquals(3, list.size());
+        assertEquals("created element kept", 0, list.getCreated());
+
+        assertTrue(list.retainAll(Arrays.asList(new Object[] { vos[1] })));
+        assertEquals(1, list.size());
+        assertEquals(3, list.getDeleted());
+        assertTrue(list.containsAll(Arrays.asList(new Object[] { vos[1] })));
+    }
+
+    public void testListIterator() {
+        TestVO[] vos = cleanElements(3);
+        ListIterator it = list.listIterator();
+        it.next();
+        it.remove();
+        it.next();
+        TestVO t = new TestVO();
+        it.set(t);
+
+        assertEquals(2, list.size());
+        assertSame(t, list.get(0));
+        assertSame(vos[2], list.get(1));
+        assertTrue(vos[0].isDeleted());
+        assertTrue(vos[1].isDeleted());
+    }
+
+    public void testSubList() {
+        TestVO[] vos = cleanElements(4);
+        List sub = list.subList(1, 3);
+        sub.clear();
+
+        assertEquals(2, list.size());
+        assertSame(vos[3], list.get(1));
+        assertTrue(vos[1].isDeleted());
+        assertTrue(vos[2].isDeleted());
+    }
+
+    /**
+     * Fills a separate list with clean elements, which are kept as
+     * deleted when removed.
+     */
+    private TestVO[] cleanElements(int n) {
+        list = new SmartList(new ArrayList(), getVersionable());
+        TestVO[] vos = new TestVO[n];
+        for (int i = 0; i < n; i++) {
+            vos[i] = new TestVO();
+            vos[i].markClean();
+            list.add(vos[i]);
+        }
+        list.markClean();
+        return vos;
     }
 }
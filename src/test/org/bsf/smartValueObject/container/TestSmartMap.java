@@ -4,8 +4,10 @@ import org.bsf.smartValueObject.container.SmartMap;
 import org.bsf.smartValueObject.container.SmartContainer;
 import org.bsf.smartValueObject.container.AbstractTestSmartContainer;
 import org.bsf.smartValueObject.TestVO;
+import org.bsf.smartValueObject.Version;
 
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -16,6 +18,8 @@ import java.util.Set;
  */
 public class TestSmartMap extends AbstractTestSmartContainer {
     private SmartMap sm;
+    /** Touches of the version of the map used by <tt>testPutAll</tt>. */
+    private int touches;
 
     protected SmartContainer createContainer() {
         sm = new SmartMap(new HashMap(), getVersionable());
@@ -135,4 +139,206 @@ public class TestSmartMap extends AbstractTestSmartContainer {
             assertTrue(contains(it.next()));
         }
     }
+
+    public void testReplace() {
+        SmartMap map = new SmartMap(new HashMap(), getVersionable());
+        TestVO old = new TestVO();
+        old.markClean();
+        map.put("a", old);
+        map.markClean();
+
+        TestVO t = new TestVO();
+        assertSame(old, map.put("a", t));
+        assertTrue("replaced value not deleted", old.isDeleted());
+        assertEquals(1, map.getDeleted());
+        assertEquals("a", map.keyOf(old));
+        assertReplaced(map, old);
+
+        map.put("a", t);
+        assertTrue("same value put again", !map.isDirty());
+    }
+
+    /**
+     * Checks that a replaced value is dropped with the journals and isn't
+     * linked to the map any more.
+     */
+    private static void assertReplaced(SmartMap map, TestVO old) {
+        map.markClean();
+        old.markClean();
+        old.setName("detached");
+        assertTrue("replaced value still linked", !map.isGraphDirty());
+        for (Iterator it = map.getModifiedIterator(); it.hasNext(); ) {
+            assertTrue("replaced value modified", it.next() != old);
+        }
+    }
+
+    public void testPutAll() {
+        SmartMap map = new SmartMap(new HashMap(), new Version() {
+            public void touch() {
+                touches++;
+                super.touch();
+            }
+        });
+        Map t = new HashMap();
+        for (int i = 0; i < 10; i++) {
+            t.put(new Integer(i), new TestVO());
+        }
+        t.put("plain", "value");
+
+        map.putAll(t);
+        assertEquals(11, map.size());
+        assertEquals(10, map.getCreated());
+        assertEquals("touched per element", 1, touches);
+        assertSame(t.get(new Integer(3)), map.get(new Integer(3)));
+
+        map.putAll(new HashMap());
+        assertEquals(1, touches);
+    }
+
+    public void testPutAllReplaces() {
+        SmartMap map = new SmartMap(new HashMap(), getVersionable());
+        TestVO old = new TestVO();
+        TestVO kept = new TestVO();
+        old.markClean();
+        kept.markClean();
+        map.put("a", old);
+        map.put("b", kept);
+        map.markClean();
+
+        Map t = new HashMap();
+        t.put("a", new TestVO());
+        t.put("b", kept);
+        map.putAll(t);
+        assertTrue("replaced value not deleted", old.isDeleted());
+        assertTrue(!kept.isDeleted());
+        assertEquals(1, map.getDeleted());
+        assertReplaced(map, old);
+    }
+
+    public void testViews() {
+        TestVO[] vos = createMany(5, true);
+        Set keys = sm.keySet();
+        assertSame("view not reused", keys, sm.keySet());
+
+        deleteOne();
+        assertEquals(4, keys.size());
+        assertEquals(4, sm.values().size());
+        int n = 0;
+        for (Iterator it = sm.entrySet().iterator(); it.hasNext(); n++) {
+            Map.Entry entry = (Map.Entry) it.next();
+            assertTrue("deleted entry found", !((TestVO) entry.getValue()).isDeleted());
+        }
+        assertEquals(4, n);
+
+        TestVO t = (TestVO) keys.iterator().next();
+        assertTrue(isInArray(t, vos));
+    }
+
+    public void testRemoveThroughViews() {
+        Map map = new SmartMap(new HashMap(), getVersionable());
+        TestVO clean = new TestVO();
+        clean.markClean();
+        TestVO created = new TestVO();
+        map.put("clean", clean);
+        map.put("created", created);
+        map.put("plain", "value");
+
+        assertTrue(map.keySet().remove("clean"));
+        assertTrue("clean element not kept as deleted", clean.isDeleted());
+        assertTrue(!map.keySet().remove("clean"));
+
+        assertTrue(map.values().remove(created));
+        for (Iterator it = map.entrySet().iterator(); it.hasNext(); ) {
+            it.next();
+            it.remove();
+        }
+        assertTrue(map.isEmpty());
+        assertEquals(1, ((SmartMap) map).getDeleted());
+        assertEquals(0, ((SmartMap) map).getCreated());
+    }
+
+    public void testEntrySetValue() {
+        Map map = new SmartMap(new HashMap(), getVersionable());
+        map.put("a", "1");
+        ((SmartMap) map).markClean();
+
+        Map.Entry entry = (Map.Entry) map.entrySet().iterator().next();
+        TestVO t = new TestVO();
+        assertEquals("1", entry.setValue(t));
+        assertSame(t, map.get("a"));
+        assertEquals(1, ((SmartMap) map).getCreated());
+        assertTrue(((SmartMap) map).isDirty());
+    }
+
+    public void testEntrySetValueReplaces() {
+        SmartMap map = new SmartMap(new HashMap(), getVersionable());
+        TestVO old = new TestVO();
+        old.markClean();
+        map.put("a", old);
+        map.markClean();
+
+        Map.Entry entry = (Map.Entry) map.entrySet().iterator().next();
+        assertSame(old, entry.setValue(new TestVO()));
+        assertTrue("replaced value not deleted", old.isDeleted());
+        assertEquals(1, map.getDeleted());
+        assertReplaced(map, old);
+    }
+
+    public void testValueIndex() {
+        SmartMap map = new SmartMap(new HashMap(), getVersionable(), true);
+        assertTrue(map.hasValueIndex());
+        TestVO clean = new TestVO();
+        clean.markClean();
+        TestVO created = new TestVO();
+        map.put("a", clean);
+        map.put("b", created);
+        map.put("c", created);
+        map.put("d", new String("value"));
+
+        assertTrue(map.containsValue(clean));
+        assertTrue("not found by equals", map.containsValue("value"));
+        assertEquals("a", map.keyOf(clean));
+        assertEquals("d", map.keyOf("value"));
+        assertNull(map.keyOf(new TestVO()));
+
+        map.put("c", "other");
+        assertEquals("b", map.keyOf(created));
+        assertTrue(map.values().remove(created));
+        assertTrue(!map.containsValue(created));
+        assertNull(map.keyOf(created));
+
+        assertTrue(map.values().remove(clean));
+        assertTrue("deleted value found", !map.containsValue(clean));
+        assertEquals("deleted value keeps its key", "a", map.keyOf(clean));
+
+        map.clear();
+        assertNull(map.keyOf("value"));
+        assertEquals("a", map.keyOf(clean));
+    }
+
+    public void testValueIndexDefault() {
+        assertTrue(!SmartMap.isValueIndex());
+        assertTrue(!sm.hasValueIndex());
+        SmartMap.setValueIndex(true);
+        try {
+            Map m = new HashMap();
+            TestVO t = new TestVO();
+            m.put("t", t);
+            SmartMap map = new SmartMap(m, getVersionable());
+            assertTrue(map.hasValueIndex());
+            assertEquals("existing values not indexed", "t", map.keyOf(t));
+        } finally {
+            SmartMap.setValueIndex(false);
+        }
+    }
+
+    public void testDeletedKey() {
+        TestVO t = createOne(true);
+        deleteOne();
+        assertTrue(!((Map) sm.getContainer()).containsValue(t));
+        assertSame("key of deleted element lost", t, sm.keyOf(t));
+
+        sm.markClean();
+        assertNull(sm.keyOf(t));
+    }
 }
@@ -4,8 +4,11 @@ import org.bsf.smartValueObject.container.SmartContainer;
 import org.bsf.smartValueObject.container.SmartSet;
 import org.bsf.smartValueObject.container.AbstractTestSmartContainer;
 import org.bsf.smartValueObject.TestVO;
+import org.bsf.smartValueObject.Version;
 
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 
 /**
  * Testcase for SmartSet.
@@ -14,6 +17,8 @@ import java.util.HashSet;
  */
 public class TestSmartSet extends AbstractTestSmartContainer {
     private SmartSet ss;
+    /** Touches of the version of the set used by the bulk tests. */
+    private int touches;
 
     protected SmartContainer createContainer() {
         ss = new SmartSet(new HashSet(), getVersionable());
@@ -43,4 +48,32 @@ public class TestSmartSet extends AbstractTestSmartContainer {
         deleteMany(getSize());
         testSize();
     }
+
+    public void testBulk() {
+        SmartSet set = new SmartSet(new HashSet(), new Version() {
+            public void touch() {
+                touches++;
+                super.touch();
+            }
+        });
+        TestVO clean = new TestVO();
+        clean.markClean();
+        TestVO created = new TestVO();
+        List both = Arrays.asList(new Object[] { clean, created });
+
+        assertTrue(set.addAll(both));
+        assertTrue("already contained", !set.addAll(both));
+        assertEquals("touched per element", 1, touches);
+        assertEquals(1, set.getCreated());
+        assertTrue(set.containsAll(both));
+
+        set.markClean();
+        assertTrue(set.retainAll(Arrays.asList(new Object[] { created })));
+        assertTrue(set.removeAll(both));
+        // the created element is dropped, without touching the set
+        assertEquals(2, touches);
+        assertEquals(0, set.size());
+        assertEquals(1, set.getDeleted());
+        assertTrue(!set.containsAll(both));
+    }
 }
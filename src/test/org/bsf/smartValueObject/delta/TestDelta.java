@@ -0,0 +1,189 @@
+package org.bsf.smartValueObject.delta;
+
+import junit.framework.TestCase;
+import org.bsf.smartValueObject.SmartAccess;
+import org.bsf.smartValueObject.TestVO;
+import org.bsf.smartValueObject.Version;
+import org.bsf.smartValueObject.container.SmartMap;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Testcase for DeltaWriter/DeltaReader.
+ *
+ * @see org.bsf.smartValueObject.delta.DeltaWriter
+ * @see org.bsf.smartValueObject.delta.DeltaReader
+ */
+public class TestDelta extends TestCase {
+    private static final int ELEMENTS = 500;
+    /** The graph as stored on the server. */
+    private TestVO base;
+    /** The graph as modified by the client. */
+    private TestVO client;
+
+    public void setUp() {
+        base = new TestVO();
+        base.setId(1);
+        base.setName("root");
+        TestVO other = new TestVO();
+        other.setId(2);
+        base.setOtherTestVO(other);
+        for (int i = 0; i < ELEMENTS; i++) {
+            TestVO test = new TestVO();
+            test.setId(100 + i);
+            test.setName("element " + i);
+            base.addTestVO(test);
+        }
+        SmartAccess.resetGraph(base);
+        client = (TestVO) copy(base);
+    }
+
+    public void testNoChanges() throws Exception {
+        byte[] delta = write(client);
+        read(delta, base);
+        assertTrue(!SmartAccess.isGraphDirty(base));
+    }
+
+    public void testModifiedFields() throws Exception {
+        client.setName("changed");
+        client.otherTestVO.setName("other");
+        find(client, 142).setName("element changed");
+        SmartAccess.setVersionId(client, 4711);
+
+        read(write(client), base);
+
+        assertEquals("changed", base.getName());
+        assertEquals(1, SmartAccess.dirtyFields(base).length);
+        assertEquals("name", SmartAccess.dirtyFields(base)[0]);
+        assertEquals(4711, SmartAccess.getVersionId(base));
+        assertEquals("other", base.otherTestVO.getName());
+        assertTrue(base.otherTestVO.isDirty());
+
+        TestVO element = find(base, 142);
+        assertEquals("element changed", element.getName());
+        assertTrue(element.isDirty());
+        assertTrue(!find(base, 143).isDirty());
+
+        Iterator it = SmartAccess.modifiedIterator(base.tests);
+        assertSame(element, it.next());
+        assertTrue(!it.hasNext());
+    }
+
+    public void testCreatedAndDeleted() throws Exception {
+        TestVO created = new TestVO();
+        created.setId(42);
+        created.setOtherTestVO(client);
+        client.addTestVO(created);
+        client.removeTestVO(find(client, 100));
+
+        read(write(client), base);
+
+        assertTrue(find(base, 100).isDeleted());
+        Iterator it = SmartAccess.createdIterator(base.tests);
+        TestVO t = (TestVO) it.next();
+        assertEquals(42, t.getId());
+        assertTrue(!it.hasNext());
+        assertSame("Reference into the graph not resolved", base, t.otherTestVO);
+        assertEquals(ELEMENTS, base.tests.size());
+        assertEquals(1, SmartAccess.deletedSize(base.tests));
+    }
+
+    public void testReplacedMapKey() throws Exception {
+        SmartMap map = new SmartMap(new HashMap(), new Version());
+        TestVO old = new TestVO();
+        old.setId(1);
+        map.put("k", old);
+        SmartAccess.resetGraph(map);
+        SmartMap modified = (SmartMap) copy(map);
+
+        modified.remove("k");
+        TestVO replacement = new TestVO();
+        replacement.setId(2);
+        modified.put("k", replacement);
+
+        read(write(modified), map);
+
+        TestVO t = (TestVO) map.get("k");
+        assertTrue("replaced key lost", t != null);
+        assertEquals(2, t.getId());
+        assertTrue(t.isCreated());
+        assertTrue(old.isDeleted());
+        assertEquals(1, map.size());
+        assertEquals(1, map.getDeleted());
+    }
+
+    public void testDeltaIsSmall() throws Exception {
+        find(client, 300).setName("small change");
+        byte[] delta = write(client);
+        int full = serialize(client).length;
+
+        assertTrue("Delta too big: " + delta.length + " of " + full,
+                delta.length * 20 < full);
+    }
+
+    public void testWithPropagation() throws Exception {
+        SmartAccess.setDirtyPropagation(true);
+        try {
+            // copy again, to get the links
+            client = (TestVO) copy(base);
+            find(client, 250).setName("propagated");
+
+            read(write(client), base);
+            assertEquals("propagated", find(base, 250).getName());
+        } finally {
+            SmartAccess.setDirtyPropagation(false);
+        }
+    }
+
+    private static TestVO find(TestVO root, int id) {
+        for (Iterator it = root.tests.iterator(); it.hasNext(); ) {
+            TestVO test = (TestVO) it.next();
+            if (test.getId() == id)
+                return test;
+        }
+        for (Iterator it = SmartAccess.deletedIterator(root.tests); it.hasNext(); ) {
+            TestVO test = (TestVO) it.next();
+            if (test.getId() == id)
+                return test;
+        }
+        fail("element " + id + " not found");
+        return null;
+    }
+
+    private static byte[] write(Object graph) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DeltaWriter writer = new DeltaWriter(bos);
+        writer.writeGraph(graph);
+        writer.close();
+        return bos.toByteArray();
+    }
+
+    private static void read(byte[] delta, Object base) throws Exception {
+        DeltaReader reader = new DeltaReader(new ByteArrayInputStream(delta));
+        reader.readGraph(base);
+        reader.close();
+    }
+
+    private static byte[] serialize(Object o) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeObject(o);
+            oos.close();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e.toString());
+        }
+    }
+
+    private static Object copy(Object o) {
+        try {
+            return new ObjectInputStream(
+                    new ByteArrayInputStream(serialize(o))).readObject();
+        } catch (Exception e) {
+            throw new RuntimeException(e.toString());
+        }
+    }
+}
@@ -20,7 +20,7 @@ public class CompanyVO implements Serializable {
 
     private final SimpleDateFormat _dateFormat = new SimpleDateFormat( "dd/MM/yy" );
 
-    /** @hibernate.id generator-class="native" column="id" unsaved-value="0" */
+    /** @hibernate.id generator-class="native" column="id" unsaved-value="null" */
     public Long getId() {
         return id;
     }
@@ -57,7 +57,7 @@ public class CompanyVO implements Serializable {
     }
 
     /**
-     * @hibernate.bag inverse="true" cascade="all"
+     * @hibernate.bag inverse="true" cascade="none"
      * @hibernate.collection-one-to-many class="org.bsf.smartValueObject.demo.SubsidiaryVO"
      * @hibernate.collection-key column="companyId"
      */
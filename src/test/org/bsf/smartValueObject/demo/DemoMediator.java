@@ -5,7 +5,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.bsf.smartValueObject.SmartAccess;
 import org.bsf.smartValueObject.mediator.ConcurrencyException;
-import org.bsf.smartValueObject.mediator.Mediator;
+import org.bsf.smartValueObject.mediator.AbstractMediator;
 import org.bsf.smartValueObject.mediator.MediatorException;
 import org.bsf.smartValueObject.mediator.ChangeSummary;
 
@@ -18,7 +18,7 @@ import java.util.*;
  * Mock Mediator for the Demo.
  *
  */
-public class DemoMediator implements Mediator, java.io.Serializable {
+public class DemoMediator extends AbstractMediator implements java.io.Serializable {
 
     private static Log log = LogFactory.getLog(DemoMediator.class);
    /** Our storage, to avoid EJB local entities. */
@@ -13,7 +13,7 @@ public class SubsidiaryVO implements Serializable {
     private long workforce;
     private CompanyVO companyVO;
 
-    /** @hibernate.id generator-class="native" column="id" unsaved-value="0" */
+    /** @hibernate.id generator-class="native" column="id" unsaved-value="null" */
     public Long getId() {
         return id;
     }
@@ -0,0 +1,169 @@
+package org.bsf.smartValueObject.mediator;
+
+import junit.framework.TestCase;
+import org.bsf.smartValueObject.TestVO;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Testcase for AsyncMediator.
+ *
+ * @see org.bsf.smartValueObject.mediator.AsyncMediator
+ */
+public class TestAsyncMediator extends TestCase {
+    private RecordingMediator recorder;
+    private AsyncMediator mediator;
+
+    public void setUp() {
+        recorder = new RecordingMediator();
+        mediator = new AsyncMediator(recorder, 1, 3);
+    }
+
+    public void tearDown() {
+        recorder.open();
+        mediator.shutdown();
+    }
+
+    public void testUpdate() throws MediatorException {
+        TestVO vo = newVO(1);
+        MediatorFuture future = mediator.updateGraph(vo);
+        ChangeSummary cs = (ChangeSummary) future.get();
+        assertTrue(future.isDone());
+        assertEquals(new Integer(1), cs.getKey());
+        assertSame(vo, mediator.getGraph(vo).get());
+    }
+
+    public void testException() throws MediatorException {
+        MediatorFuture future = mediator.deleteGraph(newVO(-1));
+        try {
+            future.get();
+            fail("exception not passed on");
+        } catch (MediatorException e) {
+            assertEquals("negative id", e.getMessage());
+        }
+    }
+
+    public void testError() throws MediatorException {
+        MediatorFuture future = mediator.deleteGraph(newVO(-2));
+        try {
+            future.get();
+            fail("error not passed on");
+        } catch (MediatorException e) {
+            assertTrue(e.getCause() instanceof Error);
+        }
+
+        // the only worker is still running
+        ChangeSummary cs = (ChangeSummary) mediator.updateGraph(newVO(1)).get();
+        assertEquals(new Integer(1), cs.getKey());
+    }
+
+    public void testCoalescing() throws Exception {
+        recorder.close();
+        TestVO first = newVO(1);
+        mediator.updateGraph(first);
+        recorder.waitForStart();
+
+        TestVO second = newVO(2);
+        MediatorFuture f1 = mediator.updateGraph(second);
+        MediatorFuture f2 = mediator.updateGraph(second);
+        assertSame(f1, f2);
+
+        // the same key, but another instance
+        MediatorFuture f3 = mediator.updateGraph(newVO(2));
+        assertTrue(f1 != f3);
+
+        recorder.open();
+        f1.get();
+        f3.get();
+        assertEquals(3, recorder.updated.size());
+    }
+
+    public void testBackPressure() throws Exception {
+        recorder.close();
+        mediator.updateGraph(newVO(1));
+        recorder.waitForStart();
+        mediator.updateGraph(newVO(2));
+        mediator.updateGraph(newVO(3));
+
+        final List submitted = new ArrayList();
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    mediator.updateGraph(newVO(4));
+                    synchronized (submitted) {
+                        submitted.add(Boolean.TRUE);
+                    }
+                } catch (MediatorException e) {
+                    // fails the assertion below
+                }
+            }
+        };
+        t.start();
+        t.join(200);
+        synchronized (submitted) {
+            assertTrue("limit not enforced", submitted.isEmpty());
+        }
+
+        recorder.open();
+        t.join(5000);
+        assertEquals(1, submitted.size());
+    }
+
+    private static TestVO newVO(int id) {
+        TestVO vo = new TestVO();
+        vo.setId(id);
+        return vo;
+    }
+
+    /**
+     * Records the graphs stored, updates wait while closed.
+     */
+    private static class RecordingMediator extends AbstractMediator {
+        private final List updated = new ArrayList();
+        private boolean closed = false;
+        private boolean started = false;
+
+        public Object getGraph(Object prototype) {
+            return prototype;
+        }
+
+        public ChangeSummary updateGraph(Object graph) throws MediatorException {
+            synchronized (this) {
+                started = true;
+                notifyAll();
+                while (closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new MediatorException(e);
+                    }
+                }
+                updated.add(graph);
+            }
+            return new ChangeSummary(new Integer(((TestVO) graph).getId()), null);
+        }
+
+        public void deleteGraph(Object graph) throws MediatorException {
+            if (((TestVO) graph).getId() == -2)
+                throw new Error("failed badly");
+            if (((TestVO) graph).getId() < 0)
+                throw new MediatorException("negative id");
+        }
+
+        synchronized void close() {
+            closed = true;
+        }
+
+        synchronized void open() {
+            closed = false;
+            notifyAll();
+        }
+
+        synchronized void waitForStart() throws InterruptedException {
+            while (!started) {
+                wait();
+            }
+        }
+    }
+}
@@ -6,6 +6,8 @@ import org.bsf.smartValueObject.mediator.Mediator;
 import org.bsf.smartValueObject.mediator.MediatorException;
 import org.bsf.smartValueObject.TestVO;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -65,6 +67,36 @@ public class TestEjbSvoMediator extends TestCase {
         fail("Got not exception while searching non-existent object");
     }
 
+    public void testGraphs() throws MediatorException {
+        List graphs = new ArrayList();
+        for (int i = 100; i < 103; i++) {
+            TestVO test = new TestVO();
+            test.setId(i);
+            test.setName("Number " + i);
+            graphs.add(test);
+        }
+        assertEquals(3, mediator.updateGraphs(graphs).size());
+
+        List prototypes = new ArrayList();
+        for (int i = 102; i >= 100; i--) {
+            TestVO test = new TestVO();
+            test.setId(i);
+            prototypes.add(test);
+        }
+        List result = mediator.getGraphs(prototypes);
+        assertEquals(3, result.size());
+        assertEquals("Number 102", ((TestVO) result.get(0)).getName());
+        assertEquals("Number 100", ((TestVO) result.get(2)).getName());
+
+        prototypes.add(new Object());
+        try {
+            mediator.getGraphs(prototypes);
+            fail("unknown prototype accepted");
+        } catch (MediatorException e) {
+            // expected
+        }
+    }
+
     public void testStoreGraph() throws MediatorException {
         TestVO test1 = new TestVO();
         test1.setId(99);
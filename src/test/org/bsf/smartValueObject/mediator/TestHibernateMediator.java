@@ -59,6 +59,44 @@ public class TestHibernateMediator extends TestCase {
         assertTrue(result == null);
     }
 
+    public void testUpdateGraphs() throws MediatorException {
+        List graphs = new ArrayList();
+        graphs.add(buildUserGraph());
+        graphs.add(buildUserGraph());
+        List summaries = ((HibernateMediator) mediator).updateGraphs(graphs);
+        assertEquals(2, summaries.size());
+        ChangeSummary cs = (ChangeSummary) summaries.get(1);
+        assertEquals("4 inserted, 0 updated, 0 deleted", cs.getReport());
+
+        CompanyVO company = new CompanyVO();
+        company.setId((Long) cs.getKey());
+        CompanyVO result = (CompanyVO) mediator.getGraph(company);
+        assertEquals(3, result.getSubsidiaries().size());
+
+        SubsidiaryVO sub = (SubsidiaryVO) result.subsidiaries().next();
+        sub.setWorkforce(42);
+        cs = mediator.updateGraph(result);
+        assertEquals("0 inserted, 1 updated, 0 deleted", cs.getReport());
+
+        result.removeSubsidiary(sub);
+        cs = mediator.updateGraph(result);
+        assertEquals("0 inserted, 0 updated, 1 deleted", cs.getReport());
+        assertEquals(2, ((CompanyVO) mediator.getGraph(company)).getSubsidiaries().size());
+    }
+
+    public void testDeleteChild() throws MediatorException {
+        ChangeSummary cs = mediator.updateGraph(buildUserGraph());
+        CompanyVO company = new CompanyVO();
+        company.setId((Long) cs.getKey());
+        CompanyVO result = (CompanyVO) mediator.getGraph(company);
+
+        mediator.deleteGraph(result.subsidiaries().next());
+
+        result = (CompanyVO) mediator.getGraph(company);
+        assertTrue("parent deleted", result != null);
+        assertEquals(2, result.getSubsidiaries().size());
+    }
+
     public void testConcurrency() throws MediatorException {
 
     }
@@ -68,7 +106,7 @@ public class TestHibernateMediator extends TestCase {
         comp.setName( "The big big company" );
 
         // set time to actual date, 0:00:00
-        Calendar cal = Calendar.getInstance( TimeZone.getTimeZone( "Europe/Paris" ) );
+        Calendar cal = Calendar.getInstance();
         cal.set( Calendar.HOUR_OF_DAY, 0 );
         cal.set( Calendar.MINUTE, 0 );
         cal.set( Calendar.SECOND, 0 );
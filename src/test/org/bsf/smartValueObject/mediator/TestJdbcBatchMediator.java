@@ -0,0 +1,273 @@
+package org.bsf.smartValueObject.mediator;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+import org.bsf.smartValueObject.SmartAccess;
+import org.bsf.smartValueObject.demo.CompanyVO;
+import org.bsf.smartValueObject.demo.SubsidiaryVO;
+import org.bsf.smartValueObject.demo.DemoConfig;
+
+/**
+ * Testcase for the JDBC batch mediator, using the HSQLDB test database
+ * with an additional version column.
+ *
+ * @see org.bsf.smartValueObject.mediator.JdbcBatchMediator
+ */
+public class TestJdbcBatchMediator extends TestCase {
+    private static final String URL = "jdbc:hsqldb:test";
+    private Mediator mediator;
+    private final String createCompanySql = "CREATE TABLE company(" +
+            "id IDENTITY," +
+            "name VARCHAR(30)," +
+            "creationDate DATE," +
+            "version BIGINT" +
+            ");";
+    private final String createSubsidiarySql = "CREATE TABLE subsidiary(" +
+            "id IDENTITY," +
+            "name VARCHAR(30)," +
+            "workforce INT," +
+            "companyId INT," +
+            "version BIGINT" +
+            ");";
+    private final String destroyCompanySql = "DROP TABLE company IF EXISTS;";
+    private final String destroySubsidiarySql = "DROP TABLE subsidiary IF EXISTS;";
+    private final String[] sequences = { "company_seq", "subsidiary_seq" };
+
+    public void setUp() throws Exception {
+        createTestDb();
+        mediator = new JdbcBatchMediator(new DemoConfig(), URL, "sa", "");
+    }
+
+    public void tearDown() throws Exception {
+        destroyTestDb();
+    }
+
+    public void testInsert() throws MediatorException {
+        CompanyVO company = buildUserGraph();
+        ChangeSummary cs = mediator.updateGraph(company);
+        assertEquals(company.getId(), cs.getKey());
+        assertEquals("4 inserted, 0 updated, 0 deleted", cs.getReport());
+        assertTrue("graph not marked clean", !SmartAccess.isGraphDirty(company));
+
+        CompanyVO result = load(company.getId());
+        assertEquals("The big big company", result.getName());
+        assertEquals(3, result.getSubsidiaries().size());
+        SubsidiaryVO sub = (SubsidiaryVO) result.subsidiaries().next();
+        assertSame(result, sub.getCompanyVO());
+        assertTrue("loaded graph dirty", !SmartAccess.isGraphDirty(result));
+    }
+
+    public void testUpdate() throws MediatorException {
+        CompanyVO company = buildUserGraph();
+        mediator.updateGraph(company);
+        CompanyVO result = load(company.getId());
+
+        SubsidiaryVO sub = (SubsidiaryVO) result.subsidiaries().next();
+        sub.setWorkforce(42);
+        ChangeSummary cs = mediator.updateGraph(result);
+        assertEquals("0 inserted, 1 updated, 0 deleted", cs.getReport());
+
+        // a second update of the same object checks the new version
+        sub.setName("Rome");
+        mediator.updateGraph(result);
+
+        result = load(company.getId());
+        for (Iterator it = result.subsidiaries(); it.hasNext(); ) {
+            SubsidiaryVO s = (SubsidiaryVO) it.next();
+            if (s.getId().equals(sub.getId())) {
+                assertEquals("Rome", s.getName());
+                assertEquals(42, s.getWorkforce());
+            }
+        }
+    }
+
+    public void testAddAndRemove() throws MediatorException {
+        CompanyVO company = buildUserGraph();
+        mediator.updateGraph(company);
+        CompanyVO result = load(company.getId());
+
+        SubsidiaryVO sub = (SubsidiaryVO) result.subsidiaries().next();
+        result.removeSubsidiary(sub);
+        SubsidiaryVO added = new SubsidiaryVO();
+        added.setName("Madrid");
+        result.addSubsidiary(added);
+        added = new SubsidiaryVO();
+        added.setName("Rome");
+        result.addSubsidiary(added);
+
+        ChangeSummary cs = mediator.updateGraph(result);
+        assertEquals("2 inserted, 0 updated, 1 deleted", cs.getReport());
+        assertEquals(4, load(company.getId()).getSubsidiaries().size());
+    }
+
+    public void testConcurrency() throws MediatorException {
+        CompanyVO company = buildUserGraph();
+        mediator.updateGraph(company);
+        CompanyVO first = load(company.getId());
+        CompanyVO second = load(company.getId());
+
+        first.setName("First");
+        mediator.updateGraph(first);
+
+        second.setName("Second");
+        try {
+            mediator.updateGraph(second);
+            fail("concurrent modification not detected");
+        } catch (ConcurrencyException e) {
+            // expected
+        }
+        assertEquals("First", load(company.getId()).getName());
+    }
+
+    public void testGraphs() throws MediatorException {
+        List graphs = new ArrayList();
+        graphs.add(buildUserGraph());
+        graphs.add(buildUserGraph());
+        List summaries = mediator.updateGraphs(graphs);
+        assertEquals(2, summaries.size());
+        assertEquals("4 inserted, 0 updated, 0 deleted",
+                     ((ChangeSummary) summaries.get(1)).getReport());
+
+        List prototypes = new ArrayList();
+        for (int i = 0; i < 2; i++) {
+            CompanyVO prototype = new CompanyVO();
+            prototype.setId(((CompanyVO) graphs.get(i)).getId());
+            prototypes.add(prototype);
+        }
+        List loaded = mediator.getGraphs(prototypes);
+        CompanyVO first = (CompanyVO) loaded.get(0);
+        first.setName("First");
+        summaries = mediator.updateGraphs(loaded);
+        assertEquals("0 inserted, 1 updated, 0 deleted",
+                     ((ChangeSummary) summaries.get(0)).getReport());
+        assertEquals("Nothing", ((ChangeSummary) summaries.get(1)).getReport());
+        assertEquals("First", load(first.getId()).getName());
+
+        mediator.deleteGraphs(loaded);
+        assertNull(load(first.getId()));
+        assertNull(mediator.getGraphs(prototypes).get(1));
+    }
+
+    public void testTwoWriters() throws MediatorException {
+        JdbcBatchMediator other = new JdbcBatchMediator(new DemoConfig(), URL, "sa", "");
+        CompanyVO first = buildUserGraph();
+        mediator.updateGraph(first);
+        CompanyVO second = buildUserGraph();
+        other.updateGraph(second);
+        CompanyVO third = buildUserGraph();
+        mediator.updateGraph(third);
+
+        Set keys = new HashSet();
+        keys.add(first.getId());
+        keys.add(second.getId());
+        keys.add(third.getId());
+        assertEquals("key given out twice", 3, keys.size());
+        assertEquals(3, load(third.getId()).getSubsidiaries().size());
+    }
+
+    public void testMaxKeyGenerator() throws MediatorException {
+        ((JdbcBatchMediator) mediator).setKeyGenerator(new MaxKeyGenerator());
+        CompanyVO first = buildUserGraph();
+        mediator.updateGraph(first);
+        CompanyVO second = buildUserGraph();
+        mediator.updateGraph(second);
+
+        assertEquals(new Long(1), first.getId());
+        assertEquals(new Long(2), second.getId());
+        assertEquals(3, load(second.getId()).getSubsidiaries().size());
+    }
+
+    public void testDeleteGraph() throws MediatorException {
+        CompanyVO company = buildUserGraph();
+        mediator.updateGraph(company);
+
+        mediator.deleteGraph(load(company.getId()));
+        assertNull(load(company.getId()));
+    }
+
+    public void testDeleteChild() throws MediatorException {
+        CompanyVO company = buildUserGraph();
+        mediator.updateGraph(company);
+
+        SubsidiaryVO sub = (SubsidiaryVO) load(company.getId()).subsidiaries().next();
+        assertNotNull(sub.getCompanyVO());
+        mediator.deleteGraph(sub);
+
+        CompanyVO result = load(company.getId());
+        assertNotNull("parent deleted", result);
+        assertEquals(2, result.getSubsidiaries().size());
+    }
+
+    private CompanyVO load(Long id) throws MediatorException {
+        CompanyVO prototype = new CompanyVO();
+        prototype.setId(id);
+        return (CompanyVO) mediator.getGraph(prototype);
+    }
+
+    private CompanyVO buildUserGraph() {
+        CompanyVO comp = new CompanyVO();
+        comp.setName( "The big big company" );
+        comp.setCreationDate( new Date() );
+
+        SubsidiaryVO sub = new SubsidiaryVO();
+        sub.setName( "Paris" );
+        sub.setWorkforce( 2 );
+        comp.addSubsidiary( sub );
+
+        sub = new SubsidiaryVO();
+        sub.setName( "London" );
+        sub.setWorkforce( 1 );
+        comp.addSubsidiary( sub );
+
+        sub = new SubsidiaryVO();
+        sub.setName( "Berlin" );
+        sub.setWorkforce( 1 );
+        comp.addSubsidiary( sub );
+
+        return comp;
+    }
+
+    //////////// private helper methods /////////////
+    private Connection getConnection() throws Exception {
+        Class.forName("org.hsqldb.jdbcDriver").newInstance();
+        return DriverManager.getConnection(URL, "sa", "");
+    }
+
+    /**
+     * Creates test database.
+     * @throws Exception
+     */
+    private void createTestDb() throws Exception {
+        Connection conn = getConnection();
+        Statement s = conn.createStatement();
+        s.execute(destroyCompanySql);
+        s.execute(destroySubsidiarySql);
+        s.execute(createCompanySql);
+        s.execute(createSubsidiarySql);
+        for (int i = 0; i < sequences.length; i++) {
+            s.execute("DROP SEQUENCE " + sequences[i] + " IF EXISTS;");
+            s.execute("CREATE SEQUENCE " + sequences[i] + " START WITH 1;");
+        }
+        s.close();
+    }
+
+    /**
+     * Destroys database.
+     * @throws Exception
+     */
+    private void destroyTestDb() throws Exception {
+        Connection conn = getConnection();
+        Statement s = conn.createStatement();
+        s.execute(destroyCompanySql);
+        s.execute(destroySubsidiarySql);
+        for (int i = 0; i < sequences.length; i++) {
+            s.execute("DROP SEQUENCE " + sequences[i] + " IF EXISTS;");
+        }
+        s.close();
+    }
+}
@@ -0,0 +1,374 @@
+package org.bsf.smartValueObject.mediator;
+
+import junit.framework.TestCase;
+import org.bsf.smartValueObject.SmartAccess;
+import org.bsf.smartValueObject.TestVO;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Testcase for WriteBehindMediator.
+ *
+ * @see org.bsf.smartValueObject.mediator.WriteBehindMediator
+ */
+public class TestWriteBehindMediator extends TestCase {
+    private RecordingMediator recorder;
+    private WriteBehindMediator mediator;
+    private File logFile;
+
+    public void setUp() throws Exception {
+        recorder = new RecordingMediator();
+        logFile = File.createTempFile("writebehind", ".log");
+        mediator = new WriteBehindMediator(recorder, 10, 0, logFile);
+    }
+
+    public void tearDown() throws Exception {
+        mediator.close();
+        logFile.delete();
+    }
+
+    public void testCoalescing() throws MediatorException {
+        TestVO vo = loaded(1);
+        vo.setName("first");
+        mediator.updateGraph(vo);
+        vo.setName("second");
+        mediator.updateGraph(vo);
+        assertEquals(1, mediator.size());
+        assertEquals(0, recorder.batches.size());
+
+        assertEquals(1, mediator.flush().size());
+        assertEquals(1, recorder.batches.size());
+        assertEquals(1, ((List) recorder.batches.get(0)).size());
+        assertTrue(!SmartAccess.isGraphDirty(vo));
+        assertEquals(0, mediator.flush().size());
+    }
+
+    public void testNothing() throws MediatorException {
+        ChangeSummary cs = mediator.updateGraph(loaded(1));
+        assertEquals("Nothing", cs.getReport());
+        assertEquals(0, mediator.size());
+    }
+
+    public void testMerge() throws MediatorException {
+        TestVO queued = loaded(1);
+        queued.setName("queued");
+        mediator.updateGraph(queued);
+
+        TestVO other = loaded(1);
+        TestVO ref = loaded(2);
+        other.setOtherTestVO(ref);
+        mediator.updateGraph(other);
+
+        assertEquals(1, mediator.size());
+        TestVO result = (TestVO) mediator.getGraph(loaded(1));
+        assertEquals("queued", result.getName());
+        assertEquals(2, result.otherTestVO.getId());
+        assertTrue("live object queued", result.otherTestVO != ref);
+        assertTrue(!SmartAccess.isDirty(result));
+        assertTrue(!SmartAccess.isDirty(other));
+
+        // a modification below the root is not merged
+        TestVO third = loaded(1);
+        third.addTestVO(new TestVO());
+        mediator.updateGraph(third);
+        assertEquals(1, recorder.batches.size());
+        assertEquals(1, mediator.size());
+        assertEquals(1, ((TestVO) mediator.getGraph(loaded(1))).tests.size());
+    }
+
+    public void testOtherVersionNotMerged() throws MediatorException {
+        TestVO queued = loaded(1);
+        queued.setName("queued");
+        mediator.updateGraph(queued);
+
+        TestVO stale = loaded(1);
+        SmartAccess.setVersionId(stale, 42);
+        stale.setName("stale");
+        mediator.updateGraph(stale);
+
+        assertEquals(1, recorder.batches.size());
+        assertEquals("queued", ((TestVO) ((List) recorder.batches.get(0)).get(0)).getName());
+        assertEquals(1, mediator.size());
+        assertEquals("stale", ((TestVO) mediator.getGraph(loaded(1))).getName());
+    }
+
+    public void testBatchSize() throws MediatorException {
+        for (int i = 1; i <= 25; i++) {
+            TestVO vo = loaded(i);
+            vo.setName("vo " + i);
+            mediator.updateGraph(vo);
+        }
+        assertEquals(2, recorder.batches.size());
+        assertEquals(5, mediator.size());
+    }
+
+    public void testDelete() throws MediatorException {
+        TestVO vo = loaded(1);
+        vo.setName("deleted");
+        mediator.updateGraph(vo);
+        TestVO created = new TestVO();
+        mediator.updateGraph(created);
+        assertEquals(2, mediator.size());
+
+        mediator.deleteGraph(vo);
+        mediator.deleteGraph(created);
+        assertEquals(0, mediator.size());
+        assertEquals(1, recorder.deleted.size());
+        assertSame(vo, recorder.deleted.get(0));
+    }
+
+    public void testRecovery() throws Exception {
+        TestVO vo = loaded(1);
+        vo.setName("logged");
+        mediator.updateGraph(vo);
+        mediator.updateGraph(new TestVO());
+        TestVO dropped = loaded(2);
+        dropped.setName("dropped");
+        mediator.updateGraph(dropped);
+        mediator.deleteGraph(dropped);
+
+        // a crash: the first mediator is never closed
+        RecordingMediator recovered = new RecordingMediator();
+        WriteBehindMediator second = new WriteBehindMediator(recovered, 10, 0, logFile);
+        assertEquals(2, second.size());
+        TestVO result = (TestVO) second.getGraph(loaded(1));
+        assertEquals("logged", result.getName());
+        assertTrue(!SmartAccess.isDirty(result));
+
+        second.close();
+        assertEquals(2, ((List) recovered.batches.get(0)).size());
+        assertEquals(0, new WriteBehindMediator(recovered, 10, 0, logFile).size());
+        mediator.discard();
+    }
+
+    public void testTornRecord() throws Exception {
+        TestVO vo = loaded(1);
+        vo.setName("logged");
+        mediator.updateGraph(vo);
+
+        // a crash in the middle of the next record
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(logFile.getPath(), true));
+        out.writeLong(7);
+        out.writeInt(100);
+        out.write(new byte[10]);
+        out.close();
+
+        WriteBehindMediator second = new WriteBehindMediator(recorder, 10, 0, logFile);
+        assertEquals(1, second.size());
+        TestVO other = loaded(2);
+        other.setName("appended");
+        second.updateGraph(other);
+
+        // and another restart
+        WriteBehindMediator third = new WriteBehindMediator(recorder, 10, 0, logFile);
+        assertEquals(2, third.size());
+        assertEquals("appended", ((TestVO) third.getGraph(loaded(2))).getName());
+        third.discard();
+        mediator.discard();
+    }
+
+    public void testTimer() throws Exception {
+        WriteBehindMediator timed = new WriteBehindMediator(recorder, 10, 20, null);
+        TestVO vo = loaded(1);
+        vo.setName("timed");
+        timed.updateGraph(vo);
+        for (int i = 0; i < 250 && timed.size() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, timed.size());
+        timed.close();
+    }
+
+    public void testTimerSurvivesRuntimeException() throws Exception {
+        WriteBehindMediator timed = new WriteBehindMediator(recorder, 10, 20, null);
+        recorder.crashes = 1;
+        TestVO vo = loaded(1);
+        vo.setName("timed");
+        timed.updateGraph(vo);
+        for (int i = 0; i < 250 && timed.size() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals("timer stopped", 0, timed.size());
+        assertEquals(1, recorder.batches.size());
+        timed.close();
+    }
+
+    public void testEditDuringFlush() throws Exception {
+        WriteBehindMediator timed = new WriteBehindMediator(recorder, 10, 20, null);
+        recorder.close();
+        TestVO vo = new TestVO();
+        vo.setName("first");
+        timed.updateGraph(vo);
+        assertTrue(!SmartAccess.isGraphDirty(vo));
+
+        recorder.waitForStart();
+        vo.setName("second");
+        long version = vo.getVersionId();
+        recorder.open();
+        for (int i = 0; i < 250 && timed.size() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, timed.size());
+
+        TestVO stored = (TestVO) ((List) recorder.batches.get(0)).get(0);
+        assertEquals("first", stored.getName());
+        assertTrue("edit lost", SmartAccess.isDirty(vo));
+        assertEquals("second", vo.getName());
+        assertEquals("key not passed back", stored.getId(), vo.getId());
+        assertEquals(stored.getVersionId(), vo.getVersionId());
+        assertTrue(version != vo.getVersionId());
+
+        timed.updateGraph(vo);
+        timed.close();
+        assertEquals(2, recorder.batches.size());
+        stored = (TestVO) ((List) recorder.batches.get(1)).get(0);
+        assertEquals("second", stored.getName());
+        assertTrue("stored twice", !SmartAccess.isCreated(stored));
+    }
+
+    public void testQueueDuringFlush() throws Exception {
+        TestVO first = loaded(1);
+        first.setName("first");
+        mediator.updateGraph(first);
+
+        recorder.close();
+        final List failures = new ArrayList();
+        Thread flusher = new Thread() {
+            public void run() {
+                try {
+                    mediator.flush();
+                } catch (MediatorException e) {
+                    failures.add(e);
+                }
+            }
+        };
+        flusher.start();
+        recorder.waitForStart();
+
+        // not blocked by the flush
+        TestVO second = loaded(2);
+        second.setName("second");
+        mediator.updateGraph(second);
+        assertEquals(2, mediator.size());
+
+        recorder.open();
+        flusher.join(5000);
+        assertTrue(failures.isEmpty());
+        assertEquals(1, mediator.size());
+        assertEquals(1, ((List) recorder.batches.get(0)).size());
+
+        // the log only holds the graph queued meanwhile
+        WriteBehindMediator recovered = new WriteBehindMediator(new RecordingMediator(), 10, 0, logFile);
+        assertEquals(1, recovered.size());
+        assertEquals("second", ((TestVO) recovered.getGraph(loaded(2))).getName());
+        recovered.discard();
+        mediator.discard();
+    }
+
+    public void testFailedFlush() throws MediatorException {
+        TestVO vo = loaded(1);
+        vo.setName("failing");
+        mediator.updateGraph(vo);
+        recorder.failing = true;
+        try {
+            mediator.flush();
+            fail("failure not passed on");
+        } catch (MediatorException e) {
+            // expected
+        }
+        assertEquals(1, mediator.size());
+
+        recorder.failing = false;
+        vo.setName("merged");
+        mediator.updateGraph(vo);
+        assertEquals(1, mediator.size());
+        mediator.flush();
+        TestVO stored = (TestVO) ((List) recorder.batches.get(0)).get(0);
+        assertEquals("merged", stored.getName());
+    }
+
+    /**
+     * Gets a clean object with the given id, as if loaded. Objects with
+     * the same id get the same version id.
+     */
+    private static TestVO loaded(int id) {
+        TestVO vo = new TestVO();
+        vo.setId(id);
+        SmartAccess.resetGraph(vo);
+        SmartAccess.setVersionId(vo, id);
+        return vo;
+    }
+
+    /**
+     * Records the batches stored, giving keys to created graphs and
+     * marking them clean. Batches wait while closed.
+     */
+    private static class RecordingMediator extends AbstractMediator {
+        private final List batches = new ArrayList();
+        private final List deleted = new ArrayList();
+        private int lastKey = 1000;
+        private boolean closed = false;
+        private boolean started = false;
+        private boolean failing = false;
+        /** Number of batches still failing with a runtime exception. */
+        private int crashes = 0;
+
+        public Object getGraph(Object prototype) {
+            return null;
+        }
+
+        public ChangeSummary updateGraph(Object graph) {
+            TestVO vo = (TestVO) graph;
+            if (vo.getId() == 0) {
+                vo.setId(++lastKey);
+            }
+            SmartAccess.resetGraph(graph);
+            return new ChangeSummary(null, null);
+        }
+
+        public synchronized List updateGraphs(Collection graphs) throws MediatorException {
+            started = true;
+            notifyAll();
+            while (closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new MediatorException(e);
+                }
+            }
+            if (failing)
+                throw new MediatorException("store failed");
+            if (crashes > 0) {
+                crashes--;
+                throw new IllegalStateException("store crashed");
+            }
+            batches.add(new ArrayList(graphs));
+            return super.updateGraphs(graphs);
+        }
+
+        public void deleteGraph(Object graph) {
+            deleted.add(graph);
+        }
+
+        synchronized void close() {
+            closed = true;
+        }
+
+        synchronized void open() {
+            closed = false;
+            notifyAll();
+        }
+
+        synchronized void waitForStart() throws InterruptedException {
+            while (!started) {
+                wait();
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.bsf.smartValueObject.tools;
+
+import junit.framework.TestCase;
+
+/**
+ * Testcase for the class selection of <code>SmartAgent</code>.
+ * The modification itself is covered by running
+ * <code>TestSmartifier</code> with the agent (see the
+ * <tt>run-agent-tests</tt> target).
+ *
+ * @see org.bsf.smartValueObject.tools.SmartAgent
+ */
+public class TestSmartAgent extends TestCase {
+    private SmartAgent agent;
+
+    public void setUp() {
+        agent = new SmartAgent(null);
+    }
+
+    public void testDefaults() {
+        assertTrue("VO not included",
+                agent.isIncluded("org.bsf.smartValueObject.demo.CompanyVO"));
+        assertTrue("test VO included",
+                !agent.isIncluded("org.bsf.smartValueObject.TestVO"));
+        assertTrue("non VO included",
+                !agent.isIncluded("org.bsf.smartValueObject.Version"));
+    }
+
+    public void testPatterns() {
+        agent = new SmartAgent("include=org.bsf.*.demo.*VO, a.B ;exclude=*Subsidiary*");
+
+        assertTrue(agent.isIncluded("org.bsf.smartValueObject.demo.CompanyVO"));
+        assertTrue(agent.isIncluded("a.B"));
+        assertTrue(!agent.isIncluded("a.BC"));
+        assertTrue(!agent.isIncluded("org.bsf.smartValueObject.demo.SubsidiaryVO"));
+        assertTrue(!agent.isIncluded("org.bsf.smartValueObject.bench.BenchVO"));
+        // no default excludes once exclude is given
+        assertTrue(agent.isIncluded("org.bsf.smartValueObject.demo.TestVO"));
+    }
+
+    public void testUnknownOption() {
+        try {
+            new SmartAgent("includes=*");
+            fail("unknown option accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testSkipped() {
+        byte[] bytecode = new byte[0];
+        ClassLoader cl = getClass().getClassLoader();
+
+        assertNull("bootstrap class modified",
+                agent.transform(null, "a/FooVO", null, null, bytecode));
+        assertNull("redefined class modified",
+                agent.transform(cl, "a/FooVO", getClass(), null, bytecode));
+        assertNull("excluded class modified",
+                agent.transform(cl, "a/TestFooVO", null, null, bytecode));
+        assertNull("class without VO suffix modified",
+                agent.transform(cl, "a/Foo", null, null, bytecode));
+    }
+}
@@ -96,6 +96,11 @@ public class TestSmartifier extends TestCase {
 
         compVO.setName("test");
         assertTrue("compVO is not dirty", v.isDirty());
+
+        v.markClean();
+        compVO.setName(null);
+        assertNull("could not reset name", compVO.getName());
+        assertTrue("compVO is not dirty", v.isDirty());
     }
 
     public void testAssignment() {